@@ -0,0 +1,50 @@
+package com.example.cart.api;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.google.common.base.Preconditions;
+import lombok.Value;
+
+/**
+ * A single change to an item in a shopping cart, as part of a batch update.
+ */
+@Value
+@JsonDeserialize
+public final class CartItemUpdate {
+
+    public enum Operation {
+        ADD, REMOVE, ADJUST
+    }
+
+    /**
+     * What to do with the item.
+     */
+    public final Operation operation;
+    /**
+     * The ID of the product.
+     */
+    public final String itemId;
+    /**
+     * The quantity to add or adjust to. Ignored for removals.
+     */
+    public final int quantity;
+
+    @JsonCreator
+    public CartItemUpdate(Operation operation, String itemId, int quantity) {
+        this.operation = Preconditions.checkNotNull(operation, "operation");
+        this.itemId = Preconditions.checkNotNull(itemId, "itemId");
+        this.quantity = quantity;
+    }
+
+    public static CartItemUpdate add(String itemId, int quantity) {
+        return new CartItemUpdate(Operation.ADD, itemId, quantity);
+    }
+
+    public static CartItemUpdate remove(String itemId) {
+        return new CartItemUpdate(Operation.REMOVE, itemId, 0);
+    }
+
+    public static CartItemUpdate adjust(String itemId, int quantity) {
+        return new CartItemUpdate(Operation.ADJUST, itemId, quantity);
+    }
+}
@@ -0,0 +1,32 @@
+package com.example.cart.api;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.google.common.base.Preconditions;
+import lombok.Value;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * A page of shopping cart reports from a report query.
+ */
+@Value
+@JsonDeserialize
+public final class CartReportPage {
+    /**
+     * The reports, in the order of the queried date and then cart ID.
+     */
+    public final List<CartReportView> reports;
+
+    /**
+     * Pass this as <code>after</code> to get the next page. Empty on the last page.
+     */
+    public final Optional<String> next;
+
+    @JsonCreator
+    public CartReportPage(List<CartReportView> reports, Optional<String> next) {
+        this.reports = Preconditions.checkNotNull(reports, "reports");
+        this.next = Preconditions.checkNotNull(next, "next");
+    }
+}
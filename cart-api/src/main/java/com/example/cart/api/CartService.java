@@ -2,13 +2,18 @@ package com.example.cart.api;
 
 import akka.Done;
 import akka.NotUsed;
+import akka.stream.javadsl.Source;
 import com.lightbend.lagom.javadsl.api.Descriptor;
 import com.lightbend.lagom.javadsl.api.Service;
 import com.lightbend.lagom.javadsl.api.ServiceCall;
 import com.lightbend.lagom.javadsl.api.broker.Topic;
 import com.lightbend.lagom.javadsl.api.broker.kafka.KafkaProperties;
+import com.lightbend.lagom.javadsl.api.security.UserAgentHeaderFilter;
+import com.lightbend.lagom.javadsl.api.transport.HeaderFilter;
 import com.lightbend.lagom.javadsl.api.transport.Method;
 
+import java.util.Optional;
+
 import static com.lightbend.lagom.javadsl.api.Service.*;
 
 /**
@@ -24,6 +29,9 @@ public interface CartService extends Service {
     /**
      * Get a shopping cart.
      * <p>
+     * The response has the version of the cart as its <code>ETag</code>. Sent back in <code>If-None-Match</code>,
+     * it gets a 304 without a body while the cart hasn't changed.
+     * <p>
      * Example: curl http://localhost:9000/shoppingcart/123
      */
     ServiceCall<NotUsed, CartView> get(String id);
@@ -35,6 +43,31 @@ public interface CartService extends Service {
      */
     ServiceCall<NotUsed, CartReportView> getReport(String id);
 
+    /**
+     * Get the reports of the shopping carts created in a time range, oldest first. Both ends of the range are
+     * optional ISO-8601 instants, <code>from</code> inclusive and <code>to</code> exclusive. Pages hold up to
+     * <code>limit</code> reports (default 100, at most 1000); pass the <code>next</code> of a page as
+     * <code>after</code> to get the following one.
+     *
+     * Example: curl "http://localhost:9000/cart-report/created?from=2020-05-01T00:00:00Z&to=2020-05-02T00:00:00Z&limit=500"
+     */
+    ServiceCall<NotUsed, CartReportPage> getReportsCreated(Optional<String> from, Optional<String> to,
+                                                          Optional<String> after, Optional<Integer> limit);
+
+    /**
+     * Get the reports of the shopping carts checked out in a time range, paged like {@link #getReportsCreated}.
+     *
+     * Example: curl "http://localhost:9000/cart-report/checked-out?from=2020-05-01T12:00:00Z"
+     */
+    ServiceCall<NotUsed, CartReportPage> getReportsCheckedOut(Optional<String> from, Optional<String> to,
+                                                             Optional<String> after, Optional<Integer> limit);
+
+    /**
+     * Stream all shopping cart reports, in no particular order. The stream is served over a WebSocket, one JSON
+     * report per message, as fast as the client consumes it.
+     */
+    ServiceCall<NotUsed, Source<CartReportView, ?>> exportReports();
+
     /**
      * Update an items quantity in the shopping cart.
      * <p>
@@ -56,6 +89,13 @@ public interface CartService extends Service {
      */
     ServiceCall<Quantity, CartView> adjustItemQuantity(String cartId, String itemId);
 
+    /**
+     * Apply a batch of item changes to the shopping cart. Either all changes are applied or none are.
+     *
+     * Example: curl -H "Content-Type: application/json" -X POST -d '{"updates": [{"operation": "ADD", "itemId": "456", "quantity": 2}, {"operation": "REMOVE", "itemId": "789"}]}' http://localhost:9000/shoppingcart/123/items
+     */
+    ServiceCall<CartUpdate, CartView> updateItems(String id);
+
     /**
      * Checkout the shopping cart.
      * <p>
@@ -63,6 +103,22 @@ public interface CartService extends Service {
      */
     ServiceCall<NotUsed, Done> checkout(String id);
 
+    /**
+     * Rebuild the shopping cart reports from the journal. Completes once the new reports are in place.
+     *
+     * Example: curl -X POST http://localhost:9000/cart-report/rebuild
+     */
+    ServiceCall<NotUsed, Done> rebuildReports();
+
+    /**
+     * The metrics of the cart service on the node that serves the call, in the Prometheus text format: the latency
+     * of the asks to the cart entities and of their journal writes, their recoveries, the cart entities per shard,
+     * how far the reports are behind the journal, and the report and cart view caches.
+     *
+     * Example: curl http://localhost:9000/metrics/cart
+     */
+    ServiceCall<NotUsed, String> metrics();
+
     /**
      * This gets published to Kafka.
      */
@@ -74,10 +130,16 @@ public interface CartService extends Service {
             .withCalls(
                 restCall(Method.GET, "/cart/:id", this::get),
                 restCall(Method.GET, "/cart/:id/report", this::getReport),
+                restCall(Method.GET, "/cart-report/created?from&to&after&limit", this::getReportsCreated),
+                restCall(Method.GET, "/cart-report/checked-out?from&to&after&limit", this::getReportsCheckedOut),
+                restCall(Method.GET, "/cart-report/export", this::exportReports),
                 restCall(Method.POST, "/cart/:id", this::addItem),
                 restCall(Method.DELETE, "/cart/:cartId/item/:itemId", this::removeItem),
                 restCall(Method.PATCH, "/cart/:cartId/item/:itemId", this::adjustItemQuantity),
-                restCall(Method.POST, "/cart/:id/checkout", this::checkout)
+                restCall(Method.POST, "/cart/:id/items", this::updateItems),
+                restCall(Method.POST, "/cart/:id/checkout", this::checkout),
+                restCall(Method.POST, "/cart-report/rebuild", this::rebuildReports),
+                restCall(Method.GET, "/metrics/cart", this::metrics)
             )
             .withTopics(
                 topic(TOPIC_NAME, this::shoppingCartTopic)
@@ -88,6 +150,8 @@ public interface CartService extends Service {
                     // name as the partition key.
                     .withProperty(KafkaProperties.partitionKeyStrategy(), CartView::getId)
             )
+            // The user agent filter is the default one
+            .withHeaderFilter(HeaderFilter.composite(new UserAgentHeaderFilter(), new RequestStartFilter()))
             .withAutoAcl(true);
     }
 }
@@ -0,0 +1,25 @@
+package com.example.cart.api;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.google.common.base.Preconditions;
+import lombok.Value;
+
+import java.util.List;
+
+/**
+ * A batch of item changes to apply to a shopping cart atomically.
+ */
+@Value
+@JsonDeserialize
+public final class CartUpdate {
+    /**
+     * The changes, applied in order.
+     */
+    public final List<CartItemUpdate> updates;
+
+    @JsonCreator
+    public CartUpdate(List<CartItemUpdate> updates) {
+        this.updates = Preconditions.checkNotNull(updates, "updates");
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.cart.api;
+
+import com.lightbend.lagom.javadsl.api.transport.HeaderFilter;
+import com.lightbend.lagom.javadsl.api.transport.RequestHeader;
+import com.lightbend.lagom.javadsl.api.transport.ResponseHeader;
+
+/**
+ * Stamps every request the cart service receives with when it arrived, before its body is read, so the service can
+ * tell how long reading and deserializing the request took. The stamp is the server's <code>System.nanoTime()</code>,
+ * and replaces any sent by the client. Requests sent by clients are left alone.
+ */
+public final class RequestStartFilter implements HeaderFilter {
+
+    public static final String HEADER = "X-Cart-Request-Start";
+
+    @Override
+    public RequestHeader transformClientRequest(RequestHeader request) {
+        return request;
+    }
+
+    @Override
+    public RequestHeader transformServerRequest(RequestHeader request) {
+        return request.withHeader(HEADER, Long.toString(System.nanoTime()));
+    }
+
+    @Override
+    public ResponseHeader transformServerResponse(ResponseHeader response, RequestHeader request) {
+        return response;
+    }
+
+    @Override
+    public ResponseHeader transformClientResponse(ResponseHeader response, RequestHeader request) {
+        return response;
+    }
+}
@@ -0,0 +1,361 @@
+package com.example.cart.impl;
+
+import com.example.cart.api.CartItem;
+import com.example.cart.api.CartService;
+import com.example.cart.api.Quantity;
+import com.lightbend.lagom.javadsl.api.transport.BadRequest;
+import com.lightbend.lagom.javadsl.testkit.ServiceTest;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Loads the cart service, started in this JVM with the Lagom test kit against the JDBC journal, with a mix of calls
+ * on many carts, and records the latency of each call type in histograms, so the rate at which the service, its
+ * sharded entities and the journal saturate can be found without any other service.
+ * <p>
+ * Calls are started at fixed intervals for each offered rate, whether or not earlier calls have completed, and their
+ * latency is measured from when they were due rather than from when they were sent. A service that can't keep up
+ * then shows as growing latency, as its clients would see it, instead of slowing the load down.
+ * <p>
+ * Calls that fail or time out are recorded at the latency they failed after, as a client waits that long too. Calls
+ * not made because <code>max-outstanding</code> calls were waiting are recorded apart, at the time from when they were
+ * due to the end of their phase, as that is as long as they went unanswered at least. Both are in the latencies of
+ * all calls, so a saturated service doesn't look faster by the calls it didn't answer.
+ * <p>
+ * Run the main method with the benchmark jar, <code>java -cp cart-benchmarks/target/benchmarks.jar
+ * com.example.cart.impl.CartLoadGenerator 100 200 400</code>, the arguments being the rates to offer in calls per
+ * second. The database configured for the cart service must be running. See <code>load-test.conf</code> for the other
+ * settings.
+ */
+public class CartLoadGenerator {
+
+    static final List<String> CALLS = Arrays.asList("add", "adjust", "remove", "get", "checkout");
+
+    // Latencies are recorded in microseconds, up to a minute with 3 significant digits
+    private static final long HIGHEST_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(1);
+    private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long READY_TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(2);
+
+    private final CartService cartService;
+    private final LoadTestSettings settings;
+    private final Cart[] carts;
+    private final int[] cumulativeWeights;
+    // Seeded, so runs with the same settings make the same calls
+    private final Random random = new Random(42);
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    CartLoadGenerator(CartService cartService, LoadTestSettings settings) {
+        this.cartService = cartService;
+        this.settings = settings;
+        this.carts = new Cart[settings.carts];
+        for (int i = 0; i < carts.length; i++) {
+            carts[i] = new Cart();
+        }
+        this.cumulativeWeights = new int[CALLS.size()];
+        int total = 0;
+        for (int i = 0; i < CALLS.size(); i++) {
+            total += settings.mix.get(CALLS.get(i));
+            cumulativeWeights[i] = total;
+        }
+    }
+
+    public static void main(String[] args) {
+        Config config = ConfigFactory.systemProperties().withFallback(ConfigFactory.parseResources("load-test.conf")).resolve();
+        LoadTestSettings settings = LoadTestSettings.fromConfig(config);
+        if (args.length > 0) {
+            List<Integer> rates = new ArrayList<>();
+            for (String rate : args) {
+                rates.add(Integer.parseInt(rate));
+            }
+            settings = settings.withRates(rates);
+        }
+
+        ServiceTest.TestServer server = ServiceTest.startServer(ServiceTest.defaultSetup().withJdbc());
+        try {
+            CartLoadGenerator generator = new CartLoadGenerator(server.client(CartService.class), settings);
+            generator.awaitReady();
+            System.out.printf("Warming up at %d calls/s for %d s%n", settings.rates.get(0), settings.warmUp.getSeconds());
+            generator.run(settings.rates.get(0), settings.warmUp.toNanos(), false);
+
+            List<Phase> phases = new ArrayList<>();
+            for (int rate : settings.rates) {
+                generator.awaitReady();
+                System.out.printf("%nOffering %d calls/s for %d s%n", rate, settings.duration.getSeconds());
+                Phase phase = generator.run(rate, settings.duration.toNanos(), true);
+                phase.printSummary();
+                phases.add(phase);
+            }
+
+            // The latencies are of all calls offered, including the failed and dropped ones
+            System.out.printf("%n%8s %10s %8s %8s %9s %9s %9s%n",
+                    "offered", "ok/s", "dropped", "failed", "p50 ms", "p99 ms", "max ms");
+            for (Phase phase : phases) {
+                Histogram all = phase.all();
+                System.out.printf("%8d %10.1f %8d %8d %9.2f %9.2f %9.2f%n",
+                        phase.rate, phase.okPerSecond(), phase.dropped.getTotalCount(), phase.failures(),
+                        millis(all.getValueAtPercentile(50)), millis(all.getValueAtPercentile(99)), millis(all.getMaxValue()));
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Waits until the service adds an item to a cart. Calls that time out, while cart sharding starts or when the
+     * service was overloaded, open the client's circuit breaker, which would fail the calls after them too.
+     */
+    private void awaitReady() {
+        long deadline = System.nanoTime() + READY_TIMEOUT_NANOS;
+        while (true) {
+            try {
+                cartService.addItem(UUID.randomUUID().toString()).invoke(new CartItem("item-0", 1))
+                        .toCompletableFuture().join();
+                return;
+            } catch (CompletionException e) {
+                if (System.nanoTime() > deadline) {
+                    throw new IllegalStateException("The cart service isn't answering", e.getCause());
+                }
+                LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+    }
+
+    /**
+     * Offers calls at a rate for a time, and waits for them to complete.
+     */
+    private Phase run(int rate, long durationNanos, boolean report) {
+        Phase phase = new Phase(rate);
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        long end = start + durationNanos;
+        long nextReport = start + settings.reportInterval.toNanos();
+        for (long due = start; due < end; due += intervalNanos) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            if (outstanding.get() >= settings.maxOutstanding) {
+                phase.drop((end - due) / 1000);
+            } else {
+                call(phase, due);
+            }
+            if (report && System.nanoTime() >= nextReport) {
+                phase.printInterval();
+                nextReport += settings.reportInterval.toNanos();
+            }
+        }
+        long drainDeadline = System.nanoTime() + DRAIN_TIMEOUT_NANOS;
+        while (outstanding.get() > 0 && System.nanoTime() < drainDeadline) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        phase.elapsedNanos = System.nanoTime() - start;
+        if (report) {
+            phase.printInterval();
+        }
+        return phase;
+    }
+
+    /**
+     * Makes a call of the mix on a random cart. Calls that need an item in the cart add one to an empty cart instead,
+     * and a checked out cart is replaced by a new one.
+     */
+    private void call(Phase phase, long due) {
+        Cart cart = carts[random.nextInt(carts.length)];
+        String call = pickCall();
+        if (cart.items.isEmpty() && !call.equals("get")) {
+            call = "add";
+        }
+        CompletionStage<?> response;
+        switch (call) {
+            case "add":
+                String itemId = "item-" + cart.nextItem++;
+                cart.items.add(itemId);
+                response = cartService.addItem(cart.id).invoke(new CartItem(itemId, 1 + random.nextInt(3)));
+                break;
+            case "adjust":
+                response = cartService.adjustItemQuantity(cart.id, cart.randomItem(random))
+                        .invoke(new Quantity(1 + random.nextInt(5)));
+                break;
+            case "remove":
+                String removed = cart.randomItem(random);
+                cart.items.remove(removed);
+                response = cartService.removeItem(cart.id, removed).invoke();
+                break;
+            case "get":
+                response = cartService.get(cart.id).invoke();
+                break;
+            default:
+                response = cartService.checkout(cart.id).invoke();
+                cart.replace();
+        }
+        outstanding.incrementAndGet();
+        String recorded = call;
+        response.whenComplete((result, error) -> {
+            long micros = (System.nanoTime() - due) / 1000;
+            outstanding.decrementAndGet();
+            phase.completed(recorded, micros, error);
+        });
+    }
+
+    private String pickCall() {
+        int pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (pick < cumulativeWeights[i]) {
+                return CALLS.get(i);
+            }
+        }
+        throw new IllegalStateException("No call picked");
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+
+    /**
+     * A cart as the generator expects it to be, which is how it will be once the calls made on it complete.
+     */
+    private static final class Cart {
+        private String id = UUID.randomUUID().toString();
+        private final List<String> items = new ArrayList<>();
+        private int nextItem;
+
+        String randomItem(Random random) {
+            return items.get(random.nextInt(items.size()));
+        }
+
+        void replace() {
+            id = UUID.randomUUID().toString();
+            items.clear();
+            nextItem = 0;
+        }
+    }
+
+    /**
+     * The calls made at one rate, their latencies by call type, and how many succeeded, were rejected by the service,
+     * or failed otherwise, such as by timing out. Also the calls that were not made because too many were
+     * outstanding.
+     */
+    private static final class Phase {
+        private final int rate;
+        // The latencies of all calls made, whether they succeeded or not
+        private final Map<String, Recorder> recorders = new LinkedHashMap<>();
+        // Written by the generator thread only, from the recorders
+        private final Map<String, Histogram> totals = new LinkedHashMap<>();
+        private final Map<String, LongAdder> ok = new LinkedHashMap<>();
+        private final Map<String, LongAdder> rejected = new LinkedHashMap<>();
+        private final Map<String, LongAdder> failed = new LinkedHashMap<>();
+        // Written by the generator thread only
+        private final Histogram dropped = new Histogram(HIGHEST_LATENCY_MICROS, 3);
+        private long droppedInInterval;
+        private long elapsedNanos;
+        private long intervalStartNanos = System.nanoTime();
+
+        Phase(int rate) {
+            this.rate = rate;
+            for (String call : CALLS) {
+                recorders.put(call, new Recorder(HIGHEST_LATENCY_MICROS, 3));
+                totals.put(call, new Histogram(HIGHEST_LATENCY_MICROS, 3));
+                ok.put(call, new LongAdder());
+                rejected.put(call, new LongAdder());
+                failed.put(call, new LongAdder());
+            }
+        }
+
+        void completed(String call, long micros, Throwable error) {
+            recorders.get(call).recordValue(Math.min(micros, HIGHEST_LATENCY_MICROS));
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            if (cause == null) {
+                ok.get(call).increment();
+            } else if (cause instanceof BadRequest) {
+                // Such as adjusting an item whose add hasn't reached the cart yet
+                rejected.get(call).increment();
+            } else {
+                failed.get(call).increment();
+            }
+        }
+
+        /**
+         * Records a call that wasn't made, at how long it was due before the end of the phase.
+         */
+        void drop(long micros) {
+            dropped.recordValue(Math.min(micros, HIGHEST_LATENCY_MICROS));
+            droppedInInterval++;
+        }
+
+        void printInterval() {
+            long now = System.nanoTime();
+            Histogram interval = new Histogram(HIGHEST_LATENCY_MICROS, 3);
+            for (String call : CALLS) {
+                Histogram calls = recorders.get(call).getIntervalHistogram();
+                totals.get(call).add(calls);
+                interval.add(calls);
+            }
+            double seconds = (now - intervalStartNanos) / 1e9;
+            intervalStartNanos = now;
+            System.out.printf("  %7.1f calls/s completed, %d dropped, p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                    interval.getTotalCount() / seconds, droppedInInterval, millis(interval.getValueAtPercentile(50)),
+                    millis(interval.getValueAtPercentile(99)), millis(interval.getMaxValue()));
+            droppedInInterval = 0;
+        }
+
+        void printSummary() {
+            System.out.printf("%-9s %8s %8s %8s %8s %9s %9s %9s %9s %9s%n",
+                    "call", "ok", "rejected", "failed", "dropped", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+            for (String call : CALLS) {
+                printRow(call, ok.get(call).sum(), rejected.get(call).sum(), failed.get(call).sum(), 0, totals.get(call));
+            }
+            if (dropped.getTotalCount() > 0) {
+                // Dropped before a call type was picked
+                printRow("dropped", 0, 0, 0, dropped.getTotalCount(), dropped);
+            }
+            printRow("all", oks(), rejected.values().stream().mapToLong(LongAdder::sum).sum(), failures(),
+                    dropped.getTotalCount(), all());
+        }
+
+        private static void printRow(String call, long ok, long rejected, long failed, long dropped, Histogram latencies) {
+            System.out.printf("%-9s %8d %8d %8d %8d %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+                    call, ok, rejected, failed, dropped,
+                    millis(latencies.getValueAtPercentile(50)), millis(latencies.getValueAtPercentile(90)),
+                    millis(latencies.getValueAtPercentile(99)), millis(latencies.getValueAtPercentile(99.9)),
+                    millis(latencies.getMaxValue()));
+        }
+
+        /**
+         * The latencies of all calls offered, including the dropped ones.
+         */
+        Histogram all() {
+            Histogram all = new Histogram(HIGHEST_LATENCY_MICROS, 3);
+            totals.values().forEach(all::add);
+            all.add(dropped);
+            return all;
+        }
+
+        long failures() {
+            return failed.values().stream().mapToLong(LongAdder::sum).sum();
+        }
+
+        private long oks() {
+            return ok.values().stream().mapToLong(LongAdder::sum).sum();
+        }
+
+        double okPerSecond() {
+            return oks() / (elapsedNanos / 1e9);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.cart.impl;
+
+import akka.actor.ActorSystem;
+import akka.util.ByteString;
+import com.example.cart.api.CartView;
+import com.lightbend.lagom.javadsl.api.deser.MessageSerializer;
+import com.lightbend.lagom.javadsl.api.deser.StrictMessageSerializer;
+import com.lightbend.lagom.javadsl.jackson.JacksonSerializerFactory;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning a checked out shopping cart into the {@link CartView} that is returned by the service calls and published
+ * to the cart topic, and writing and reading that as JSON with the serializer Lagom uses for them, for carts of 1 to
+ * 100 items.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CartViewBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int items;
+
+    private ActorSystem system;
+    private CartEntity.ShoppingCart cart;
+    private MessageSerializer.NegotiatedSerializer<CartView, ByteString> serializer;
+    private MessageSerializer.NegotiatedDeserializer<CartView, ByteString> deserializer;
+    private ByteString json;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        system = ActorSystem.create("cart-view-benchmark", ConfigFactory.parseString("akka.actor.provider = local"));
+        StrictMessageSerializer<CartView> messageSerializer = new JacksonSerializerFactory(system).messageSerializerFor(CartView.class);
+        serializer = messageSerializer.serializerForRequest();
+        deserializer = messageSerializer.deserializer(serializer.protocol());
+        cart = Carts.withItems(items).checkout(Instant.now());
+        json = serializer.serialize(toView());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        system.terminate();
+    }
+
+    @Benchmark
+    public CartView toView() {
+        return CartServiceImpl.asShoppingCartView(Carts.CART_ID, CartEntity.toSummary(Carts.CART_ID, cart));
+    }
+
+    @Benchmark
+    public ByteString toJson() {
+        return serializer.serialize(toView());
+    }
+
+    @Benchmark
+    public CartView fromJson() {
+        return deserializer.deserialize(json);
+    }
+}
@@ -0,0 +1,31 @@
+package com.example.cart.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shopping carts and their items for the benchmarks.
+ */
+final class Carts {
+
+    static final String CART_ID = "4b2b7f2c-5c2a-4a4e-9a3f-0d6c2b1e8f11";
+
+    private Carts() {
+    }
+
+    static String itemId(int i) {
+        return String.format("item-%04d", i);
+    }
+
+    static Map<String, Integer> items(int count) {
+        Map<String, Integer> items = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            items.put(itemId(i), i % 5 + 1);
+        }
+        return items;
+    }
+
+    static CartEntity.ShoppingCart withItems(int count) {
+        return new CartEntity.ShoppingCart(items(count), null);
+    }
+}
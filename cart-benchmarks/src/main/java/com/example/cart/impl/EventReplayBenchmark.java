@@ -0,0 +1,76 @@
+package com.example.cart.impl;
+
+import akka.cluster.sharding.typed.javadsl.EntityContext;
+import akka.persistence.typed.javadsl.EventHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recovering a shopping cart by applying its events to the empty cart with the entity's event handler, as is done
+ * when a cart without a recent snapshot is replayed from the journal, for 10 to 1000 events. The events add, change
+ * and remove 20 items, and the last one checks the cart out.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventReplayBenchmark {
+
+    private static final int DISTINCT_ITEMS = 20;
+
+    @Param({"10", "100", "1000"})
+    public int events;
+
+    private CartEntity entity;
+    private EventHandler<CartEntity.ShoppingCart, CartEntity.Event> eventHandler;
+    private List<CartEntity.Event> journal;
+
+    @Setup
+    public void setUp() {
+        // The shard isn't used by the event handler
+        entity = CartEntity.create(new EntityContext<>(CartEntity.ENTITY_TYPE_KEY, Carts.CART_ID, null));
+        eventHandler = entity.eventHandler();
+        journal = new ArrayList<>(events);
+        Instant now = Instant.now();
+        for (int i = 0; i < events - 1; i++) {
+            String itemId = Carts.itemId(i % DISTINCT_ITEMS);
+            switch (i % 4) {
+                case 0:
+                case 1:
+                    journal.add(new CartEntity.ItemAdded(Carts.CART_ID, itemId, 1, now));
+                    break;
+                case 2:
+                    journal.add(new CartEntity.ItemQuantityAdjusted(Carts.CART_ID, itemId, 3, now));
+                    break;
+                default:
+                    journal.add(new CartEntity.ItemRemoved(Carts.CART_ID, itemId, now));
+            }
+        }
+        journal.add(new CartEntity.CheckedOut(Carts.CART_ID, now, Carts.items(DISTINCT_ITEMS / 2)));
+    }
+
+    @Benchmark
+    public CartEntity.ShoppingCart replay() {
+        CartEntity.ShoppingCart cart = entity.emptyState();
+        for (CartEntity.Event event : journal) {
+            cart = eventHandler.apply(cart, event);
+        }
+        return cart;
+    }
+}
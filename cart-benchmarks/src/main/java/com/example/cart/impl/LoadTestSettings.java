@@ -0,0 +1,82 @@
+package com.example.cart.impl;
+
+import com.typesafe.config.Config;
+import lombok.Value;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How {@link CartLoadGenerator} loads the cart service, read from the <code>load-test</code> config section.
+ */
+@Value
+public class LoadTestSettings {
+
+    /**
+     * The calls per second offered in turn.
+     */
+    public final List<Integer> rates;
+
+    /**
+     * How long each rate is offered.
+     */
+    public final Duration duration;
+
+    /**
+     * How long the first rate is offered before measuring.
+     */
+    public final Duration warmUp;
+
+    /**
+     * The number of carts in use at once.
+     */
+    public final int carts;
+
+    /**
+     * The relative weight of each call type, by name.
+     */
+    public final Map<String, Integer> mix;
+
+    /**
+     * The most calls waiting for their response at once.
+     */
+    public final int maxOutstanding;
+
+    /**
+     * How often the latencies of the last interval are printed.
+     */
+    public final Duration reportInterval;
+
+    public LoadTestSettings(List<Integer> rates, Duration duration, Duration warmUp, int carts,
+                            Map<String, Integer> mix, int maxOutstanding, Duration reportInterval) {
+        this.rates = rates;
+        this.duration = duration;
+        this.warmUp = warmUp;
+        this.carts = carts;
+        this.mix = mix;
+        this.maxOutstanding = maxOutstanding;
+        this.reportInterval = reportInterval;
+    }
+
+    public static LoadTestSettings fromConfig(Config config) {
+        Config loadTest = config.getConfig("load-test");
+        Map<String, Integer> mix = new LinkedHashMap<>();
+        for (String call : CartLoadGenerator.CALLS) {
+            mix.put(call, loadTest.getInt("mix." + call));
+        }
+        return new LoadTestSettings(
+                loadTest.getIntList("rates"),
+                loadTest.getDuration("duration"),
+                loadTest.getDuration("warm-up"),
+                loadTest.getInt("carts"),
+                mix,
+                loadTest.getInt("max-outstanding"),
+                loadTest.getDuration("report-interval"));
+    }
+
+    LoadTestSettings withRates(List<Integer> rates) {
+        return new LoadTestSettings(rates, duration, warmUp, carts, mix, maxOutstanding, reportInterval);
+    }
+}
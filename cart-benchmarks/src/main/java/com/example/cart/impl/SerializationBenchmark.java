@@ -0,0 +1,107 @@
+package com.example.cart.impl;
+
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.serialization.SerializerWithStringManifest;
+import akka.serialization.jackson.JacksonJsonSerializer;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.NotSerializableException;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing and reading each event and the snapshot of a shopping cart, with the binary {@link CartSerializer} they
+ * are persisted with, and with the Jackson serializer they were persisted with before and that is still used to read
+ * old rows. The checkout event and the snapshot hold 10 items.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"ItemAdded", "ItemRemoved", "ItemQuantityAdjusted", "CheckedOut", "ShoppingCart"})
+    public String type;
+
+    private ActorSystem system;
+    private SerializerWithStringManifest binary;
+    private SerializerWithStringManifest jackson;
+    private Object persisted;
+    private String binaryManifest;
+    private byte[] binaryBytes;
+    private String jacksonManifest;
+    private byte[] jacksonBytes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // application.conf of the cart allows Jackson to read the cart entity's classes
+        system = ActorSystem.create("serialization-benchmark",
+                ConfigFactory.parseString("akka.actor.provider = local").withFallback(ConfigFactory.load()));
+        binary = new CartSerializer();
+        jackson = new JacksonJsonSerializer((ExtendedActorSystem) system, "jackson-json");
+        persisted = persisted(type);
+        binaryManifest = binary.manifest(persisted);
+        binaryBytes = binary.toBinary(persisted);
+        jacksonManifest = jackson.manifest(persisted);
+        jacksonBytes = jackson.toBinary(persisted);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        system.terminate();
+    }
+
+    private static Object persisted(String type) {
+        Instant now = Instant.now();
+        switch (type) {
+            case "ItemAdded":
+                return new CartEntity.ItemAdded(Carts.CART_ID, Carts.itemId(1), 2, now);
+            case "ItemRemoved":
+                return new CartEntity.ItemRemoved(Carts.CART_ID, Carts.itemId(1), now);
+            case "ItemQuantityAdjusted":
+                return new CartEntity.ItemQuantityAdjusted(Carts.CART_ID, Carts.itemId(1), 5, now);
+            case "CheckedOut":
+                return new CartEntity.CheckedOut(Carts.CART_ID, now, Carts.items(10));
+            case "ShoppingCart":
+                return Carts.withItems(10).checkout(now);
+            default:
+                throw new IllegalArgumentException("Unknown type " + type);
+        }
+    }
+
+    @Benchmark
+    public byte[] binaryToBytes() {
+        return binary.toBinary(persisted);
+    }
+
+    @Benchmark
+    public Object binaryFromBytes() throws NotSerializableException {
+        return binary.fromBinary(binaryBytes, binaryManifest);
+    }
+
+    @Benchmark
+    public byte[] jacksonToBytes() {
+        return jackson.toBinary(persisted);
+    }
+
+    @Benchmark
+    public Object jacksonFromBytes() throws NotSerializableException {
+        return jackson.fromBinary(jacksonBytes, jacksonManifest);
+    }
+}
@@ -0,0 +1,61 @@
+package com.example.cart.impl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The state changes of a shopping cart, each of which copies the cart, for carts of 1 to 100 items.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShoppingCartBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int items;
+
+    private CartEntity.ShoppingCart cart;
+    private String itemInCart;
+    private final Instant now = Instant.now();
+
+    @Setup
+    public void setUp() {
+        cart = Carts.withItems(items);
+        itemInCart = Carts.itemId(items / 2);
+    }
+
+    @Benchmark
+    public CartEntity.ShoppingCart addItem() {
+        return cart.updateItem("new-item", 1);
+    }
+
+    @Benchmark
+    public CartEntity.ShoppingCart updateItem() {
+        return cart.updateItem(itemInCart, 7);
+    }
+
+    @Benchmark
+    public CartEntity.ShoppingCart removeItem() {
+        return cart.removeItem(itemInCart);
+    }
+
+    @Benchmark
+    public CartEntity.ShoppingCart checkout() {
+        return cart.checkout(now);
+    }
+}
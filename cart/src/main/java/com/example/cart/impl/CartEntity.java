@@ -4,7 +4,9 @@ import akka.actor.typed.ActorRef;
 import akka.cluster.sharding.typed.javadsl.EntityContext;
 import akka.cluster.sharding.typed.javadsl.EntityTypeKey;
 import akka.persistence.typed.PersistenceId;
+import akka.persistence.typed.RecoveryCompleted;
 import akka.persistence.typed.javadsl.*;
+import com.example.cart.api.CartItemUpdate;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.google.common.base.Preconditions;
@@ -16,13 +18,16 @@ import com.lightbend.lagom.javadsl.persistence.AkkaTaggerAdapter;
 import com.lightbend.lagom.serialization.CompressedJsonable;
 import com.lightbend.lagom.serialization.Jsonable;
 import lombok.Value;
-import org.pcollections.HashTreePMap;
-import org.pcollections.PMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
 public class CartEntity extends EventSourcedBehaviorWithEnforcedReplies<CartEntity.Command, CartEntity.Event, CartEntity.ShoppingCart> {
@@ -30,20 +35,55 @@ public class CartEntity extends EventSourcedBehaviorWithEnforcedReplies<CartEnti
     private final String cartId;
     
     private final Function <Event, Set<String>> tagger;
+
+    private final CartSnapshotSettings snapshotSettings;
+
+    private final RecoveryMetrics recoveryMetrics;
+
+    private final CartMetrics metrics;
+
+    final private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    // recovery starts as soon as the behavior is created, and is over on RecoveryCompleted
+    private final long recoveryStartNanos = System.nanoTime();
+    private boolean recovering = true;
+    private long eventsReplayed = 0;
+
+    // set when the last recovery was slow, so that the next event is snapshotted
+    private boolean snapshotOnNextEvent = false;
+
+    // when the command being handled was taken from the mailbox
+    private long commandStartNanos;
+
+    // the summary of the current state, replaced once an event changes its version
+    private Summary summary;
     
     static EntityTypeKey<Command> ENTITY_TYPE_KEY = EntityTypeKey.create(Command.class, "ShoppingCart");
     
-    private CartEntity(EntityContext<Command> entityContext) {
+    private CartEntity(EntityContext<Command> entityContext, CartSnapshotSettings snapshotSettings, RecoveryMetrics recoveryMetrics,
+                       CartMetrics metrics) {
         // PersistenceId needs a typeHint (or namespace) and entityId, we take then from the EntityContext
         super(PersistenceId.of(entityContext.getEntityTypeKey().name(), entityContext.getEntityId()));
         // we keep a copy of cartId because it's used in the events
         this.cartId = entityContext.getEntityId();
         // tagger is constructed from adapter and needs EntityContext
         this.tagger = AkkaTaggerAdapter.fromLagom(entityContext, Event.TAG);
+        this.snapshotSettings = snapshotSettings;
+        this.recoveryMetrics = recoveryMetrics;
+        this.metrics = metrics;
     }
 
     static CartEntity create(EntityContext<Command> entityContext) {
-        return new CartEntity(entityContext);
+        return create(entityContext, CartSnapshotSettings.DEFAULT, new RecoveryMetrics());
+    }
+
+    static CartEntity create(EntityContext<Command> entityContext, CartSnapshotSettings snapshotSettings, RecoveryMetrics recoveryMetrics) {
+        return create(entityContext, snapshotSettings, recoveryMetrics, new CartMetrics());
+    }
+
+    static CartEntity create(EntityContext<Command> entityContext, CartSnapshotSettings snapshotSettings, RecoveryMetrics recoveryMetrics,
+                             CartMetrics metrics) {
+        return new CartEntity(entityContext, snapshotSettings, recoveryMetrics, metrics);
     }
 
     //
@@ -94,6 +134,19 @@ public class CartEntity extends EventSourcedBehaviorWithEnforcedReplies<CartEnti
         }
     }
 
+    @Value
+    @JsonDeserialize
+    static final class UpdateItems implements Command<Confirmation>, CompressedJsonable {
+        public final List<CartItemUpdate> updates;
+        public final ActorRef<Confirmation> replyTo;
+
+        @JsonCreator
+        UpdateItems(List<CartItemUpdate> updates, ActorRef<Confirmation> replyTo) {
+            this.updates = Preconditions.checkNotNull(updates, "updates");
+            this.replyTo = replyTo;
+        }
+    }
+
     static final class Get implements Command<Summary> {
         private final ActorRef<Summary> replyTo;
 
@@ -123,15 +176,22 @@ public class CartEntity extends EventSourcedBehaviorWithEnforcedReplies<CartEnti
     @JsonDeserialize
     static final class Summary implements Reply {
 
+        public final String shoppingCartId;
         public final Map<String, Integer> items;
         public final boolean checkedOut;
         public final Optional<Instant> checkoutDate;
+        /**
+         * The version of the cart, see {@link ShoppingCart#version}.
+         */
+        public final long version;
 
         @JsonCreator
-        Summary(Map<String, Integer> items, boolean checkedOut, Optional<Instant> checkoutDate) {
+        Summary(String shoppingCartId, Map<String, Integer> items, boolean checkedOut, Optional<Instant> checkoutDate, long version) {
+            this.shoppingCartId = Preconditions.checkNotNull(shoppingCartId, "shoppingCartId");
             this.items = items;
             this.checkedOut = checkedOut;
             this.checkoutDate = checkoutDate;
+            this.version = version;
         }
     }
 
@@ -139,10 +199,19 @@ public class CartEntity extends EventSourcedBehaviorWithEnforcedReplies<CartEnti
     @JsonDeserialize
     static final class Accepted implements Confirmation {
         public final Summary summary;
+        // How long the command handler and the journal write of the events took, zero when nothing was persisted
+        public final long handleNanos;
+        public final long persistNanos;
 
-        @JsonCreator
         Accepted(Summary summary) {
+            this(summary, 0, 0);
+        }
+
+        @JsonCreator
+        Accepted(Summary summary, long handleNanos, long persistNanos) {
             this.summary = summary;
+            this.handleNanos = handleNanos;
+            this.persistNanos = persistNanos;
         }
     }
 
@@ -227,11 +296,28 @@ public class CartEntity extends EventSourcedBehaviorWithEnforcedReplies<CartEnti
 
         public final String shoppingCartId;
         public final Instant eventTime;
+        /**
+         * The items in the cart when it was checked out. Empty for events written before the items were
+         * included, in which case they have to be read from the entity.
+         */
+        public final Optional<ItemQuantities> items;
 
         @JsonCreator
-        CheckedOut(String shoppingCartId, Instant eventTime) {
+        CheckedOut(String shoppingCartId, Instant eventTime, Optional<Map<String, Integer>> items) {
             this.shoppingCartId = Preconditions.checkNotNull(shoppingCartId, "shoppingCartId");
             this.eventTime = eventTime;
+            this.items = items == null ? Optional.empty() : items.map(ItemQuantities::from);
+        }
+
+        CheckedOut(String shoppingCartId, Instant eventTime, Map<String, Integer> items) {
+            this(shoppingCartId, eventTime, Optional.of(items));
+        }
+
+        /**
+         * A checkout event as written before the items were included.
+         */
+        CheckedOut(String shoppingCartId, Instant eventTime) {
+            this(shoppingCartId, eventTime, Optional.empty());
         }
     }
 
@@ -242,23 +328,37 @@ public class CartEntity extends EventSourcedBehaviorWithEnforcedReplies<CartEnti
     @JsonDeserialize
     static final class ShoppingCart implements CompressedJsonable {
 
-        public final PMap<String, Integer> items;
+        public final ItemQuantities items;
         public final Optional<Instant> checkoutDate;
+        /**
+         * How many events changed the cart, which is the sequence number of its last event, so it changes whenever
+         * the cart does. A cart recovered from a snapshot written before the version was kept counts from that
+         * snapshot instead, which still changes with every event and is the same on every recovery.
+         */
+        public final long version;
 
         @JsonCreator
-        ShoppingCart(PMap<String, Integer> items, Instant checkoutDate) {
-            this.items = Preconditions.checkNotNull(items, "items");
+        ShoppingCart(Map<String, Integer> items, Instant checkoutDate, long version) {
+            this.items = ItemQuantities.from(Preconditions.checkNotNull(items, "items"));
             this.checkoutDate = Optional.ofNullable(checkoutDate);
+            this.version = version;
+        }
+
+        /**
+         * A cart as read from a snapshot written before the version was kept.
+         */
+        ShoppingCart(Map<String, Integer> items, Instant checkoutDate) {
+            this(items, checkoutDate, 0);
         }
 
         ShoppingCart removeItem(String itemId) {
-            PMap<String, Integer> newItems = items.minus(itemId);
-            return new ShoppingCart(newItems, null);
+            ItemQuantities newItems = items.minus(itemId);
+            return new ShoppingCart(newItems, null, version + 1);
         }
 
         ShoppingCart updateItem(String itemId, int quantity) {
-            PMap<String, Integer> newItems = items.plus(itemId, quantity);
-            return new ShoppingCart(newItems, null);
+            ItemQuantities newItems = items.plus(itemId, quantity);
+            return new ShoppingCart(newItems, null, version + 1);
         }
 
         boolean isEmpty() {
@@ -270,7 +370,7 @@ public class CartEntity extends EventSourcedBehaviorWithEnforcedReplies<CartEnti
         }
 
         ShoppingCart checkout(Instant when) {
-            return new ShoppingCart(items, when);
+            return new ShoppingCart(items, when, version + 1);
         }
 
         boolean isOpen() {
@@ -281,7 +381,7 @@ public class CartEntity extends EventSourcedBehaviorWithEnforcedReplies<CartEnti
             return this.checkoutDate.isPresent();
         }
 
-        public static final ShoppingCart EMPTY = new ShoppingCart(HashTreePMap.empty(), null);
+        public static final ShoppingCart EMPTY = new ShoppingCart(ItemQuantities.EMPTY, null);
     }
 
     @Override
@@ -291,7 +391,39 @@ public class CartEntity extends EventSourcedBehaviorWithEnforcedReplies<CartEnti
 
     @Override
     public RetentionCriteria retentionCriteria() {
-       return RetentionCriteria.snapshotEvery(100, 2);
+       return RetentionCriteria.snapshotEvery(snapshotSettings.everyNEvents, snapshotSettings.keepNSnapshots);
+    }
+
+    /**
+     * Snapshots in addition to the retention criteria: when the cart is checked out, since it won't change after
+     * that, and with the first event after a slow recovery, so that the next recovery of this cart is fast.
+     */
+    @Override
+    public boolean shouldSnapshot(ShoppingCart state, Event event, long sequenceNr) {
+        if (snapshotOnNextEvent) {
+            snapshotOnNextEvent = false;
+            return true;
+        }
+        return snapshotSettings.onCheckout && event instanceof CheckedOut;
+    }
+
+    @Override
+    public SignalHandler<ShoppingCart> signalHandler() {
+        return newSignalHandlerBuilder()
+                .onSignal(RecoveryCompleted.instance(), this::onRecoveryCompleted)
+                .build();
+    }
+
+    private void onRecoveryCompleted(ShoppingCart shoppingCart) {
+        recovering = false;
+        long recoveryNanos = System.nanoTime() - recoveryStartNanos;
+        boolean slow = snapshotSettings.isSlowRecovery(recoveryNanos, eventsReplayed);
+        recoveryMetrics.recordRecovery(recoveryNanos, eventsReplayed, slow);
+        if (slow) {
+            logger.debug("Slow recovery of CartID: " + cartId + " (" + eventsReplayed + " events in "
+                    + TimeUnit.NANOSECONDS.toMillis(recoveryNanos) + " ms), snapshotting with next event");
+            snapshotOnNextEvent = true;
+        }
     }
 
     @Override
@@ -306,16 +438,23 @@ public class CartEntity extends EventSourcedBehaviorWithEnforcedReplies<CartEnti
                 .onCommand(AddItem.class, this::onAddItem)
                 .onCommand(RemoveItem.class, this::onRemoveItem)
                 .onCommand(AdjustItemQuantity.class, this::onAdjustItemQuantity)
+                .onCommand(UpdateItems.class, this::onUpdateItems)
                 .onCommand(Checkout.class, this::onCheckout);
 
         builder.forState(ShoppingCart::isCheckedOut)
                 .onCommand(AddItem.class, cmd -> Effect().reply(cmd.replyTo, new Rejected("Cannot add an item to a checked-out cart")))
                 .onCommand(RemoveItem.class, cmd -> Effect().reply(cmd.replyTo, new Rejected("Cannot remove an item to a checked-out cart")))
                 .onCommand(AdjustItemQuantity.class, cmd -> Effect().reply(cmd.replyTo, new Rejected("Cannot adjust item quantity in a checked-out cart")))
+                .onCommand(UpdateItems.class, cmd -> Effect().reply(cmd.replyTo, new Rejected("Cannot update items in a checked-out cart")))
                 .onCommand(Checkout.class, cmd -> Effect().reply(cmd.replyTo, new Rejected("Cannot checkout a checked-out cart")));
 
         builder.forAnyState().onCommand(Get.class, this::onGet);
-        return builder.build();
+        CommandHandlerWithReply<Command, Event, ShoppingCart> handler = builder.build();
+
+        return (shoppingCart, cmd) -> {
+            commandStartNanos = System.nanoTime();
+            return handler.apply(shoppingCart, cmd);
+        };
     }
 
     private ReplyEffect<Event, ShoppingCart> onAddItem(ShoppingCart shoppingCart, AddItem cmd) {
@@ -324,20 +463,18 @@ public class CartEntity extends EventSourcedBehaviorWithEnforcedReplies<CartEnti
         } else if (cmd.getQuantity() <= 0) {
             return Effect().reply(cmd.replyTo, new Rejected("Quantity must be greater than zero"));
         } else {
-            return Effect()
-                    .persist(new ItemAdded(cartId, cmd.getItemId(), cmd.getQuantity(), Instant.now()))
-                    .thenReply(cmd.replyTo, s -> new Accepted(toSummary(s)));
+            return accept("AddItem", Effect()
+                    .persist(new ItemAdded(cartId, cmd.getItemId(), cmd.getQuantity(), Instant.now())), cmd.replyTo);
         }
     }
 
     private ReplyEffect<Event, ShoppingCart> onRemoveItem(ShoppingCart shoppingCart, RemoveItem cmd) {
         if (shoppingCart.hasItem(cmd.getItemId())) {
-            return Effect()
-                    .persist(new ItemRemoved(cartId, cmd.getItemId(), Instant.now()))
-                    .thenReply(cmd.replyTo, updatedShoppingCart -> new Accepted(toSummary(updatedShoppingCart)));
+            return accept("RemoveItem", Effect()
+                    .persist(new ItemRemoved(cartId, cmd.getItemId(), Instant.now())), cmd.replyTo);
         } else {
             // Remove is idempotent, so we can just return the summary here
-            return Effect().reply(cmd.replyTo, new Accepted(toSummary(shoppingCart)));
+            return Effect().reply(cmd.replyTo, new Accepted(summaryOf(shoppingCart)));
         }
     }
 
@@ -345,38 +482,116 @@ public class CartEntity extends EventSourcedBehaviorWithEnforcedReplies<CartEnti
         if (cmd.getQuantity() <= 0) {
             return Effect().reply(cmd.replyTo, new Rejected("Quantity must be greater than zero"));
         } else if (shoppingCart.hasItem(cmd.getItemId())) {
-            return Effect()
-                    .persist(new ItemQuantityAdjusted(cartId, cmd.getItemId(), cmd.getQuantity(), Instant.now()))
-                    .thenReply(cmd.replyTo, s -> new Accepted(toSummary(s)));
+            return accept("AdjustItemQuantity", Effect()
+                    .persist(new ItemQuantityAdjusted(cartId, cmd.getItemId(), cmd.getQuantity(), Instant.now())), cmd.replyTo);
         } else {
             return Effect().reply(cmd.replyTo, new Rejected("Item not found in shopping cart"));
         }
     }
 
+    /**
+     * Validates every update against the cart as it would be after the preceding updates, and persists
+     * all resulting events in a single write. If any update is invalid, nothing is persisted.
+     */
+    private ReplyEffect<Event, ShoppingCart> onUpdateItems(ShoppingCart shoppingCart, UpdateItems cmd) {
+        List<Event> events = new ArrayList<>(cmd.getUpdates().size());
+        ShoppingCart working = shoppingCart;
+        Instant now = Instant.now();
+        for (CartItemUpdate update : cmd.getUpdates()) {
+            String itemId = update.getItemId();
+            switch (update.getOperation()) {
+                case ADD:
+                    if (working.hasItem(itemId)) {
+                        return Effect().reply(cmd.replyTo, new Rejected("Item " + itemId + " was already added to this shopping cart"));
+                    } else if (update.getQuantity() <= 0) {
+                        return Effect().reply(cmd.replyTo, new Rejected("Quantity must be greater than zero for item " + itemId));
+                    }
+                    events.add(new ItemAdded(cartId, itemId, update.getQuantity(), now));
+                    working = working.updateItem(itemId, update.getQuantity());
+                    break;
+                case REMOVE:
+                    // Remove is idempotent, so removing an absent item is not an error
+                    if (working.hasItem(itemId)) {
+                        events.add(new ItemRemoved(cartId, itemId, now));
+                        working = working.removeItem(itemId);
+                    }
+                    break;
+                case ADJUST:
+                    if (update.getQuantity() <= 0) {
+                        return Effect().reply(cmd.replyTo, new Rejected("Quantity must be greater than zero for item " + itemId));
+                    } else if (!working.hasItem(itemId)) {
+                        return Effect().reply(cmd.replyTo, new Rejected("Item " + itemId + " not found in shopping cart"));
+                    }
+                    events.add(new ItemQuantityAdjusted(cartId, itemId, update.getQuantity(), now));
+                    working = working.updateItem(itemId, update.getQuantity());
+                    break;
+            }
+        }
+
+        if (events.isEmpty()) {
+            return Effect().reply(cmd.replyTo, new Accepted(summaryOf(shoppingCart)));
+        } else {
+            return accept("UpdateItems", Effect().persist(events), cmd.replyTo);
+        }
+    }
+
     private ReplyEffect<Event, ShoppingCart> onGet(ShoppingCart shoppingCart, Get cmd) {
-        return Effect().reply(cmd.replyTo, toSummary(shoppingCart));
+        return Effect().reply(cmd.replyTo, summaryOf(shoppingCart));
     }
 
     private ReplyEffect<Event, ShoppingCart> onCheckout(ShoppingCart shoppingCart, Checkout cmd) {
         if (shoppingCart.isEmpty()) {
             return Effect().reply(cmd.replyTo, new Rejected("Cannot checkout empty shopping cart"));
         } else {
-            return Effect().persist(new CheckedOut(cartId, Instant.now())).thenReply(cmd.replyTo, s -> new Accepted(toSummary(s)));
+            return accept("Checkout", Effect().persist(new CheckedOut(cartId, Instant.now(), shoppingCart.getItems())), cmd.replyTo);
         }
     }
 
+    /**
+     * Accepts a command once its events are persisted, with how long handling it and writing them took.
+     */
+    private ReplyEffect<Event, ShoppingCart> accept(String command, EffectBuilder<Event, ShoppingCart> persist,
+                                                    ActorRef<Confirmation> replyTo) {
+        // The events are written once the command handler returns
+        long handled = System.nanoTime();
+        long handleNanos = handled - commandStartNanos;
+        return persist.thenReply(replyTo, s -> {
+            long persistNanos = System.nanoTime() - handled;
+            metrics.recordPersist(command, persistNanos);
+            return new Accepted(summaryOf(s), handleNanos, persistNanos);
+        });
+    }
+
     @Override
     public EventHandler<ShoppingCart, Event> eventHandler() {
-        return newEventHandlerBuilder()
+        EventHandler<ShoppingCart, Event> handler = newEventHandlerBuilder()
                 .forAnyState()
                 .onEvent(ItemAdded.class, (shoppingCart, evt) -> shoppingCart.updateItem(evt.getItemId(), evt.getQuantity()))
                 .onEvent(ItemRemoved.class, (shoppingCart, evt) -> shoppingCart.removeItem(evt.getItemId()))
                 .onEvent(ItemQuantityAdjusted.class, (shoppingCart, evt) -> shoppingCart.updateItem(evt.getItemId(), evt.getQuantity()))
                 .onEvent(CheckedOut.class, (shoppingCart, evt) -> shoppingCart.checkout(evt.getEventTime()))
                 .build();
+
+        return (shoppingCart, evt) -> {
+            if (recovering) {
+                eventsReplayed++;
+            }
+            return handler.apply(shoppingCart, evt);
+        };
+    }
+
+    /**
+     * The summary of a state of this cart, which is only built again once the cart has changed.
+     */
+    private Summary summaryOf(ShoppingCart shoppingCart) {
+        if (summary == null || summary.version != shoppingCart.version) {
+            summary = toSummary(cartId, shoppingCart);
+        }
+        return summary;
     }
 
-    private Summary toSummary(ShoppingCart shoppingCart) {
-        return new Summary(shoppingCart.getItems(), shoppingCart.isCheckedOut(), shoppingCart.getCheckoutDate());
+    static Summary toSummary(String cartId, ShoppingCart shoppingCart) {
+        return new Summary(cartId, shoppingCart.getItems(), shoppingCart.isCheckedOut(), shoppingCart.getCheckoutDate(),
+                shoppingCart.getVersion());
     }
 }
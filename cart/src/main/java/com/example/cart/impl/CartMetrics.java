@@ -0,0 +1,241 @@
+package com.example.cart.impl;
+
+import akka.actor.ActorSystem;
+import akka.actor.typed.javadsl.Adapter;
+import akka.actor.typed.javadsl.AskPattern;
+import akka.cluster.sharding.ShardRegion;
+import akka.cluster.sharding.typed.ClusterShardingQuery;
+import akka.cluster.sharding.typed.GetShardRegionState;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
+import com.lightbend.lagom.javadsl.persistence.jdbc.JdbcSession;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.jvm.JvmGcMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmMemoryMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmThreadMetrics;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * The metrics of the cart service on this node, served in the Prometheus text format by
+ * {@link CartServiceImpl#metrics()}.
+ * <p>
+ * The latencies of the asks to the cart entities, which include sharding and the reply, and of the journal writes
+ * of the commands that persist events, are recorded as they happen, in histograms per command. The counters of
+ * {@link RecoveryMetrics}, {@link ReportCache} and {@link CartViewCache} are read when the metrics are scraped. So are the cart entities
+ * running in each shard of this node, and how many events of each tag the reports are behind the journal, which are
+ * queried then rather than tracked.
+ */
+@Singleton
+public class CartMetrics {
+
+    // Where the histogram buckets of the latencies start and end
+    private static final Duration MIN_EXPECTED_LATENCY = Duration.ofMillis(1);
+    private static final Duration MAX_EXPECTED_LATENCY = Duration.ofSeconds(10);
+    private static final Duration QUERY_TIMEOUT = Duration.ofSeconds(5);
+    private static final String[] ASK_OUTCOMES = {"replied", "timeout", "failed"};
+    private static final int REPLIED = 0;
+    private static final int TIMEOUT = 1;
+    private static final int FAILED = 2;
+
+    // The events of a tag after the offset the report processor stored for it. A cart event has a single tag,
+    // so the tags column holds exactly that tag.
+    private static final String SELECT_REPORT_LAG =
+            "SELECT o.tag, (SELECT count(*) FROM journal j WHERE j.ordering > o.sequence_offset AND j.tags = o.tag) " +
+            "FROM read_side_offsets o WHERE o.read_side_id = ?";
+
+    private final PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+
+    private final ClusterSharding clusterSharding;
+    private final ActorSystem system;
+    private final JdbcSession jdbcSession;
+
+    // Updated on every scrape, and read by the gauges registered for them
+    private final ConcurrentHashMap<String, AtomicLong> shardEntities = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicLong> reportLag = new ConcurrentHashMap<>();
+    // The timers of each command, registered on its first call rather than looked up in the registry on every one.
+    // The ask timers are indexed by outcome.
+    private final ConcurrentHashMap<String, Timer[]> askTimers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Timer> persistTimers = new ConcurrentHashMap<>();
+
+    final private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    /**
+     * Metrics that are recorded but not served, for cart entities created outside of the service.
+     */
+    CartMetrics() {
+        this.clusterSharding = null;
+        this.system = null;
+        this.jdbcSession = null;
+    }
+
+    @Inject
+    public CartMetrics(ClusterSharding clusterSharding, ActorSystem system, JdbcSession jdbcSession,
+                       RecoveryMetrics recoveryMetrics, ReportCache reportCache, CartViewCache viewCache) {
+        this.clusterSharding = clusterSharding;
+        this.system = system;
+        this.jdbcSession = jdbcSession;
+
+        FunctionTimer.builder("cart.recovery", recoveryMetrics,
+                RecoveryMetrics::getRecoveries, RecoveryMetrics::getTotalRecoveryTimeMillis, TimeUnit.MILLISECONDS)
+                .description("Recoveries of cart entities, and the time they took")
+                .register(registry);
+        TimeGauge.builder("cart.recovery.max", recoveryMetrics, TimeUnit.MILLISECONDS,
+                RecoveryMetrics::getMaxRecoveryTimeMillis)
+                .description("The longest recovery of a cart entity")
+                .register(registry);
+        FunctionCounter.builder("cart.recovery.slow", recoveryMetrics, RecoveryMetrics::getSlowRecoveries)
+                .description("Recoveries slow enough to snapshot the cart with its next event")
+                .register(registry);
+        FunctionCounter.builder("cart.recovery.events", recoveryMetrics, RecoveryMetrics::getEventsReplayed)
+                .description("Events replayed by the recoveries of cart entities")
+                .register(registry);
+
+        FunctionCounter.builder("cart.report.cache.hits", reportCache, ReportCache::getHits).register(registry);
+        FunctionCounter.builder("cart.report.cache.misses", reportCache, ReportCache::getMisses).register(registry);
+        FunctionCounter.builder("cart.report.cache.evictions", reportCache, ReportCache::getEvictions).register(registry);
+        Gauge.builder("cart.report.cache.size", reportCache, ReportCache::getSize).register(registry);
+
+        FunctionCounter.builder("cart.view.cache.hits", viewCache, CartViewCache::getHits).register(registry);
+        FunctionCounter.builder("cart.view.cache.misses", viewCache, CartViewCache::getMisses).register(registry);
+        Gauge.builder("cart.view.cache.size", viewCache, CartViewCache::getSize).register(registry);
+
+        new JvmMemoryMetrics().bindTo(registry);
+        new JvmGcMetrics().bindTo(registry);
+        new JvmThreadMetrics().bindTo(registry);
+    }
+
+    /**
+     * Asks a cart entity, recording how long the reply took, or that it timed out or failed.
+     */
+    <T> CompletionStage<T> timeAsk(String command, Supplier<CompletionStage<T>> ask) {
+        long start = System.nanoTime();
+        return ask.get().whenComplete((reply, error) -> {
+            Timer[] timers = askTimers.get(command);
+            if (timers == null) {
+                timers = askTimers.computeIfAbsent(command, this::registerAskTimers);
+            }
+            timers[outcome(error)].record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        });
+    }
+
+    private Timer[] registerAskTimers(String command) {
+        Timer[] timers = new Timer[ASK_OUTCOMES.length];
+        for (int i = 0; i < ASK_OUTCOMES.length; i++) {
+            timers[i] = Timer.builder("cart.ask")
+                    .description("Asks to the cart entities, from sending the command to receiving the reply")
+                    .tags("command", command, "outcome", ASK_OUTCOMES[i])
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(MIN_EXPECTED_LATENCY)
+                    .maximumExpectedValue(MAX_EXPECTED_LATENCY)
+                    .register(registry);
+        }
+        return timers;
+    }
+
+    private static int outcome(Throwable error) {
+        Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+        if (cause == null) {
+            return REPLIED;
+        }
+        return cause instanceof TimeoutException ? TIMEOUT : FAILED;
+    }
+
+    /**
+     * Records how long the journal took to write the events of a command.
+     */
+    void recordPersist(String command, long nanos) {
+        Timer timer = persistTimers.get(command);
+        if (timer == null) {
+            timer = persistTimers.computeIfAbsent(command, this::registerPersistTimer);
+        }
+        timer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private Timer registerPersistTimer(String command) {
+        return Timer.builder("cart.persist")
+                .description("Journal writes of the events of cart commands")
+                .tag("command", command)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(MIN_EXPECTED_LATENCY)
+                .maximumExpectedValue(MAX_EXPECTED_LATENCY)
+                .register(registry);
+    }
+
+    /**
+     * Updates the metrics that are queried rather than tracked, and renders all of them.
+     */
+    CompletionStage<String> scrape() {
+        CompletableFuture<?> entities = updateShardEntities().toCompletableFuture();
+        CompletableFuture<?> lag = updateReportLag().toCompletableFuture();
+        return CompletableFuture.allOf(entities, lag).handle((done, error) -> {
+            if (error != null) {
+                // Serves the values from the previous scrape, rather than no metrics at all
+                logger.warn("Couldn't update the cart metrics", error);
+            }
+            return registry.scrape();
+        });
+    }
+
+    private CompletionStage<?> updateShardEntities() {
+        return AskPattern.<ClusterShardingQuery, ShardRegion.CurrentShardRegionState>ask(clusterSharding.shardState(),
+                replyTo -> new GetShardRegionState(CartEntity.ENTITY_TYPE_KEY, replyTo),
+                QUERY_TIMEOUT, Adapter.toTyped(system).scheduler())
+                .thenAccept(state -> {
+                    Set<String> shards = new HashSet<>();
+                    for (ShardRegion.ShardState shard : state.getShards()) {
+                        shards.add(shard.shardId());
+                        gauge(shardEntities, "cart.entities", "shard", shard.shardId()).set(shard.getEntityIds().size());
+                    }
+                    // Shards moved to other nodes keep their gauge, with no entities here
+                    shardEntities.forEach((shardId, entities) -> {
+                        if (!shards.contains(shardId)) {
+                            entities.set(0);
+                        }
+                    });
+                });
+    }
+
+    private CompletionStage<?> updateReportLag() {
+        return jdbcSession.withConnection(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(SELECT_REPORT_LAG)) {
+                statement.setString(1, CartReportProcessor.READ_SIDE_ID);
+                try (ResultSet rows = statement.executeQuery()) {
+                    while (rows.next()) {
+                        gauge(reportLag, "cart.report.lag", "tag", rows.getString(1)).set(rows.getLong(2));
+                    }
+                }
+            }
+            return null;
+        });
+    }
+
+    private AtomicLong gauge(ConcurrentHashMap<String, AtomicLong> gauges, String name, String tag, String value) {
+        return gauges.computeIfAbsent(value, key -> {
+            AtomicLong gauge = new AtomicLong();
+            Gauge.builder(name, gauge, AtomicLong::get).tag(tag, value).register(registry);
+            return gauge;
+        });
+    }
+}
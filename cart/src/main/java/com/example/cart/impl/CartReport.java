@@ -2,10 +2,18 @@ package com.example.cart.impl;
 
 import javax.persistence.Entity;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
 import java.time.Instant;
 import javax.validation.constraints.NotNull;
 
 @Entity
+@Table(indexes = {
+        // For the keyset-paginated range queries of ReportRepository.findPage. The names are the ones Postgres gives
+        // these indexes, so they survive CartReportRebuild copying and renaming them.
+        @Index(name = "cartreport_creationdate_id_idx", columnList = "creationDate, id"),
+        @Index(name = "cartreport_checkoutdate_id_idx", columnList = "checkoutDate, id")
+})
 public class CartReport {
     /**
      * The ID of the shopping cart.
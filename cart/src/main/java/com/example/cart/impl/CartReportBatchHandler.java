@@ -0,0 +1,193 @@
+package com.example.cart.impl;
+
+import akka.Done;
+import akka.japi.Pair;
+import akka.stream.javadsl.Flow;
+import com.lightbend.lagom.javadsl.persistence.AggregateEventTag;
+import com.lightbend.lagom.javadsl.persistence.Offset;
+import com.lightbend.lagom.javadsl.persistence.ReadSideProcessor.ReadSideHandler;
+import com.lightbend.lagom.javadsl.persistence.jdbc.JdbcSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Read-side handler for the cart reports that applies events in batches.
+ * <p>
+ * Events are grouped into batches of up to <code>maxEvents</code>, waiting at most <code>maxDelay</code> for a batch
+ * to fill up. Each batch is written with JDBC batch upserts and the offset is stored in the same transaction, so a
+ * batch is applied exactly once. The resulting reports are the same as when events are applied one at a time.
+ * Once a batch is committed, the reports it changed are invalidated in the {@link ReportCache}.
+ */
+class CartReportBatchHandler extends ReadSideHandler<CartEntity.Event> {
+
+    private static final String INSERT_REPORT =
+            "INSERT INTO CartReport (id, creationDate) VALUES (?, ?) ON CONFLICT (id) DO NOTHING";
+    private static final String SET_CHECKOUT_DATE =
+            "UPDATE CartReport SET checkoutDate = ? WHERE id = ?";
+
+    // The offset table used by Lagom's read-sides, see schemas/shopping-cart.sql
+    private static final String SELECT_OFFSET =
+            "SELECT sequence_offset, time_uuid_offset FROM read_side_offsets WHERE read_side_id = ? AND tag = ?";
+    private static final String UPSERT_OFFSET =
+            "INSERT INTO read_side_offsets (read_side_id, tag, sequence_offset, time_uuid_offset) VALUES (?, ?, ?, ?) " +
+            "ON CONFLICT (read_side_id, tag) DO UPDATE " +
+            "SET sequence_offset = EXCLUDED.sequence_offset, time_uuid_offset = EXCLUDED.time_uuid_offset";
+
+    private final JdbcSession jdbcSession;
+    private final String readSideId;
+    private final int maxEvents;
+    private final Duration maxDelay;
+    private final Runnable createSchema;
+    private final ReportCache reportCache;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    // set in prepare, before handle is called
+    private String tag;
+
+    CartReportBatchHandler(JdbcSession jdbcSession, String readSideId, int maxEvents, Duration maxDelay, Runnable createSchema,
+                           ReportCache reportCache) {
+        this.jdbcSession = jdbcSession;
+        this.readSideId = readSideId;
+        this.maxEvents = maxEvents;
+        this.maxDelay = maxDelay;
+        this.createSchema = createSchema;
+        this.reportCache = reportCache;
+    }
+
+    @Override
+    public CompletionStage<Done> globalPrepare() {
+        return jdbcSession.withConnection(connection -> {
+            createSchema.run();
+            return Done.getInstance();
+        });
+    }
+
+    @Override
+    public CompletionStage<Offset> prepare(AggregateEventTag<CartEntity.Event> tag) {
+        this.tag = tag.tag();
+        return jdbcSession.withConnection(connection -> readOffset(connection, readSideId, this.tag));
+    }
+
+    @Override
+    public Flow<Pair<CartEntity.Event, Offset>, Done, ?> handle() {
+        return Flow.<Pair<CartEntity.Event, Offset>>create()
+                .groupedWithin(maxEvents, maxDelay)
+                .mapAsync(1, batch -> jdbcSession.withTransaction(connection -> applyBatch(connection, batch))
+                        .thenApply(changedCartIds -> {
+                            reportCache.invalidate(changedCartIds);
+                            return Done.getInstance();
+                        }));
+    }
+
+    /**
+     * @return the IDs of the carts whose reports may have changed
+     */
+    private Set<String> applyBatch(Connection connection, List<Pair<CartEntity.Event, Offset>> batch) throws SQLException {
+        // Only the first ItemAdded of a cart sets its creation date, and a cart is only checked out once
+        Map<String, Instant> creationDates = new LinkedHashMap<>();
+        Map<String, Instant> checkoutDates = new LinkedHashMap<>();
+        for (Pair<CartEntity.Event, Offset> eventAndOffset : batch) {
+            CartEntity.Event event = eventAndOffset.first();
+            if (event instanceof CartEntity.ItemAdded) {
+                CartEntity.ItemAdded evt = (CartEntity.ItemAdded) event;
+                creationDates.putIfAbsent(evt.shoppingCartId, evt.eventTime);
+            } else if (event instanceof CartEntity.CheckedOut) {
+                CartEntity.CheckedOut evt = (CartEntity.CheckedOut) event;
+                checkoutDates.put(evt.shoppingCartId, evt.eventTime);
+            }
+        }
+        logger.debug("Applying batch of " + batch.size() + " events: " + creationDates.size() + " new reports, "
+                + checkoutDates.size() + " checkouts");
+
+        // A cart's first ItemAdded always comes before its CheckedOut, so running all inserts before all updates
+        // gives the same result as applying the events in order
+        if (!creationDates.isEmpty()) {
+            try (PreparedStatement statement = connection.prepareStatement(INSERT_REPORT)) {
+                for (Map.Entry<String, Instant> report : creationDates.entrySet()) {
+                    statement.setString(1, report.getKey());
+                    statement.setTimestamp(2, Timestamp.from(report.getValue()));
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+        }
+
+        if (!checkoutDates.isEmpty()) {
+            try (PreparedStatement statement = connection.prepareStatement(SET_CHECKOUT_DATE)) {
+                for (Map.Entry<String, Instant> report : checkoutDates.entrySet()) {
+                    statement.setTimestamp(1, Timestamp.from(report.getValue()));
+                    statement.setString(2, report.getKey());
+                    statement.addBatch();
+                }
+                int[] updated = statement.executeBatch();
+                int i = 0;
+                for (String cartId : checkoutDates.keySet()) {
+                    if (updated[i++] == 0) {
+                        throw new RuntimeException("Didn't find cart for checkout. CartID: " + cartId);
+                    }
+                }
+            }
+        }
+
+        writeOffset(connection, readSideId, tag, batch.get(batch.size() - 1).second());
+
+        Set<String> changedCartIds = new HashSet<>(creationDates.keySet());
+        changedCartIds.addAll(checkoutDates.keySet());
+        return changedCartIds;
+    }
+
+    static Offset readOffset(Connection connection, String readSideId, String tag) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(SELECT_OFFSET)) {
+            statement.setString(1, readSideId);
+            statement.setString(2, tag);
+            try (ResultSet rs = statement.executeQuery()) {
+                if (rs.next()) {
+                    long sequenceOffset = rs.getLong(1);
+                    if (!rs.wasNull()) {
+                        return Offset.sequence(sequenceOffset);
+                    }
+                    String timeUuidOffset = rs.getString(2);
+                    if (timeUuidOffset != null) {
+                        return Offset.timeBasedUUID(UUID.fromString(timeUuidOffset));
+                    }
+                }
+                return Offset.NONE;
+            }
+        }
+    }
+
+    static void writeOffset(Connection connection, String readSideId, String tag, Offset offset) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(UPSERT_OFFSET)) {
+            statement.setString(1, readSideId);
+            statement.setString(2, tag);
+            if (offset instanceof Offset.Sequence) {
+                statement.setLong(3, ((Offset.Sequence) offset).value());
+                statement.setNull(4, Types.CHAR);
+            } else if (offset instanceof Offset.TimeBasedUUID) {
+                statement.setNull(3, Types.BIGINT);
+                statement.setString(4, ((Offset.TimeBasedUUID) offset).value().toString());
+            } else {
+                statement.setNull(3, Types.BIGINT);
+                statement.setNull(4, Types.CHAR);
+            }
+            statement.executeUpdate();
+        }
+    }
+}
@@ -3,7 +3,10 @@ package com.example.cart.impl;
 import com.google.common.collect.ImmutableMap;
 import com.lightbend.lagom.javadsl.persistence.AggregateEventTag;
 import com.lightbend.lagom.javadsl.persistence.ReadSideProcessor;
+import com.lightbend.lagom.javadsl.persistence.jdbc.JdbcSession;
 import com.lightbend.lagom.javadsl.persistence.jpa.JpaReadSide;
+import com.typesafe.config.Config;
+import org.hibernate.Session;
 import org.pcollections.PSequence;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,25 +14,40 @@ import org.slf4j.LoggerFactory;
 import javax.inject.Inject;
 import javax.persistence.EntityManager;
 import javax.persistence.Persistence;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import java.util.Collections;
 
 public class CartReportProcessor extends ReadSideProcessor<CartEntity.Event> {
 
+    static final String READ_SIDE_ID = "shopping-cart-report";
+
     private final JpaReadSide jpaReadSide;
+    private final JdbcSession jdbcSession;
+    private final Config batchConfig;
+    private final ReportCache reportCache;
     final private Logger logger = LoggerFactory.getLogger(this.getClass());
 
     @Inject
-    public CartReportProcessor(JpaReadSide jpaReadSide) {
+    public CartReportProcessor(JpaReadSide jpaReadSide, JdbcSession jdbcSession, Config config, ReportCache reportCache) {
         this.jpaReadSide = jpaReadSide;
+        this.jdbcSession = jdbcSession;
+        this.batchConfig = config.getConfig("cart.report.batch");
+        this.reportCache = reportCache;
     }
 
     @Override
     public ReadSideHandler<CartEntity.Event> buildHandler() {
-        return jpaReadSide.<CartEntity.Event>builder("shopping-cart-report").setGlobalPrepare(this::createSchema)
+        if (batchConfig.getBoolean("enabled")) {
+            return new CartReportBatchHandler(jdbcSession, READ_SIDE_ID,
+                    batchConfig.getInt("max-events"), batchConfig.getDuration("max-delay"), CartReportProcessor::createSchema, reportCache);
+        }
+        return jpaReadSide.<CartEntity.Event>builder(READ_SIDE_ID).setGlobalPrepare(ignored -> createSchema())
                 .setEventHandler(CartEntity.ItemAdded.class, this::createReport)
                 .setEventHandler(CartEntity.CheckedOut.class, this::addCheckoutTime).build();
     }
 
-    private void createSchema(@SuppressWarnings("unused") EntityManager ignored) {
+    static void createSchema() {
         Persistence.generateSchema("default", ImmutableMap.of("hibernate.hbm2ddl.auto", "update"));
     }
 
@@ -42,6 +60,7 @@ public class CartReportProcessor extends ReadSideProcessor<CartEntity.Event> {
             report.setId(evt.shoppingCartId);
             report.setCreationDate(evt.eventTime);
             entityManager.persist(report);
+            invalidateOnCommit(entityManager, evt.shoppingCartId);
         }
     }
 
@@ -53,11 +72,28 @@ public class CartReportProcessor extends ReadSideProcessor<CartEntity.Event> {
             logger.debug("Adding checkout time (" + evt.eventTime + ") for CartID: " + evt.shoppingCartId);
             report.setCheckoutDate(evt.eventTime);
             entityManager.persist(report);
+            invalidateOnCommit(entityManager, evt.shoppingCartId);
         } else {
             throw new RuntimeException("Didn't find cart for checkout. CartID: " + evt.shoppingCartId);
         }
     }
 
+    private void invalidateOnCommit(EntityManager entityManager, String cartId) {
+        // Invalidating before the commit would let a concurrent read cache the report as it was before
+        entityManager.unwrap(Session.class).getTransaction().registerSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED) {
+                    reportCache.invalidate(Collections.singleton(cartId));
+                }
+            }
+        });
+    }
+
     private CartReport findReport(EntityManager entityManager, String cartId) {
         return entityManager.find(CartReport.class, cartId);
     }
@@ -0,0 +1,236 @@
+package com.example.cart.impl;
+
+import akka.Done;
+import akka.actor.ActorSystem;
+import akka.persistence.jdbc.query.javadsl.JdbcReadJournal;
+import akka.persistence.query.EventEnvelope;
+import akka.persistence.query.PersistenceQuery;
+import akka.persistence.query.Sequence;
+import akka.stream.Materializer;
+import com.lightbend.lagom.javadsl.persistence.AggregateEventTag;
+import com.lightbend.lagom.javadsl.persistence.Offset;
+import com.lightbend.lagom.javadsl.persistence.jdbc.JdbcSession;
+import com.lightbend.lagom.javadsl.projection.Projections;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Rebuilds the cart reports from the journal, without replaying the events through the live processor.
+ * <p>
+ * The live processor is stopped, and the events of all tags are read in parallel and folded into one report row
+ * per cart. The rows are loaded with <code>COPY</code> into a shadow table, which replaces the report table in the
+ * same transaction that moves the processor's offsets to the last events read. The processor is then started again
+ * and carries on from those offsets.
+ */
+@Singleton
+public class CartReportRebuild {
+
+    // The name the processor's workers are registered under, see ReadSideProcessor.readSideName
+    static final String PROJECTION_NAME = akka.event.Logging.simpleName(CartReportProcessor.class);
+
+    private static final String SHADOW_TABLE = "cartreport_rebuild";
+    private static final String OLD_TABLE = "cartreport_old";
+
+    // How much CSV is sent to COPY at a time
+    private static final int COPY_CHUNK_CHARS = 64 * 1024;
+
+    private final ActorSystem system;
+    private final Materializer materializer;
+    private final JdbcSession jdbcSession;
+    private final Projections projections;
+    private final ReportCache reportCache;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    final private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Inject
+    public CartReportRebuild(ActorSystem system, Materializer materializer, JdbcSession jdbcSession, Projections projections,
+                             ReportCache reportCache) {
+        this.system = system;
+        this.materializer = materializer;
+        this.jdbcSession = jdbcSession;
+        this.projections = projections;
+        this.reportCache = reportCache;
+    }
+
+    /**
+     * Rebuilds the reports. Completes once the new reports are in place and the processor has been started again.
+     *
+     * @return <code>Optional.empty()</code> if a rebuild is already running
+     */
+    public Optional<CompletionStage<Done>> rebuild() {
+        if (!running.compareAndSet(false, true)) {
+            return Optional.empty();
+        }
+        long start = System.nanoTime();
+        logger.info("Rebuilding cart reports, stopping " + PROJECTION_NAME);
+        // Events the workers are still applying while they stop either end up in the journal read below or after
+        // the new offsets, and both handlers are idempotent, so they don't need to be waited for
+        projections.stopAllWorkers(PROJECTION_NAME);
+
+        JdbcReadJournal readJournal = PersistenceQuery.get(system)
+                .getReadJournalFor(JdbcReadJournal.class, JdbcReadJournal.Identifier());
+        List<CompletableFuture<TagRows>> tags = new ArrayList<>();
+        for (AggregateEventTag<CartEntity.Event> tag : CartEntity.Event.TAG.allTags()) {
+            tags.add(readTag(readJournal, tag.tag()).toCompletableFuture());
+        }
+
+        CompletionStage<Done> result = CompletableFuture.allOf(tags.toArray(new CompletableFuture[0]))
+                .thenCompose(ignored -> jdbcSession.withTransaction(connection -> {
+                    List<TagRows> rows = new ArrayList<>(tags.size());
+                    for (CompletableFuture<TagRows> tag : tags) {
+                        rows.add(tag.join());
+                    }
+                    replaceReports(connection, rows);
+                    return Done.getInstance();
+                }))
+                .whenComplete((done, error) -> {
+                    running.set(false);
+                    reportCache.invalidateAll();
+                    projections.startAllWorkers(PROJECTION_NAME);
+                    if (error != null) {
+                        logger.error("Rebuilding cart reports failed, the reports were left as they were", error);
+                    } else {
+                        logger.info("Rebuilt cart reports in " + (System.nanoTime() - start) / 1000000 + " ms");
+                    }
+                });
+        return Optional.of(result);
+    }
+
+    private CompletionStage<TagRows> readTag(JdbcReadJournal readJournal, String tag) {
+        return readJournal.currentEventsByTag(tag, akka.persistence.query.Offset.noOffset())
+                .runFold(new TagRows(tag), TagRows::add, materializer);
+    }
+
+    private void replaceReports(Connection connection, List<TagRows> tags) throws SQLException {
+        // The shadow table is created like the report table, which doesn't exist yet if the processor never ran
+        CartReportProcessor.createSchema();
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE IF EXISTS " + SHADOW_TABLE);
+            statement.execute("CREATE TABLE " + SHADOW_TABLE + " (LIKE CartReport INCLUDING ALL)");
+        }
+
+        // The rows are sent as they are written, a chunk at a time, so the table is never held as text as a whole
+        CopyIn copy = connection.unwrap(PGConnection.class).getCopyAPI().copyIn(
+                "COPY " + SHADOW_TABLE + " (id, creationDate, checkoutDate) FROM STDIN WITH (FORMAT csv)");
+        int reports = 0;
+        try {
+            // Every cart belongs to exactly one tag, so the rows of the tags never overlap
+            StringBuilder csv = new StringBuilder(COPY_CHUNK_CHARS + 256);
+            for (TagRows tag : tags) {
+                for (Map.Entry<String, Instant[]> report : tag.reports.entrySet()) {
+                    Instant creationDate = report.getValue()[0];
+                    Instant checkoutDate = report.getValue()[1];
+                    if (creationDate == null) {
+                        // Can't happen for carts created through the entity, which always start with an ItemAdded
+                        logger.warn("Skipping report without creation date. CartID: " + report.getKey());
+                        continue;
+                    }
+                    csv.append('"').append(report.getKey().replace("\"", "\"\"")).append("\",")
+                            .append(Timestamp.from(creationDate)).append(',')
+                            .append(checkoutDate == null ? "" : Timestamp.from(checkoutDate).toString()).append('\n');
+                    reports++;
+                    if (csv.length() >= COPY_CHUNK_CHARS) {
+                        writeToCopy(copy, csv);
+                    }
+                }
+            }
+            writeToCopy(copy, csv);
+            copy.endCopy();
+        } finally {
+            if (copy.isActive()) {
+                copy.cancelCopy();
+            }
+        }
+
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("ALTER TABLE CartReport RENAME TO " + OLD_TABLE);
+            statement.execute("ALTER TABLE " + SHADOW_TABLE + " RENAME TO CartReport");
+            statement.execute("DROP TABLE " + OLD_TABLE);
+        }
+        renameIndexes(connection);
+        for (TagRows tag : tags) {
+            if (tag.offset != null) {
+                CartReportBatchHandler.writeOffset(connection, CartReportProcessor.READ_SIDE_ID, tag.tag, tag.offset);
+            }
+        }
+        logger.info("Loaded " + reports + " cart reports");
+    }
+
+    private static void writeToCopy(CopyIn copy, StringBuilder csv) throws SQLException {
+        byte[] bytes = csv.toString().getBytes(StandardCharsets.UTF_8);
+        copy.writeToCopy(bytes, 0, bytes.length);
+        csv.setLength(0);
+    }
+
+    /**
+     * The indexes copied to the shadow table are named after it, which would clash with the next rebuild's shadow
+     * table, so they get the names the report table's own indexes would have.
+     */
+    private void renameIndexes(Connection connection) throws SQLException {
+        List<String> indexes = new ArrayList<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT indexname FROM pg_indexes WHERE tablename = 'cartreport'")) {
+            while (rs.next()) {
+                indexes.add(rs.getString(1));
+            }
+        }
+        try (Statement statement = connection.createStatement()) {
+            for (String index : indexes) {
+                if (index.startsWith(SHADOW_TABLE)) {
+                    statement.execute("ALTER INDEX " + index + " RENAME TO cartreport" + index.substring(SHADOW_TABLE.length()));
+                }
+            }
+        }
+    }
+
+    /**
+     * The report rows of the carts in one tag, as creation and checkout date, and the offset of the last event.
+     */
+    private static final class TagRows {
+        private final String tag;
+        private final Map<String, Instant[]> reports = new HashMap<>();
+        private Offset offset;
+
+        TagRows(String tag) {
+            this.tag = tag;
+        }
+
+        TagRows add(EventEnvelope envelope) {
+            Object event = envelope.event();
+            if (event instanceof CartEntity.ItemAdded) {
+                CartEntity.ItemAdded evt = (CartEntity.ItemAdded) event;
+                Instant[] report = reports.computeIfAbsent(evt.shoppingCartId, id -> new Instant[2]);
+                if (report[0] == null) {
+                    report[0] = evt.eventTime;
+                }
+            } else if (event instanceof CartEntity.CheckedOut) {
+                CartEntity.CheckedOut evt = (CartEntity.CheckedOut) event;
+                reports.computeIfAbsent(evt.shoppingCartId, id -> new Instant[2])[1] = evt.eventTime;
+            }
+            offset = Offset.sequence(((Sequence) envelope.offset()).value());
+            return this;
+        }
+    }
+}
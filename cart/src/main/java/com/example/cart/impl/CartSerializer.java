@@ -0,0 +1,159 @@
+package com.example.cart.impl;
+
+import akka.serialization.SerializerWithStringManifest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+
+/**
+ * Compact binary serializer for the events and state of {@link CartEntity}.
+ * <p>
+ * Each type has a fixed field layout written with {@link DataOutputStream}; the manifest identifies the type.
+ * A layout must never change once written; add a new manifest instead.
+ */
+public class CartSerializer extends SerializerWithStringManifest {
+
+    static final int IDENTIFIER = 1000101;
+
+    private static final String ITEM_ADDED = "A";
+    private static final String ITEM_REMOVED = "R";
+    private static final String ITEM_QUANTITY_ADJUSTED = "Q";
+    // CheckedOut without items, as written before the items were included
+    private static final String CHECKED_OUT_V1 = "C";
+    private static final String CHECKED_OUT = "C2";
+    // ShoppingCart without its version, as written before the version was kept
+    private static final String SHOPPING_CART_V1 = "S";
+    private static final String SHOPPING_CART = "S2";
+
+    @Override
+    public int identifier() {
+        return IDENTIFIER;
+    }
+
+    @Override
+    public String manifest(Object o) {
+        if (o instanceof CartEntity.ItemAdded) return ITEM_ADDED;
+        if (o instanceof CartEntity.ItemRemoved) return ITEM_REMOVED;
+        if (o instanceof CartEntity.ItemQuantityAdjusted) return ITEM_QUANTITY_ADJUSTED;
+        if (o instanceof CartEntity.CheckedOut) {
+            return ((CartEntity.CheckedOut) o).items.isPresent() ? CHECKED_OUT : CHECKED_OUT_V1;
+        }
+        if (o instanceof CartEntity.ShoppingCart) return SHOPPING_CART;
+        throw new IllegalArgumentException("Can't serialize object of type " + o.getClass());
+    }
+
+    @Override
+    public byte[] toBinary(Object o) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            if (o instanceof CartEntity.ItemAdded) {
+                CartEntity.ItemAdded evt = (CartEntity.ItemAdded) o;
+                out.writeUTF(evt.shoppingCartId);
+                out.writeUTF(evt.itemId);
+                out.writeInt(evt.quantity);
+                writeInstant(out, evt.eventTime);
+            } else if (o instanceof CartEntity.ItemRemoved) {
+                CartEntity.ItemRemoved evt = (CartEntity.ItemRemoved) o;
+                out.writeUTF(evt.shoppingCartId);
+                out.writeUTF(evt.itemId);
+                writeInstant(out, evt.eventTime);
+            } else if (o instanceof CartEntity.ItemQuantityAdjusted) {
+                CartEntity.ItemQuantityAdjusted evt = (CartEntity.ItemQuantityAdjusted) o;
+                out.writeUTF(evt.shoppingCartId);
+                out.writeUTF(evt.itemId);
+                out.writeInt(evt.quantity);
+                writeInstant(out, evt.eventTime);
+            } else if (o instanceof CartEntity.CheckedOut) {
+                CartEntity.CheckedOut evt = (CartEntity.CheckedOut) o;
+                out.writeUTF(evt.shoppingCartId);
+                writeInstant(out, evt.eventTime);
+                if (evt.items.isPresent()) {
+                    writeItems(out, evt.items.get());
+                }
+            } else if (o instanceof CartEntity.ShoppingCart) {
+                CartEntity.ShoppingCart cart = (CartEntity.ShoppingCart) o;
+                writeItems(out, cart.items);
+                out.writeBoolean(cart.checkoutDate.isPresent());
+                if (cart.checkoutDate.isPresent()) {
+                    writeInstant(out, cart.checkoutDate.get());
+                }
+                out.writeLong(cart.version);
+            } else {
+                throw new IllegalArgumentException("Can't serialize object of type " + o.getClass());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public Object fromBinary(byte[] bytes, String manifest) throws NotSerializableException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            switch (manifest) {
+                case ITEM_ADDED:
+                    return new CartEntity.ItemAdded(in.readUTF(), in.readUTF(), in.readInt(), readInstant(in));
+                case ITEM_REMOVED:
+                    return new CartEntity.ItemRemoved(in.readUTF(), in.readUTF(), readInstant(in));
+                case ITEM_QUANTITY_ADJUSTED:
+                    return new CartEntity.ItemQuantityAdjusted(in.readUTF(), in.readUTF(), in.readInt(), readInstant(in));
+                case CHECKED_OUT_V1:
+                    return new CartEntity.CheckedOut(in.readUTF(), readInstant(in));
+                case CHECKED_OUT:
+                    return new CartEntity.CheckedOut(in.readUTF(), readInstant(in), readItems(in));
+                case SHOPPING_CART_V1: {
+                    ItemQuantities items = readItems(in);
+                    Instant checkoutDate = in.readBoolean() ? readInstant(in) : null;
+                    return new CartEntity.ShoppingCart(items, checkoutDate);
+                }
+                case SHOPPING_CART: {
+                    ItemQuantities items = readItems(in);
+                    Instant checkoutDate = in.readBoolean() ? readInstant(in) : null;
+                    return new CartEntity.ShoppingCart(items, checkoutDate, in.readLong());
+                }
+                default:
+                    throw new NotSerializableException("Unknown manifest [" + manifest + "]");
+            }
+        } catch (NotSerializableException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeItems(DataOutputStream out, ItemQuantities items) throws IOException {
+        // Items are written in item ID order, so they can be read back without sorting
+        int size = items.size();
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeUTF(items.itemIdAt(i));
+            out.writeInt(items.quantityAt(i));
+        }
+    }
+
+    private static ItemQuantities readItems(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        String[] itemIds = new String[size];
+        int[] quantities = new int[size];
+        for (int i = 0; i < size; i++) {
+            itemIds[i] = in.readUTF();
+            quantities[i] = in.readInt();
+        }
+        return ItemQuantities.fromSorted(itemIds, quantities);
+    }
+
+    private static void writeInstant(DataOutputStream out, Instant instant) throws IOException {
+        out.writeLong(instant.getEpochSecond());
+        out.writeInt(instant.getNano());
+    }
+
+    private static Instant readInstant(DataInputStream in) throws IOException {
+        return Instant.ofEpochSecond(in.readLong(), in.readInt());
+    }
+}
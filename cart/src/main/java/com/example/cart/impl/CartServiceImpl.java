@@ -2,23 +2,36 @@ package com.example.cart.impl;
 
 import akka.Done;
 import akka.NotUsed;
+import akka.actor.typed.ActorRef;
 import akka.cluster.sharding.typed.javadsl.ClusterSharding;
 import akka.cluster.sharding.typed.javadsl.Entity;
 import akka.cluster.sharding.typed.javadsl.EntityRef;
 import akka.japi.Pair;
+import akka.stream.javadsl.Source;
 import com.example.cart.api.*;
 import com.lightbend.lagom.javadsl.api.ServiceCall;
 import com.lightbend.lagom.javadsl.api.broker.Topic;
 import com.lightbend.lagom.javadsl.api.transport.BadRequest;
 import com.lightbend.lagom.javadsl.api.transport.NotFound;
+import com.lightbend.lagom.javadsl.api.transport.ResponseHeader;
 import com.lightbend.lagom.javadsl.broker.TopicProducer;
 import com.lightbend.lagom.javadsl.persistence.PersistentEntityRegistry;
+import com.lightbend.lagom.javadsl.server.HeaderServiceCall;
+import com.typesafe.config.Config;
 
 import javax.inject.Inject;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
 
 /**
  * Implementation of the {@link CartService}.
@@ -29,21 +42,52 @@ public class CartServiceImpl implements CartService {
 
     private final ReportRepository reportRepository;
 
+    private final ReportCache reportCache;
+
+    private final CartViewCache viewCache;
+
+    private final ReportExport reportExport;
+
     private final ClusterSharding clusterSharing;
 
+    private final CartReportRebuild reportRebuild;
+
+    private final CartMetrics metrics;
+
+    private final int legacyCheckoutParallelism;
+
+    private final boolean serverTiming;
+
     @Inject
     public CartServiceImpl(ClusterSharding clusterSharing,
                            PersistentEntityRegistry persistentEntityRegistry,
-                           ReportRepository reportRepository) {
+                           ReportRepository reportRepository,
+                           ReportCache reportCache,
+                           CartViewCache viewCache,
+                           ReportExport reportExport,
+                           CartReportRebuild reportRebuild,
+                           RecoveryMetrics recoveryMetrics,
+                           CartMetrics metrics,
+                           Config config) {
         this.clusterSharing = clusterSharing;
         this.persistentEntityRegistry = persistentEntityRegistry;
         this.reportRepository = reportRepository;
+        this.reportCache = reportCache;
+        this.viewCache = viewCache;
+        this.reportExport = reportExport;
+        this.reportRebuild = reportRebuild;
+        this.metrics = metrics;
+
+        this.legacyCheckoutParallelism = config.getInt("cart.topic.legacy-checkout-parallelism");
+        this.serverTiming = config.getBoolean("cart.server-timing.enabled");
+
+        CartSnapshotSettings snapshotSettings = CartSnapshotSettings.fromConfig(config);
 
         // register entity on shard
         this.clusterSharing.init(
                 Entity.of(
                         CartEntity.ENTITY_TYPE_KEY,
-                        CartEntity::create
+                        entityContext -> CartEntity.create(entityContext, snapshotSettings, recoveryMetrics, metrics)
                 )
         );
     }
@@ -52,61 +96,211 @@ public class CartServiceImpl implements CartService {
         return clusterSharing.entityRefFor(CartEntity.ENTITY_TYPE_KEY, id);
     }
 
+    /**
+     * Asks a cart entity, recording the latency of the command in the metrics, and its stages in the timing.
+     */
+    private <R> CompletionStage<R> ask(String cartId, String command, ServerTiming timing,
+                                       akka.japi.function.Function<ActorRef<R>, CartEntity.Command> message) {
+        long start = System.nanoTime();
+        return metrics.timeAsk(command, () -> entityRef(cartId).ask(message, askTimeout)).thenApply(reply -> {
+            timing.ask(System.nanoTime() - start, reply);
+            return reply;
+        });
+    }
+
+    /**
+     * A service call that is given the timing of its request, and that adds it to the response as a
+     * <code>Server-Timing</code> header when <code>cart.server-timing.enabled</code> is on.
+     */
+    private <Request, Response> ServiceCall<Request, Response> timed(Function<ServerTiming, ServiceCall<Request, Response>> call) {
+        if (!serverTiming) {
+            return call.apply(ServerTiming.NONE);
+        }
+        return HeaderServiceCall.of((requestHeader, request) -> {
+            ServerTiming timing = ServerTiming.of(requestHeader);
+            return call.apply(timing).invoke(request).thenApply(response ->
+                    Pair.create(withTiming(ResponseHeader.OK, timing), response));
+        });
+    }
+
+    private ResponseHeader withTiming(ResponseHeader header, ServerTiming timing) {
+        return serverTiming ? header.withHeader(ServerTiming.HEADER, timing.render()) : header;
+    }
+
     private final Duration askTimeout = Duration.ofSeconds(5);
 
+    private static final String ETAG = "ETag";
+    private static final String IF_NONE_MATCH = "If-None-Match";
+    private static final int NOT_MODIFIED = 304;
+
+    private static final int DEFAULT_REPORT_PAGE_SIZE = 100;
+    private static final int MAX_REPORT_PAGE_SIZE = 1000;
+
+    /**
+     * Gets a cart with its version as an <code>ETag</code>. A client that polls the cart sends the last one it got
+     * back in <code>If-None-Match</code>, and while the cart hasn't changed it gets a 304 without a body instead of
+     * the cart again.
+     */
     @Override
     public ServiceCall<NotUsed, CartView> get(String id) {
-        return request ->
-                entityRef(id)
-                        .ask(CartEntity.Get::new, askTimeout)
-                        .thenApply(summary -> asShoppingCartView(id, summary));
+        return HeaderServiceCall.of((requestHeader, request) -> {
+            ServerTiming timing = serverTiming ? ServerTiming.of(requestHeader) : ServerTiming.NONE;
+            Optional<String> ifNoneMatch = requestHeader.getHeader(IF_NONE_MATCH);
+            return ask(id, "Get", timing, CartEntity.Get::new).thenApply(summary -> {
+                String etag = etag(summary);
+                if (ifNoneMatch.filter(tags -> matchesAny(tags, etag)).isPresent()) {
+                    return Pair.create(withTiming(ResponseHeader.OK.withStatus(NOT_MODIFIED).withHeader(ETAG, etag), timing), null);
+                }
+                CartView view = timing.measure("view", () -> viewCache.get(summary));
+                return Pair.create(withTiming(ResponseHeader.OK.withHeader(ETAG, etag), timing), view);
+            });
+        });
+    }
+
+    static String etag(CartEntity.Summary summary) {
+        return "\"" + summary.getVersion() + "\"";
+    }
+
+    /**
+     * Whether an <code>If-None-Match</code> header, a list of entity tags or <code>*</code>, matches an entity tag.
+     * Tags are compared weakly, as they should be for <code>If-None-Match</code>.
+     */
+    static boolean matchesAny(String ifNoneMatch, String etag) {
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || (tag.startsWith("W/") ? tag.substring(2) : tag).equals(etag)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
     public ServiceCall<NotUsed, CartReportView> getReport(String id) {
-        return request -> reportRepository.findById(id).thenApply(report -> {
-            if (report != null)
-                return new CartReportView(id, report.getCreationDate(), report.getCheckoutDate());
-            else
-                throw new NotFound("Couldn't find a shopping cart report for '" + id + "'");
-        });
+        return request -> reportCache.get(id, reportRepository::findById).thenApply(report ->
+                report.orElseThrow(() -> new NotFound("Couldn't find a shopping cart report for '" + id + "'")));
+    }
+
+    @Override
+    public ServiceCall<NotUsed, CartReportPage> getReportsCreated(Optional<String> from, Optional<String> to,
+                                                                 Optional<String> after, Optional<Integer> limit) {
+        return request -> getReportPage(ReportRepository.ReportDate.CREATION, from, to, after, limit);
+    }
+
+    @Override
+    public ServiceCall<NotUsed, CartReportPage> getReportsCheckedOut(Optional<String> from, Optional<String> to,
+                                                                    Optional<String> after, Optional<Integer> limit) {
+        return request -> getReportPage(ReportRepository.ReportDate.CHECKOUT, from, to, after, limit);
+    }
+
+    private CompletionStage<CartReportPage> getReportPage(ReportRepository.ReportDate date,
+                                                          Optional<String> from, Optional<String> to,
+                                                          Optional<String> after, Optional<Integer> limit) {
+        int pageSize = limit.orElse(DEFAULT_REPORT_PAGE_SIZE);
+        if (pageSize < 1 || pageSize > MAX_REPORT_PAGE_SIZE) {
+            throw new BadRequest("limit must be between 1 and " + MAX_REPORT_PAGE_SIZE);
+        }
+        // One more than the page size, to know whether there is a next page
+        return reportRepository.findPage(date, from.map(this::parseInstant), to.map(this::parseInstant),
+                after.map(this::decodeReportCursor), pageSize + 1)
+                .thenApply(reports -> {
+                    List<CartReport> page = reports.subList(0, Math.min(reports.size(), pageSize));
+                    List<CartReportView> views = new ArrayList<>(page.size());
+                    for (CartReport report : page) {
+                        views.add(new CartReportView(report.getId(), report.getCreationDate(), report.getCheckoutDate()));
+                    }
+                    Optional<String> next = Optional.empty();
+                    if (reports.size() > pageSize) {
+                        CartReport last = page.get(page.size() - 1);
+                        next = Optional.of(encodeReportCursor(date.of(last), last.getId()));
+                    }
+                    return new CartReportPage(views, next);
+                });
+    }
+
+    private Instant parseInstant(String instant) {
+        try {
+            return Instant.parse(instant);
+        } catch (DateTimeParseException e) {
+            throw new BadRequest("Not an ISO-8601 instant: '" + instant + "'");
+        }
+    }
+
+    /**
+     * The cursor of a report page is the date and cart ID of its last report, made opaque to clients.
+     */
+    private static String encodeReportCursor(Instant date, String cartId) {
+        String cursor = date.toString() + "," + cartId;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Pair<Instant, String> decodeReportCursor(String cursor) {
+        try {
+            String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int comma = decoded.indexOf(',');
+            return Pair.create(Instant.parse(decoded.substring(0, comma)), decoded.substring(comma + 1));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException | DateTimeParseException e) {
+            throw new BadRequest("Invalid page cursor: '" + cursor + "'");
+        }
+    }
+
+    @Override
+    public ServiceCall<NotUsed, Source<CartReportView, ?>> exportReports() {
+        return request -> CompletableFuture.completedFuture(reportExport.allReports());
     }
 
     @Override
     public ServiceCall<CartItem, Done> addItem(String cartId) {
-        return item ->
-                entityRef(cartId)
-                .<CartEntity.Confirmation>ask(replyTo ->
-                        new CartEntity.AddItem(item.getItemId(), item.getQuantity(), replyTo), askTimeout)
+        return timed(timing -> item ->
+                this.<CartEntity.Confirmation>ask(cartId, "AddItem", timing, replyTo ->
+                        new CartEntity.AddItem(item.getItemId(), item.getQuantity(), replyTo))
                 .thenApply(this::handleConfirmation)
-                .thenApply(accepted -> Done.getInstance());
+                .thenApply(accepted -> Done.getInstance()));
     }
 
     @Override
     public ServiceCall<NotUsed, CartView> removeItem(String cartId, String itemId) {
-        return request ->
-            entityRef(cartId)
-                .<CartEntity.Confirmation>ask(replyTo ->
-                    new CartEntity.RemoveItem(itemId, replyTo), askTimeout)
+        return timed(timing -> request ->
+            this.<CartEntity.Confirmation>ask(cartId, "RemoveItem", timing, replyTo ->
+                    new CartEntity.RemoveItem(itemId, replyTo))
                     .thenApply(this::handleConfirmation)
-                    .thenApply(accepted -> asShoppingCartView(cartId, accepted.getSummary()));
+                    .thenApply(accepted -> timing.measure("view", () -> viewCache.get(accepted.getSummary()))));
     }
 
     @Override
     public ServiceCall<Quantity, CartView> adjustItemQuantity(String cartId, String itemId) {
-        return quantity ->
-            entityRef(cartId)
-                .<CartEntity.Confirmation>ask(replyTo ->
-                        new CartEntity.AdjustItemQuantity(itemId, quantity.getQuantity(), replyTo), askTimeout)
+        return timed(timing -> quantity ->
+            this.<CartEntity.Confirmation>ask(cartId, "AdjustItemQuantity", timing, replyTo ->
+                        new CartEntity.AdjustItemQuantity(itemId, quantity.getQuantity(), replyTo))
+                .thenApply(this::handleConfirmation)
+                .thenApply(accepted -> timing.measure("view", () -> viewCache.get(accepted.getSummary()))));
+    }
+
+    @Override
+    public ServiceCall<CartUpdate, CartView> updateItems(String cartId) {
+        return timed(timing -> update ->
+            this.<CartEntity.Confirmation>ask(cartId, "UpdateItems", timing, replyTo ->
+                        new CartEntity.UpdateItems(update.getUpdates(), replyTo))
                 .thenApply(this::handleConfirmation)
-                .thenApply(accepted -> asShoppingCartView(cartId, accepted.getSummary()));
+                .thenApply(accepted -> timing.measure("view", () -> viewCache.get(accepted.getSummary()))));
     }
 
     @Override
     public ServiceCall<NotUsed, Done> checkout(String cartId) {
-        return request -> entityRef(cartId).ask(CartEntity.Checkout::new, askTimeout)
+        return timed(timing -> request -> ask(cartId, "Checkout", timing, CartEntity.Checkout::new)
                 .thenApply(this::handleConfirmation)
-                .thenApply(accepted -> Done.getInstance());
+                .thenApply(accepted -> Done.getInstance()));
+    }
+
+    @Override
+    public ServiceCall<NotUsed, Done> rebuildReports() {
+        return request -> reportRebuild.rebuild().orElseThrow(() ->
+                new BadRequest("A rebuild of the shopping cart reports is already running"));
+    }
+
+    @Override
+    public ServiceCall<NotUsed, String> metrics() {
+        return request -> metrics.scrape();
     }
 
     @Override
@@ -118,12 +312,17 @@ public class CartServiceImpl implements CartService {
                         // We only want to publish checkout events
                         .filter(pair -> pair.first() instanceof CartEntity.CheckedOut)
                         // Now we want to convert from the persisted event to the published event.
-                        // To do this, we need to load the current shopping cart state.
-                        .mapAsync(4, eventAndOffset -> {
+                        // Checkout events carry the items of the cart, so this doesn't need the entity,
+                        // except for events written before they did: for those we load the current state.
+                        .mapAsync(legacyCheckoutParallelism, eventAndOffset -> {
                             CartEntity.CheckedOut checkedOut = (CartEntity.CheckedOut) eventAndOffset.first();
-                            return entityRef(checkedOut.getShoppingCartId()).ask(CartEntity.Get::new, askTimeout)
-                                    .thenApply(summary -> Pair.create(asShoppingCartView(checkedOut.getShoppingCartId(), summary),
-                                            eventAndOffset.second()));
+                            String cartId = checkedOut.getShoppingCartId();
+                            if (checkedOut.getItems().isPresent()) {
+                                CartView view = asShoppingCartView(cartId, checkedOut.getItems().get(), Optional.of(checkedOut.getEventTime()));
+                                return CompletableFuture.completedFuture(Pair.create(view, eventAndOffset.second()));
+                            }
+                            return ask(cartId, "Get", ServerTiming.NONE, CartEntity.Get::new)
+                                    .thenApply(summary -> Pair.create(asShoppingCartView(cartId, summary), eventAndOffset.second()));
                         }));
     }
 
@@ -143,12 +342,16 @@ public class CartServiceImpl implements CartService {
         throw new BadRequest(rejected.getReason());
     }
 
-    private CartView asShoppingCartView(String id, CartEntity.Summary summary) {
-        List<CartItem> items = new ArrayList<>();
-        for (Map.Entry<String, Integer> item : summary.getItems().entrySet()) {
+    static CartView asShoppingCartView(String id, CartEntity.Summary summary) {
+        return asShoppingCartView(id, summary.getItems(), summary.getCheckoutDate());
+    }
+
+    static CartView asShoppingCartView(String id, Map<String, Integer> cartItems, Optional<Instant> checkoutDate) {
+        List<CartItem> items = new ArrayList<>(cartItems.size());
+        for (Map.Entry<String, Integer> item : cartItems.entrySet()) {
             items.add(new CartItem(item.getKey(), item.getValue()));
         }
-        return new CartView(id, items, summary.getCheckoutDate());
+        return new CartView(id, items, checkoutDate);
     }
 
 }
@@ -0,0 +1,64 @@
+package com.example.cart.impl;
+
+import com.typesafe.config.Config;
+import lombok.Value;
+
+import java.time.Duration;
+
+/**
+ * When {@link CartEntity} takes snapshots, read from the <code>cart.snapshot</code> config section.
+ */
+@Value
+public class CartSnapshotSettings {
+
+    public static final CartSnapshotSettings DEFAULT =
+            new CartSnapshotSettings(100, 2, true, Duration.ofMillis(50), 20);
+
+    /**
+     * Take a snapshot every this many events, regardless of anything else.
+     */
+    public final int everyNEvents;
+
+    /**
+     * How many of the snapshots taken every N events to keep.
+     */
+    public final int keepNSnapshots;
+
+    /**
+     * Take a snapshot when a cart is checked out, since it will never change again.
+     */
+    public final boolean onCheckout;
+
+    /**
+     * Take a snapshot with the next event when the last recovery took longer than this.
+     */
+    public final Duration slowRecoveryTime;
+
+    /**
+     * Take a snapshot with the next event when the last recovery replayed more events than this.
+     */
+    public final int slowRecoveryEvents;
+
+    public CartSnapshotSettings(int everyNEvents, int keepNSnapshots, boolean onCheckout,
+                                Duration slowRecoveryTime, int slowRecoveryEvents) {
+        this.everyNEvents = everyNEvents;
+        this.keepNSnapshots = keepNSnapshots;
+        this.onCheckout = onCheckout;
+        this.slowRecoveryTime = slowRecoveryTime;
+        this.slowRecoveryEvents = slowRecoveryEvents;
+    }
+
+    public static CartSnapshotSettings fromConfig(Config config) {
+        Config snapshot = config.getConfig("cart.snapshot");
+        return new CartSnapshotSettings(
+                snapshot.getInt("every-n-events"),
+                snapshot.getInt("keep-n-snapshots"),
+                snapshot.getBoolean("on-checkout"),
+                snapshot.getDuration("slow-recovery-time"),
+                snapshot.getInt("slow-recovery-events"));
+    }
+
+    boolean isSlowRecovery(long recoveryNanos, long eventsReplayed) {
+        return recoveryNanos > slowRecoveryTime.toNanos() || eventsReplayed > slowRecoveryEvents;
+    }
+}
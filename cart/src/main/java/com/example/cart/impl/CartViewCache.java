@@ -0,0 +1,86 @@
+package com.example.cart.impl;
+
+import com.example.cart.api.CartView;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.typesafe.config.Config;
+import lombok.Value;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of the views of recently returned carts, so returning a cart that hasn't changed, such as to a client
+ * polling it, doesn't build its view again.
+ * <p>
+ * A view is cached with the version of the cart it was built from, and only returned for a summary of that same
+ * version, so a changed cart is never served stale. The cache is kept on the node that serves the calls, whichever
+ * node the cart entity runs on. Entries that weren't read for <code>time-to-idle</code> are dropped, and the least
+ * recently used ones are evicted beyond the maximum size.
+ */
+@Singleton
+public class CartViewCache {
+
+    private final Cache<String, VersionedView> cache;
+
+    // Counted here rather than by the cache, which would count a view of another version as a hit
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    @Inject
+    public CartViewCache(Config config) {
+        this(maxSize(config.getConfig("cart.view-cache")), config.getDuration("cart.view-cache.time-to-idle"));
+    }
+
+    CartViewCache(long maxSize, Duration timeToIdle) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterAccess(timeToIdle)
+                .build();
+    }
+
+    private static long maxSize(Config cacheConfig) {
+        // A cache of size zero caches nothing
+        return cacheConfig.getBoolean("enabled") ? cacheConfig.getLong("max-size") : 0;
+    }
+
+    /**
+     * The view of a cart as it was summarized, from the cache if it was built for the same version of the cart.
+     */
+    CartView get(CartEntity.Summary summary) {
+        VersionedView cached = cache.getIfPresent(summary.getShoppingCartId());
+        if (cached != null && cached.version == summary.getVersion()) {
+            hits.incrementAndGet();
+            return cached.view;
+        }
+        misses.incrementAndGet();
+        CartView view = CartServiceImpl.asShoppingCartView(summary.getShoppingCartId(), summary);
+        // Replies to concurrent calls can arrive in any order, so an older version doesn't replace a newer one
+        cache.asMap().merge(summary.getShoppingCartId(), new VersionedView(summary.getVersion(), view),
+                (current, built) -> current.version > built.version ? current : built);
+        return view;
+    }
+
+    public long getSize() {
+        return cache.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Views built because the cart wasn't cached, or was cached at another version.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Value
+    private static class VersionedView {
+        long version;
+        CartView view;
+    }
+}
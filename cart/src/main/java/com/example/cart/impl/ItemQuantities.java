@@ -0,0 +1,156 @@
+package com.example.cart.impl;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable map of item ID to quantity for the items in a shopping cart.
+ * <p>
+ * Items are kept in two parallel arrays sorted by item ID, so a cart costs two arrays instead of a tree node and a
+ * boxed {@link Integer} per item. Every change copies the arrays, which is cheap at the size of a shopping cart, and
+ * a quantity change shares the item ID array with the previous map.
+ */
+final class ItemQuantities extends AbstractMap<String, Integer> {
+
+    static final ItemQuantities EMPTY = new ItemQuantities(new String[0], new int[0]);
+
+    private final String[] itemIds;
+    private final int[] quantities;
+
+    private ItemQuantities(String[] itemIds, int[] quantities) {
+        this.itemIds = itemIds;
+        this.quantities = quantities;
+    }
+
+    static ItemQuantities from(Map<String, Integer> items) {
+        if (items instanceof ItemQuantities) {
+            return (ItemQuantities) items;
+        }
+        String[] itemIds = items.keySet().toArray(new String[0]);
+        Arrays.sort(itemIds);
+        int[] quantities = new int[itemIds.length];
+        for (int i = 0; i < itemIds.length; i++) {
+            quantities[i] = items.get(itemIds[i]);
+        }
+        return new ItemQuantities(itemIds, quantities);
+    }
+
+    /**
+     * Creates a map from arrays that are already sorted by item ID. The arrays are used as they are, not copied.
+     */
+    static ItemQuantities fromSorted(String[] itemIds, int[] quantities) {
+        return itemIds.length == 0 ? EMPTY : new ItemQuantities(itemIds, quantities);
+    }
+
+    ItemQuantities plus(String itemId, int quantity) {
+        int index = Arrays.binarySearch(itemIds, itemId);
+        if (index >= 0) {
+            if (quantities[index] == quantity) {
+                return this;
+            }
+            int[] newQuantities = quantities.clone();
+            newQuantities[index] = quantity;
+            return new ItemQuantities(itemIds, newQuantities);
+        }
+
+        int insertAt = -index - 1;
+        int size = itemIds.length;
+        String[] newItemIds = new String[size + 1];
+        int[] newQuantities = new int[size + 1];
+        System.arraycopy(itemIds, 0, newItemIds, 0, insertAt);
+        System.arraycopy(quantities, 0, newQuantities, 0, insertAt);
+        newItemIds[insertAt] = itemId;
+        newQuantities[insertAt] = quantity;
+        System.arraycopy(itemIds, insertAt, newItemIds, insertAt + 1, size - insertAt);
+        System.arraycopy(quantities, insertAt, newQuantities, insertAt + 1, size - insertAt);
+        return new ItemQuantities(newItemIds, newQuantities);
+    }
+
+    ItemQuantities minus(String itemId) {
+        int index = Arrays.binarySearch(itemIds, itemId);
+        if (index < 0) {
+            return this;
+        }
+
+        int size = itemIds.length;
+        if (size == 1) {
+            return EMPTY;
+        }
+        String[] newItemIds = new String[size - 1];
+        int[] newQuantities = new int[size - 1];
+        System.arraycopy(itemIds, 0, newItemIds, 0, index);
+        System.arraycopy(quantities, 0, newQuantities, 0, index);
+        System.arraycopy(itemIds, index + 1, newItemIds, index, size - index - 1);
+        System.arraycopy(quantities, index + 1, newQuantities, index, size - index - 1);
+        return new ItemQuantities(newItemIds, newQuantities);
+    }
+
+    String itemIdAt(int index) {
+        return itemIds[index];
+    }
+
+    int quantityAt(int index) {
+        return quantities[index];
+    }
+
+    @Override
+    public int size() {
+        return itemIds.length;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return itemIds.length == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && Arrays.binarySearch(itemIds, key) >= 0;
+    }
+
+    @Override
+    public Integer get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        int index = Arrays.binarySearch(itemIds, key);
+        return index >= 0 ? quantities[index] : null;
+    }
+
+    @Override
+    public Set<Entry<String, Integer>> entrySet() {
+        return new AbstractSet<Entry<String, Integer>>() {
+            @Override
+            public Iterator<Entry<String, Integer>> iterator() {
+                return new Iterator<Entry<String, Integer>>() {
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < itemIds.length;
+                    }
+
+                    @Override
+                    public Entry<String, Integer> next() {
+                        if (next >= itemIds.length) {
+                            throw new NoSuchElementException();
+                        }
+                        Entry<String, Integer> entry = new SimpleImmutableEntry<>(itemIds[next], quantities[next]);
+                        next++;
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return itemIds.length;
+            }
+        };
+    }
+}
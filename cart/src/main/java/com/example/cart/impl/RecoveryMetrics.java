@@ -0,0 +1,49 @@
+package com.example.cart.impl;
+
+import javax.inject.Singleton;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for how long {@link CartEntity} recoveries take on this node, used to tune {@link CartSnapshotSettings}.
+ */
+@Singleton
+public class RecoveryMetrics {
+
+    private final LongAdder recoveries = new LongAdder();
+    private final LongAdder slowRecoveries = new LongAdder();
+    private final LongAdder eventsReplayed = new LongAdder();
+    private final LongAdder recoveryNanos = new LongAdder();
+    private final AtomicLong maxRecoveryNanos = new AtomicLong();
+
+    void recordRecovery(long nanos, long events, boolean slow) {
+        recoveries.increment();
+        if (slow) {
+            slowRecoveries.increment();
+        }
+        eventsReplayed.add(events);
+        recoveryNanos.add(nanos);
+        maxRecoveryNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    public long getRecoveries() {
+        return recoveries.sum();
+    }
+
+    public long getSlowRecoveries() {
+        return slowRecoveries.sum();
+    }
+
+    public long getEventsReplayed() {
+        return eventsReplayed.sum();
+    }
+
+    public long getTotalRecoveryTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(recoveryNanos.sum());
+    }
+
+    public long getMaxRecoveryTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxRecoveryNanos.get());
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.cart.impl;
+
+import com.example.cart.api.CartReportView;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.typesafe.config.Config;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Bounded cache of cart reports in front of {@link ReportRepository}, so repeated report reads don't go to the
+ * database. The cache doesn't depend on the repository itself, because the report processor the repository registers
+ * depends on the cache.
+ * <p>
+ * Entries expire a fixed time after they were loaded and the least recently used ones are evicted beyond the maximum
+ * size. The report processor invalidates the reports it changes, but only on the node it runs on: on other nodes a
+ * changed report is served from the cache until it expires.
+ */
+@Singleton
+public class ReportCache {
+
+    private final Cache<String, CartReportView> cache;
+
+    // Incremented on every invalidation, so a load that raced with one doesn't put the old report back
+    private final AtomicLong invalidations = new AtomicLong();
+
+    @Inject
+    public ReportCache(Config config) {
+        this(maxSize(config.getConfig("cart.report.cache")),
+                config.getDuration("cart.report.cache.time-to-live"));
+    }
+
+    ReportCache(long maxSize, Duration timeToLive) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(timeToLive)
+                .recordStats()
+                .build();
+    }
+
+    private static long maxSize(Config cacheConfig) {
+        // A cache of size zero caches nothing
+        return cacheConfig.getBoolean("enabled") ? cacheConfig.getLong("max-size") : 0;
+    }
+
+    /**
+     * Gets a report from the cache, or loads it if it isn't cached. Carts without a report aren't cached.
+     *
+     * @param load loads a report from the database, completing with <code>null</code> if there is none
+     */
+    CompletionStage<Optional<CartReportView>> get(String cartId, Function<String, CompletionStage<CartReport>> load) {
+        CartReportView cached = cache.getIfPresent(cartId);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(Optional.of(cached));
+        }
+        long invalidationsBeforeLoad = invalidations.get();
+        return load.apply(cartId).thenApply(report -> {
+            if (report == null) {
+                return Optional.empty();
+            }
+            CartReportView view = new CartReportView(cartId, report.getCreationDate(), report.getCheckoutDate());
+            if (invalidations.get() == invalidationsBeforeLoad) {
+                cache.put(cartId, view);
+            }
+            return Optional.of(view);
+        });
+    }
+
+    /**
+     * Removes the reports of these carts, to be called once changes to them are committed.
+     */
+    void invalidate(Collection<String> cartIds) {
+        invalidations.incrementAndGet();
+        cache.invalidateAll(cartIds);
+    }
+
+    void invalidateAll() {
+        invalidations.incrementAndGet();
+        cache.invalidateAll();
+    }
+
+    public long getSize() {
+        return cache.size();
+    }
+
+    public long getHits() {
+        return cache.stats().hitCount();
+    }
+
+    public long getMisses() {
+        return cache.stats().missCount();
+    }
+
+    /**
+     * Entries removed because the cache was full or they expired, not counting invalidations.
+     */
+    public long getEvictions() {
+        return cache.stats().evictionCount();
+    }
+
+    public double getHitRate() {
+        return cache.stats().hitRate();
+    }
+}
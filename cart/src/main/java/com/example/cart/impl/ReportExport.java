@@ -0,0 +1,97 @@
+package com.example.cart.impl;
+
+import akka.NotUsed;
+import akka.stream.javadsl.Source;
+import com.example.cart.api.CartReportView;
+import com.typesafe.config.Config;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Optional;
+
+/**
+ * Streams all cart reports out of the database.
+ * <p>
+ * The reports are read through a server-side cursor, fetching <code>fetch-size</code> rows at a time, and only as
+ * fast as the stream is consumed, so an export holds one fetch of rows in memory however many reports there are.
+ * Each export uses a connection of its own for as long as it runs.
+ */
+@Singleton
+public class ReportExport {
+
+    private static final String SELECT_REPORTS = "SELECT id, creationDate, checkoutDate FROM CartReport";
+
+    private final String dataSourceName;
+    private final int fetchSize;
+
+    @Inject
+    public ReportExport(Config config) {
+        // Play registers the default DataSource under this JNDI name, see persistence.xml
+        this.dataSourceName = config.getString("db.default.jndiName");
+        this.fetchSize = config.getInt("cart.report.export.fetch-size");
+    }
+
+    /**
+     * All reports, in no particular order. Reads run on the stream's blocking IO dispatcher.
+     */
+    Source<CartReportView, NotUsed> allReports() {
+        return Source.unfoldResource(this::openCursor, ReportCursor::next, ReportCursor::close);
+    }
+
+    private ReportCursor openCursor() throws NamingException, SQLException {
+        DataSource dataSource = (DataSource) new InitialContext().lookup(dataSourceName);
+        Connection connection = dataSource.getConnection();
+        try {
+            // Postgres only keeps a cursor open, instead of reading all rows at once, within a transaction
+            connection.setAutoCommit(false);
+            connection.setReadOnly(true);
+            PreparedStatement statement = connection.prepareStatement(SELECT_REPORTS);
+            statement.setFetchSize(fetchSize);
+            return new ReportCursor(connection, statement, statement.executeQuery());
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    private static final class ReportCursor {
+        private final Connection connection;
+        private final PreparedStatement statement;
+        private final ResultSet resultSet;
+
+        ReportCursor(Connection connection, PreparedStatement statement, ResultSet resultSet) {
+            this.connection = connection;
+            this.statement = statement;
+            this.resultSet = resultSet;
+        }
+
+        Optional<CartReportView> next() throws SQLException {
+            if (!resultSet.next()) {
+                return Optional.empty();
+            }
+            Timestamp checkoutDate = resultSet.getTimestamp(3);
+            return Optional.of(new CartReportView(resultSet.getString(1), resultSet.getTimestamp(2).toInstant(),
+                    checkoutDate == null ? null : checkoutDate.toInstant()));
+        }
+
+        void close() throws SQLException {
+            try {
+                resultSet.close();
+                statement.close();
+                connection.rollback();
+                connection.setReadOnly(false);
+                connection.setAutoCommit(true);
+            } finally {
+                connection.close();
+            }
+        }
+    }
+}
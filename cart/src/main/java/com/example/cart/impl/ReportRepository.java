@@ -1,15 +1,38 @@
 package com.example.cart.impl;
 
+import akka.japi.Pair;
 import com.lightbend.lagom.javadsl.persistence.ReadSide;
 import com.lightbend.lagom.javadsl.persistence.jpa.JpaSession;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import javax.persistence.TypedQuery;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.CompletionStage;
 
 @Singleton
 public class ReportRepository {
 
+    /**
+     * The dates reports can be queried by.
+     */
+    enum ReportDate {
+        CREATION("creationDate"),
+        CHECKOUT("checkoutDate");
+
+        private final String field;
+
+        ReportDate(String field) {
+            this.field = field;
+        }
+
+        Instant of(CartReport report) {
+            return this == CREATION ? report.getCreationDate() : report.getCheckoutDate();
+        }
+    }
+
     private final JpaSession jpaSession;
 
     @Inject
@@ -22,4 +45,36 @@ public class ReportRepository {
         return jpaSession.withTransaction(em -> em.find(CartReport.class, cartId));
     }
 
+    /**
+     * Finds the reports with a date in a range, ordered by that date and then ID.
+     *
+     * @param from inclusive start of the range, if any
+     * @param to exclusive end of the range, if any
+     * @param after the date and ID of the last report of the previous page, if any
+     * @param limit the maximum number of reports
+     */
+    CompletionStage<List<CartReport>> findPage(ReportDate date, Optional<Instant> from, Optional<Instant> to,
+                                               Optional<Pair<Instant, String>> after, int limit) {
+        // The page starts after the date and ID of the previous page's last report. That condition is an OR, which
+        // doesn't give the (date, id) index a place to start, so it is repeated as a plain bound on the date:
+        // the index scan then starts at that date rather than filtering out the reports of all earlier pages.
+        String field = "r." + date.field;
+        StringBuilder jpql = new StringBuilder("SELECT r FROM CartReport r WHERE " + field + " IS NOT NULL");
+        from.ifPresent(ignored -> jpql.append(" AND ").append(field).append(" >= :from"));
+        to.ifPresent(ignored -> jpql.append(" AND ").append(field).append(" < :to"));
+        after.ifPresent(ignored -> jpql.append(" AND ").append(field).append(" >= :afterDate AND (")
+                .append(field).append(" > :afterDate OR (")
+                .append(field).append(" = :afterDate AND r.id > :afterId))"));
+        jpql.append(" ORDER BY ").append(field).append(", r.id");
+
+        return jpaSession.withTransaction(em -> {
+            TypedQuery<CartReport> query = em.createQuery(jpql.toString(), CartReport.class).setMaxResults(limit);
+            from.ifPresent(instant -> query.setParameter("from", instant));
+            to.ifPresent(instant -> query.setParameter("to", instant));
+            after.ifPresent(dateAndId -> query.setParameter("afterDate", dateAndId.first())
+                    .setParameter("afterId", dateAndId.second()));
+            return query.getResultList();
+        });
+    }
+
 }
@@ -0,0 +1,107 @@
+package com.example.cart.impl;
+
+import com.example.cart.api.RequestStartFilter;
+import com.lightbend.lagom.javadsl.api.transport.RequestHeader;
+
+import java.util.Locale;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * The time a cart request spent in each stage, rendered as a <code>Server-Timing</code> header, for
+ * <code>cart.server-timing.enabled</code>:
+ * <ul>
+ * <li><code>request</code>: reading and deserializing the request, from when {@link RequestStartFilter} stamped it</li>
+ * <li><code>route</code>: getting the command to the cart entity through sharding, and its reply back</li>
+ * <li><code>handle</code>: the command handler of the entity</li>
+ * <li><code>persist</code>: the journal write of its events</li>
+ * <li><code>view</code>: turning the reply into a <code>CartView</code></li>
+ * <li><code>total</code>: from the stamp to the response header</li>
+ * </ul>
+ * The response body is serialized after its header is built, so it isn't included. The entity measures its own
+ * stages, which it may run on another node, and sends them with its reply; the route is what is left of the ask.
+ */
+class ServerTiming {
+
+    static final String HEADER = "Server-Timing";
+
+    /**
+     * Measures nothing, for when the header is off.
+     */
+    static final ServerTiming NONE = new ServerTiming(0) {
+        @Override
+        void ask(long nanos, Object reply) {
+        }
+
+        @Override
+        <T> T measure(String stage, Supplier<T> work) {
+            return work.get();
+        }
+    };
+
+    private final long startNanos;
+    private final StringBuilder stages = new StringBuilder();
+
+    private ServerTiming(long startNanos) {
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * Starts timing a request when the service call is invoked, which is when its request has been deserialized.
+     */
+    static ServerTiming of(RequestHeader request) {
+        long now = System.nanoTime();
+        Optional<Long> arrived = request.getHeader(RequestStartFilter.HEADER).flatMap(ServerTiming::parseNanos);
+        ServerTiming timing = new ServerTiming(arrived.orElse(now));
+        arrived.ifPresent(start -> timing.add("request", now - start));
+        return timing;
+    }
+
+    private static Optional<Long> parseNanos(String nanos) {
+        try {
+            return Optional.of(Long.parseLong(nanos));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Adds the stages of an ask to a cart entity that took some time in all, with the reply it got.
+     */
+    void ask(long nanos, Object reply) {
+        if (reply instanceof CartEntity.Accepted) {
+            CartEntity.Accepted accepted = (CartEntity.Accepted) reply;
+            add("route", nanos - accepted.handleNanos - accepted.persistNanos);
+            add("handle", accepted.handleNanos);
+            add("persist", accepted.persistNanos);
+        } else {
+            add("route", nanos);
+        }
+    }
+
+    /**
+     * Does some work as a stage of its own.
+     */
+    <T> T measure(String stage, Supplier<T> work) {
+        long start = System.nanoTime();
+        T result = work.get();
+        add(stage, System.nanoTime() - start);
+        return result;
+    }
+
+    // Stages are added one after the other, but not all by the same thread
+    private synchronized void add(String stage, long nanos) {
+        if (stages.length() > 0) {
+            stages.append(", ");
+        }
+        stages.append(stage).append(";dur=").append(String.format(Locale.ROOT, "%.3f", Math.max(nanos, 0) / 1e6));
+    }
+
+    /**
+     * The header value, with the total time until now.
+     */
+    synchronized String render() {
+        add("total", System.nanoTime() - startNanos);
+        return stages.toString();
+    }
+}
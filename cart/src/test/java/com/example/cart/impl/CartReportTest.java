@@ -1,5 +1,12 @@
 package com.example.cart.impl;
 
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import com.example.cart.api.CartItem;
+import com.example.cart.api.CartReportPage;
+import com.example.cart.api.CartReportView;
+import com.example.cart.api.CartService;
+import com.example.cart.api.CartView;
 import com.lightbend.lagom.javadsl.persistence.Offset;
 import com.lightbend.lagom.javadsl.persistence.ReadSide;
 import com.lightbend.lagom.javadsl.testkit.ReadSideTestDriver;
@@ -10,15 +17,25 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import static com.lightbend.lagom.javadsl.testkit.ServiceTest.bind;
 import static com.lightbend.lagom.javadsl.testkit.ServiceTest.defaultSetup;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class CartReportTest {
 
@@ -51,6 +68,7 @@ public class CartReportTest {
 
     private ReadSideTestDriver testDriver = testServer.injector().instanceOf(ReadSideTestDriver.class);
     private ReportRepository reportRepository = testServer.injector().instanceOf(ReportRepository.class);
+    private ReportCache reportCache = testServer.injector().instanceOf(ReportCache.class);
 
     @Test
     public void createAReportOnFirstEvent() throws InterruptedException, ExecutionException, TimeoutException {
@@ -98,6 +116,98 @@ public class CartReportTest {
     }
 
 
+    @Test
+    public void cachedReportIsInvalidatedOnCheckout() throws InterruptedException, ExecutionException, TimeoutException {
+        String cartId = UUID.randomUUID().toString();
+        Instant eventTime = Instant.now();
+        feed(new CartEntity.ItemAdded(cartId, "abc", 1, eventTime));
+
+        CartReportView report = Await.result(reportCache.get(cartId, reportRepository::findById)).get();
+        assertNull("checkout date is not set", report.getCheckoutDate());
+        long hits = reportCache.getHits();
+        assertEquals("report is cached", report, Await.result(reportCache.get(cartId, reportRepository::findById)).get());
+        assertEquals("second read is a hit", hits + 1, reportCache.getHits());
+
+        Instant checkoutTime = eventTime.plusSeconds(30);
+        feed(new CartEntity.CheckedOut(cartId, checkoutTime));
+
+        CartReportView checkedOutReport = Await.result(reportCache.get(cartId, reportRepository::findById)).get();
+        // The report keeps the date at the microsecond precision of a Postgres timestamp, while the clock may be finer
+        assertEquals("checkout date is same as checkout date", checkoutTime.truncatedTo(ChronoUnit.MICROS),
+                checkedOutReport.getCheckoutDate().truncatedTo(ChronoUnit.MICROS));
+    }
+
+    @Test
+    public void pagesThroughReportsInARange() throws InterruptedException, ExecutionException, TimeoutException {
+        CartService cartService = testServer.client(CartService.class);
+        // A range of its own, so reports of other tests and earlier runs don't fall into it
+        Instant from = Instant.parse("2000-01-01T00:00:00Z").plus(ThreadLocalRandom.current().nextInt(1000000), ChronoUnit.MINUTES);
+        List<String> created = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            String cartId = UUID.randomUUID().toString();
+            created.add(cartId);
+            feed(new CartEntity.ItemAdded(cartId, "abc", 1, from.plusSeconds(i)));
+        }
+        feed(new CartEntity.CheckedOut(created.get(3), from.plusSeconds(20)));
+        feed(new CartEntity.CheckedOut(created.get(1), from.plusSeconds(30)));
+
+        Optional<String> to = Optional.of(from.plusSeconds(60).toString());
+        List<String> paged = new ArrayList<>();
+        Optional<String> after = Optional.empty();
+        do {
+            CartReportPage page = Await.result(cartService.getReportsCreated(Optional.of(from.toString()), to, after, Optional.of(2)).invoke());
+            assertTrue("page is not larger than the limit", page.getReports().size() <= 2);
+            page.getReports().forEach(report -> paged.add(report.getId()));
+            after = page.getNext();
+        } while (after.isPresent());
+        assertEquals("all reports created in the range, oldest first", created, paged);
+
+        CartReportPage checkedOut = Await.result(cartService.getReportsCheckedOut(Optional.of(from.toString()), to, Optional.empty(), Optional.empty()).invoke());
+        assertEquals("reports checked out in the range, oldest checkout first", Arrays.asList(created.get(3), created.get(1)),
+                checkedOut.getReports().stream().map(CartReportView::getId).collect(Collectors.toList()));
+        assertFalse("all reports fit on one page", checkedOut.getNext().isPresent());
+    }
+
+    @Test
+    public void exportStreamsAllReports() throws InterruptedException, ExecutionException, TimeoutException {
+        CartService cartService = testServer.client(CartService.class);
+        List<String> created = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            String cartId = UUID.randomUUID().toString();
+            created.add(cartId);
+            feed(new CartEntity.ItemAdded(cartId, "abc", 1, Instant.now()));
+        }
+
+        Source<CartReportView, ?> reports = Await.result(cartService.exportReports().invoke());
+        List<String> exported = Await.result(reports.map(CartReportView::getId).runWith(Sink.seq(), testServer.materializer()));
+        assertTrue("all reports are exported", exported.containsAll(created));
+    }
+
+    @Test
+    public void rebuildCreatesReportsFromTheJournal() throws InterruptedException, ExecutionException, TimeoutException {
+        // The read-side is driven by the test driver here, so only the rebuild writes reports for these carts
+        CartService cartService = testServer.client(CartService.class);
+        String cartId = UUID.randomUUID().toString();
+        String checkedOutCartId = UUID.randomUUID().toString();
+        Await.result(cartService.addItem(cartId).invoke(new CartItem("abc", 1)));
+        Await.result(cartService.addItem(checkedOutCartId).invoke(new CartItem("abc", 1)));
+        Await.result(cartService.addItem(checkedOutCartId).invoke(new CartItem("def", 2)));
+        Await.result(cartService.checkout(checkedOutCartId).invoke());
+        CartView checkedOut = Await.result(cartService.get(checkedOutCartId).invoke());
+
+        Await.result(cartService.rebuildReports().invoke());
+
+        CartReport report = Await.result(reportRepository.findById(cartId));
+        assertNotNull("creation date is set", report.getCreationDate());
+        assertNull("checkout date is not set", report.getCheckoutDate());
+
+        CartReport checkedOutReport = Await.result(reportRepository.findById(checkedOutCartId));
+        assertTrue("created before checkout", checkedOutReport.getCreationDate().isBefore(checkedOutReport.getCheckoutDate()));
+        // The report keeps the date at the microsecond precision of a Postgres timestamp, while the clock may be finer
+        assertEquals("checkout date is same as cart checkout date", checkedOut.getCheckoutDate().get().truncatedTo(ChronoUnit.MICROS),
+                checkedOutReport.getCheckoutDate().truncatedTo(ChronoUnit.MICROS));
+    }
+
     private void feed(CartEntity.Event event) throws InterruptedException, ExecutionException, TimeoutException {
         Await.result(testDriver.feed(event, Offset.sequence(offset.getAndIncrement())));
     }
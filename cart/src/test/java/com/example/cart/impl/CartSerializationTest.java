@@ -0,0 +1,107 @@
+package com.example.cart.impl;
+
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.typed.javadsl.Adapter;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import akka.serialization.Serializer;
+import akka.serialization.Serializers;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Assert;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.pcollections.HashTreePMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+public class CartSerializationTest {
+
+    // Load application.conf, where the serialization bindings for the cart entity live
+    @ClassRule
+    public static final TestKitJunitResource testKit = new TestKitJunitResource(ConfigFactory.load());
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final Serialization serialization = SerializationExtension.get(Adapter.toClassic(testKit.system()));
+
+    private final String cartId = UUID.randomUUID().toString();
+
+    private final Instant now = Instant.now();
+
+    private List<Object> persistedObjects() {
+        return Arrays.asList(
+                new CartEntity.ItemAdded(cartId, "item-1", 2, now),
+                new CartEntity.ItemRemoved(cartId, "item-1", now),
+                new CartEntity.ItemQuantityAdjusted(cartId, "item-2", 5, now),
+                new CartEntity.CheckedOut(cartId, now),
+                new CartEntity.CheckedOut(cartId, now, HashTreePMap.<String, Integer>empty().plus("item-2", 5).plus("item-3", 1)),
+                new CartEntity.ShoppingCart(HashTreePMap.<String, Integer>empty().plus("item-2", 5).plus("item-3", 1), now, 7)
+        );
+    }
+
+    @Test
+    public void shouldUseBinarySerializerForEventsAndState() {
+        for (Object obj : persistedObjects()) {
+            Assert.assertTrue(obj.getClass().getSimpleName(), serialization.findSerializerFor(obj) instanceof CartSerializer);
+        }
+    }
+
+    @Test
+    public void shouldRoundTripEventsAndState() {
+        for (Object obj : persistedObjects()) {
+            byte[] bytes = serialization.serialize(obj).get();
+            Serializer serializer = serialization.findSerializerFor(obj);
+            Object deserialized = serialization.deserialize(bytes, serializer.identifier(), Serializers.manifestFor(serializer, obj)).get();
+            Assert.assertEquals(obj, deserialized);
+        }
+    }
+
+    @Test
+    public void shouldStillReadEventsAndStateWrittenAsJson() {
+        // 31 is the identifier of the jackson-json serializer that Jsonable is bound to
+        Serializer json = serialization.serializerByIdentity().apply(31);
+        for (Object obj : persistedObjects()) {
+            byte[] jsonBytes = json.toBinary(obj);
+            byte[] binaryBytes = serialization.serialize(obj).get();
+            logger.info("{}: {} bytes as JSON, {} bytes as binary", obj.getClass().getSimpleName(), jsonBytes.length, binaryBytes.length);
+
+            Object deserialized = serialization.deserialize(jsonBytes, json.identifier(), Serializers.manifestFor(json, obj)).get();
+            Assert.assertEquals(obj, deserialized);
+        }
+    }
+
+    @Test
+    public void shouldReadCheckedOutEventsWrittenWithoutItems() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(cartId);
+            out.writeLong(now.getEpochSecond());
+            out.writeInt(now.getNano());
+        }
+
+        Object deserialized = serialization.deserialize(bytes.toByteArray(), CartSerializer.IDENTIFIER, "C").get();
+        Assert.assertEquals(new CartEntity.CheckedOut(cartId, now), deserialized);
+        Assert.assertFalse(((CartEntity.CheckedOut) deserialized).getItems().isPresent());
+    }
+
+    @Test
+    public void shouldReadStateWrittenWithoutAVersion() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(1);
+            out.writeUTF("item-1");
+            out.writeInt(2);
+            out.writeBoolean(false);
+        }
+
+        Object deserialized = serialization.deserialize(bytes.toByteArray(), CartSerializer.IDENTIFIER, "S").get();
+        Assert.assertEquals(new CartEntity.ShoppingCart(HashTreePMap.singleton("item-1", 2), null, 0), deserialized);
+    }
+}
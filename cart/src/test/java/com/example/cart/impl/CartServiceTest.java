@@ -4,7 +4,9 @@ import akka.Done;
 import akka.japi.Pair;
 import com.example.cart.api.Quantity;
 import com.example.cart.api.CartItem;
+import com.example.cart.api.CartItemUpdate;
 import com.example.cart.api.CartService;
+import com.example.cart.api.CartUpdate;
 import com.example.cart.api.CartView;
 import com.lightbend.lagom.javadsl.api.transport.ResponseHeader;
 import com.lightbend.lagom.javadsl.testkit.ServiceTest;
@@ -13,6 +15,10 @@ import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -88,6 +94,26 @@ public class CartServiceTest {
         shoppingCartItem.ifPresent(item -> Assert.assertEquals(item.getQuantity(), newQuantity));
     }
 
+    @Test
+    public void shouldApplyABatchOfUpdates() {
+        String cartId = randomId();
+        String itemId = randomId();
+        String otherItemId = randomId();
+
+        Pair<ResponseHeader, CartView> result = Await.result(shoppingCartService.updateItems(cartId).withResponseHeader().invoke(
+                new CartUpdate(Arrays.asList(
+                        CartItemUpdate.add(itemId, 2),
+                        CartItemUpdate.add(otherItemId, 1),
+                        CartItemUpdate.adjust(itemId, 3)
+                ))));
+        ResponseHeader responseHeader = result.first();
+        CartView cartView = result.second();
+
+        Assert.assertEquals(responseHeader.status(), ResponseHeader.OK.status());
+        Assert.assertTrue(cartView.hasItem(otherItemId));
+        Assert.assertEquals(3, cartView.get(itemId).map(CartItem::getQuantity).orElse(0).intValue());
+    }
+
     @Test
     public void shouldAllowCheckingOut() {
         String cartId = randomId();
@@ -158,4 +184,67 @@ public class CartServiceTest {
             Assert.assertTrue(e.getCause().getMessage().contains("Quantity must be greater than zero"));
         }
     }
+
+    @Test
+    public void shouldNotSendAnUnchangedCartAgain() throws IOException {
+        String cartId = randomId();
+        Await.result(shoppingCartService.addItem(cartId).invoke(new CartItem(randomId(), 2)));
+
+        ResponseHeader first = Await.result(shoppingCartService.get(cartId).withResponseHeader().invoke()).first();
+        String etag = first.getHeader("ETag").orElseThrow(AssertionError::new);
+
+        // Polling with the tag it got gets nothing new while the cart is unchanged. This is over plain HTTP,
+        // like a browser would poll, since a service client expects a body to deserialize.
+        HttpURLConnection unchanged = conditionalGet(cartId, etag);
+        Assert.assertEquals(304, unchanged.getResponseCode());
+        Assert.assertEquals(etag, unchanged.getHeaderField("ETag"));
+        Assert.assertEquals(-1, unchanged.getInputStream().read());
+
+        // And the cart again, with a new tag, once it has changed
+        Await.result(shoppingCartService.addItem(cartId).invoke(new CartItem(randomId(), 1)));
+        HttpURLConnection changed = conditionalGet(cartId, etag);
+        Assert.assertEquals(200, changed.getResponseCode());
+        Assert.assertNotEquals(etag, changed.getHeaderField("ETag"));
+        Assert.assertNotEquals(-1, changed.getInputStream().read());
+    }
+
+    private HttpURLConnection conditionalGet(String cartId, String etag) throws IOException {
+        URL url = new URL("http://localhost:" + testServer.port() + "/cart/" + cartId);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestProperty("If-None-Match", etag);
+        return connection;
+    }
+
+    @Test
+    public void shouldMatchAnyOfTheTagsOfAConditionalGet() {
+        Assert.assertTrue(CartServiceImpl.matchesAny("\"3\"", "\"3\""));
+        Assert.assertTrue(CartServiceImpl.matchesAny("\"1\", W/\"3\"", "\"3\""));
+        Assert.assertTrue(CartServiceImpl.matchesAny("*", "\"3\""));
+        Assert.assertFalse(CartServiceImpl.matchesAny("\"13\", \"4\"", "\"3\""));
+    }
+
+    @Test
+    public void shouldNotTimeRequestsByDefault() {
+        String cartId = randomId();
+        String itemId = randomId();
+        Await.result(shoppingCartService.addItem(cartId).invoke(new CartItem(itemId, 2)));
+
+        ResponseHeader adjusted = Await.result(shoppingCartService.adjustItemQuantity(cartId, itemId)
+                .withResponseHeader().invoke(new Quantity(3))).first();
+
+        Assert.assertFalse(adjusted.getHeader("Server-Timing").isPresent());
+    }
+
+    @Test
+    public void shouldServeTheLatencyOfCommandsAsMetrics() {
+        String cartId = randomId();
+        Await.result(shoppingCartService.addItem(cartId).invoke(new CartItem(randomId(), 2)));
+
+        String metrics = Await.result(shoppingCartService.metrics().invoke());
+
+        Assert.assertTrue(metrics, metrics.contains("cart_ask_seconds_count{command=\"AddItem\",outcome=\"replied\",}"));
+        Assert.assertTrue(metrics, metrics.contains("cart_persist_seconds_count{command=\"AddItem\",}"));
+        Assert.assertTrue(metrics, metrics.contains("cart_entities{shard="));
+        Assert.assertTrue(metrics, metrics.contains("cart_recovery_seconds_count"));
+    }
 }
@@ -4,10 +4,12 @@ import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
 import akka.actor.testkit.typed.javadsl.TestProbe;
 import akka.actor.typed.ActorRef;
 import akka.cluster.sharding.typed.javadsl.EntityContext;
+import com.example.cart.api.CartItemUpdate;
 import org.junit.Assert;
 import org.junit.ClassRule;
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.UUID;
 
 public class CartTest {
@@ -130,6 +132,33 @@ public class CartTest {
         Assert.assertTrue(summary.getItems().containsKey(itemId));
     }
 
+    @Test
+    public void shouldVersionTheCartWithItsEvents() {
+        String cartId = randomId();
+        ActorRef<CartEntity.Command> shoppingCart = createTestCart(cartId);
+        TestProbe<CartEntity.Confirmation> probe = testKit.createTestProbe(CartEntity.Confirmation.class);
+        TestProbe<CartEntity.Summary> getProbe = testKit.createTestProbe(CartEntity.Summary.class);
+
+        // A batch of two updates is two events
+        shoppingCart.tell(new CartEntity.UpdateItems(Arrays.asList(
+                CartItemUpdate.add(randomId(), 2),
+                CartItemUpdate.add(randomId(), 1)
+        ), probe.ref()));
+        CartEntity.Accepted accepted = (CartEntity.Accepted) probe.receiveMessage();
+        Assert.assertEquals(2, accepted.getSummary().getVersion());
+
+        // The summary of an unchanged cart isn't built again
+        shoppingCart.tell(new CartEntity.Get(getProbe.ref()));
+        Assert.assertSame(accepted.getSummary(), getProbe.receiveMessage());
+        shoppingCart.tell(new CartEntity.RemoveItem(randomId(), probe.ref()));
+        Assert.assertSame(accepted.getSummary(), ((CartEntity.Accepted) probe.receiveMessage()).getSummary());
+
+        shoppingCart.tell(new CartEntity.Checkout(probe.ref()));
+        CartEntity.Summary checkedOut = ((CartEntity.Accepted) probe.receiveMessage()).getSummary();
+        Assert.assertEquals(3, checkedOut.getVersion());
+        Assert.assertTrue(checkedOut.isCheckedOut());
+    }
+
     @Test
     public void shouldNotChangeTheCartWhenRemovingItemThatIsNotThere() {
         String cartId = randomId();
@@ -253,4 +282,79 @@ public class CartTest {
         shoppingCart.tell(new CartEntity.Checkout(probe.ref()));
         probe.expectMessageClass(CartEntity.Rejected.class);
     }
+
+    @Test
+    public void shouldApplyABatchOfUpdates() {
+        String cartId = randomId();
+        ActorRef<CartEntity.Command> shoppingCart = createTestCart(cartId);
+        TestProbe<CartEntity.Confirmation> probe = testKit.createTestProbe(CartEntity.Confirmation.class);
+
+        // First add an item that the batch will remove
+        String removedItemId = randomId();
+        shoppingCart.tell(new CartEntity.AddItem(removedItemId, 1, probe.ref()));
+        probe.expectMessageClass(CartEntity.Accepted.class);
+
+        // Add, adjust and remove in one batch
+        String itemId = randomId();
+        shoppingCart.tell(new CartEntity.UpdateItems(Arrays.asList(
+                CartItemUpdate.add(itemId, 2),
+                CartItemUpdate.adjust(itemId, 5),
+                CartItemUpdate.remove(removedItemId)
+        ), probe.ref()));
+
+        // And check all changes were applied
+        CartEntity.Accepted accepted = (CartEntity.Accepted) probe.receiveMessage();
+        Assert.assertEquals(Integer.valueOf(5), accepted.getSummary().getItems().get(itemId));
+        Assert.assertFalse(accepted.getSummary().getItems().containsKey(removedItemId));
+    }
+
+    @Test
+    public void shouldRejectTheWholeBatchWhenOneUpdateIsInvalid() {
+        String cartId = randomId();
+        ActorRef<CartEntity.Command> shoppingCart = createTestCart(cartId);
+        TestProbe<CartEntity.Confirmation> probe = testKit.createTestProbe(CartEntity.Confirmation.class);
+
+        // Adjusting an item that is not in the cart makes the batch invalid
+        String itemId = randomId();
+        shoppingCart.tell(new CartEntity.UpdateItems(Arrays.asList(
+                CartItemUpdate.add(itemId, 2),
+                CartItemUpdate.adjust(randomId(), 5)
+        ), probe.ref()));
+        probe.expectMessageClass(CartEntity.Rejected.class);
+
+        // And check the valid part of the batch was not applied either
+        TestProbe<CartEntity.Summary> getProbe = testKit.createTestProbe(CartEntity.Summary.class);
+        shoppingCart.tell(new CartEntity.Get(getProbe.ref()));
+        Assert.assertFalse(getProbe.receiveMessage().getItems().containsKey(itemId));
+    }
+
+    @Test
+    public void shouldRecoverACheckedOutCartFromASnapshot() {
+        String cartId = randomId();
+        RecoveryMetrics recoveryMetrics = new RecoveryMetrics();
+        EntityContext<CartEntity.Command> entityContext = new EntityContext<>(CartEntity.ENTITY_TYPE_KEY, cartId, null);
+        ActorRef<CartEntity.Command> shoppingCart = testKit.spawn(CartEntity.create(entityContext, CartSnapshotSettings.DEFAULT, recoveryMetrics));
+        TestProbe<CartEntity.Confirmation> probe = testKit.createTestProbe(CartEntity.Confirmation.class);
+        TestProbe<CartEntity.Summary> getProbe = testKit.createTestProbe(CartEntity.Summary.class);
+
+        // Add an item and check out, which takes a snapshot
+        shoppingCart.tell(new CartEntity.AddItem(randomId(), 10, probe.ref()));
+        probe.expectMessageClass(CartEntity.Accepted.class);
+        shoppingCart.tell(new CartEntity.Checkout(probe.ref()));
+        probe.expectMessageClass(CartEntity.Accepted.class);
+        shoppingCart.tell(new CartEntity.Get(getProbe.ref()));
+        getProbe.receiveMessage();
+
+        // Restart the cart
+        testKit.stop(shoppingCart);
+        ActorRef<CartEntity.Command> restarted = testKit.spawn(CartEntity.create(entityContext, CartSnapshotSettings.DEFAULT, recoveryMetrics));
+        restarted.tell(new CartEntity.Get(getProbe.ref()));
+
+        // And check it came back from the snapshot without replaying events, at the same version
+        CartEntity.Summary recovered = getProbe.receiveMessage();
+        Assert.assertTrue(recovered.isCheckedOut());
+        Assert.assertEquals(2, recovered.getVersion());
+        Assert.assertEquals(2, recoveryMetrics.getRecoveries());
+        Assert.assertEquals(0, recoveryMetrics.getEventsReplayed());
+    }
 }
@@ -0,0 +1,39 @@
+package com.example.cart.impl;
+
+import com.example.cart.api.CartView;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Optional;
+
+public class CartViewCacheTest {
+
+    private static CartEntity.Summary summary(String itemId, long version) {
+        return new CartEntity.Summary("cart", Collections.singletonMap(itemId, 1), false, Optional.empty(), version);
+    }
+
+    @Test
+    public void shouldBuildTheViewOfAnUnchangedCartOnce() {
+        CartViewCache cache = new CartViewCache(100, Duration.ofMinutes(1));
+
+        CartView view = cache.get(summary("item", 1));
+
+        Assert.assertSame(view, cache.get(summary("item", 1)));
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void shouldOnlyServeTheViewOfTheSameVersion() {
+        CartViewCache cache = new CartViewCache(100, Duration.ofMinutes(1));
+        cache.get(summary("item", 1));
+
+        Assert.assertTrue(cache.get(summary("other", 2)).hasItem("other"));
+        // A reply that arrived late doesn't replace the newer view
+        Assert.assertTrue(cache.get(summary("item", 1)).hasItem("item"));
+        Assert.assertTrue(cache.get(summary("other", 2)).hasItem("other"));
+        Assert.assertEquals(1, cache.getHits());
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.cart.impl;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ItemQuantitiesTest {
+
+    @Test
+    public void shouldKeepItemsSortedByItemId() {
+        ItemQuantities items = ItemQuantities.EMPTY.plus("b", 2).plus("c", 3).plus("a", 1);
+
+        List<String> itemIds = new ArrayList<>(items.keySet());
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), itemIds);
+        Assert.assertEquals(ImmutableMap.of("a", 1, "b", 2, "c", 3), items);
+    }
+
+    @Test
+    public void shouldNotChangeTheOriginalWhenUpdating() {
+        ItemQuantities items = ItemQuantities.EMPTY.plus("a", 1).plus("b", 2);
+
+        ItemQuantities adjusted = items.plus("a", 5);
+        ItemQuantities removed = items.minus("b");
+
+        Assert.assertEquals(ImmutableMap.of("a", 1, "b", 2), items);
+        Assert.assertEquals(ImmutableMap.of("a", 5, "b", 2), adjusted);
+        Assert.assertEquals(ImmutableMap.of("a", 1), removed);
+    }
+
+    @Test
+    public void shouldIgnoreRemovingAnItemThatIsNotThere() {
+        ItemQuantities items = ItemQuantities.EMPTY.plus("a", 1);
+
+        Assert.assertSame(items, items.minus("b"));
+        Assert.assertTrue(items.minus("a").isEmpty());
+    }
+
+    @Test
+    public void shouldBehaveLikeAHashMap() {
+        Map<String, Integer> expected = new HashMap<>();
+        ItemQuantities items = ItemQuantities.EMPTY;
+        for (int i = 0; i < 100; i++) {
+            String itemId = Integer.toString((i * 37) % 50);
+            if (i % 3 == 0) {
+                expected.remove(itemId);
+                items = items.minus(itemId);
+            } else {
+                expected.put(itemId, i);
+                items = items.plus(itemId, i);
+            }
+        }
+
+        Assert.assertEquals(expected, items);
+        Assert.assertEquals(expected.hashCode(), items.hashCode());
+        Assert.assertEquals(items, ItemQuantities.from(expected));
+        Assert.assertNull(items.get("not-there"));
+    }
+}
@@ -0,0 +1,61 @@
+package com.example.cart.impl;
+
+import com.example.cart.api.CartItem;
+import com.example.cart.api.CartService;
+import com.example.cart.api.Quantity;
+import com.lightbend.lagom.javadsl.api.transport.ResponseHeader;
+import com.lightbend.lagom.javadsl.testkit.ServiceTest;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static com.lightbend.lagom.javadsl.testkit.ServiceTest.defaultSetup;
+
+/**
+ * The cart service with <code>cart.server-timing.enabled</code> on, which {@link CartServiceTest} leaves off.
+ */
+public class ServerTimingServiceTest {
+
+    private static ServiceTest.TestServer testServer;
+    private static CartService shoppingCartService;
+
+    @BeforeClass
+    public static void startServer() {
+        testServer = ServiceTest.startServer(defaultSetup().withJdbc()
+                .configureBuilder(b -> b.configure("cart.server-timing.enabled", true)));
+        shoppingCartService = testServer.client(CartService.class);
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        testServer.stop();
+    }
+
+    @Test
+    public void shouldTimeTheStagesOfARequest() {
+        String cartId = UUID.randomUUID().toString();
+        String itemId = UUID.randomUUID().toString();
+        Await.result(shoppingCartService.addItem(cartId).invoke(new CartItem(itemId, 2)));
+
+        ResponseHeader adjusted = Await.result(shoppingCartService.adjustItemQuantity(cartId, itemId)
+                .withResponseHeader().invoke(new Quantity(3))).first();
+
+        String timing = adjusted.getHeader("Server-Timing").orElse("");
+        Assert.assertTrue(timing, timing.matches(
+                "request;dur=[0-9.]+, route;dur=[0-9.]+, handle;dur=[0-9.]+, persist;dur=[0-9.]+, view;dur=[0-9.]+, total;dur=[0-9.]+"));
+    }
+
+    @Test
+    public void shouldTimeAConditionalGet() {
+        String cartId = UUID.randomUUID().toString();
+        Await.result(shoppingCartService.addItem(cartId).invoke(new CartItem(UUID.randomUUID().toString(), 2)));
+
+        ResponseHeader got = Await.result(shoppingCartService.get(cartId).withResponseHeader().invoke()).first();
+
+        Assert.assertTrue(got.getHeader("ETag").isPresent());
+        Assert.assertTrue(got.getHeader("Server-Timing").orElse("").contains("total;dur="));
+    }
+}
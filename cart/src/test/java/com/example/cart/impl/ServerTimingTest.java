@@ -0,0 +1,42 @@
+package com.example.cart.impl;
+
+import com.example.cart.api.RequestStartFilter;
+import com.lightbend.lagom.javadsl.api.transport.RequestHeader;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Optional;
+
+public class ServerTimingTest {
+
+    private static final CartEntity.Summary SUMMARY = new CartEntity.Summary("cart", Collections.emptyMap(), false, Optional.empty(), 0);
+
+    @Test
+    public void shouldSplitAnAskIntoTheStagesTheEntityMeasured() {
+        ServerTiming timing = ServerTiming.of(RequestHeader.DEFAULT);
+
+        timing.ask(5000000, new CartEntity.Accepted(SUMMARY, 1000000, 3000000));
+        String header = timing.render();
+
+        Assert.assertTrue(header, header.startsWith("route;dur=1.000, handle;dur=1.000, persist;dur=3.000, total;dur="));
+    }
+
+    @Test
+    public void shouldTimeTheRequestFromWhenItWasStamped() {
+        long arrived = System.nanoTime() - 2000000;
+        ServerTiming timing = ServerTiming.of(RequestHeader.DEFAULT.withHeader(RequestStartFilter.HEADER, Long.toString(arrived)));
+
+        timing.ask(1000000, SUMMARY);
+        String header = timing.render();
+
+        Assert.assertTrue(header, header.matches("request;dur=[0-9.]+, route;dur=1.000, total;dur=[0-9.]+"));
+        double request = Double.parseDouble(header.substring("request;dur=".length(), header.indexOf(',')));
+        Assert.assertTrue(header, request >= 2.0);
+    }
+
+    @Test
+    public void shouldStillDoTheWorkWhenOff() {
+        Assert.assertEquals("view", ServerTiming.NONE.measure("view", () -> "view"));
+    }
+}
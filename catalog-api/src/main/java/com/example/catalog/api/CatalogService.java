@@ -2,12 +2,17 @@ package com.example.catalog.api;
 
 import akka.Done;
 import akka.NotUsed;
+import akka.stream.javadsl.Source;
 import com.lightbend.lagom.javadsl.api.Descriptor;
 import com.lightbend.lagom.javadsl.api.Service;
 import com.lightbend.lagom.javadsl.api.ServiceCall;
 import com.lightbend.lagom.javadsl.api.transport.Method;
 
+import java.util.List;
+import java.util.Map;
+
 import static com.lightbend.lagom.javadsl.api.Service.named;
+import static com.lightbend.lagom.javadsl.api.Service.pathCall;
 import static com.lightbend.lagom.javadsl.api.Service.restCall;
 
 /**
@@ -27,12 +32,40 @@ public interface CatalogService extends Service {
      */
     ServiceCall<Integer, Done> add(String productId);
 
+    /**
+     * Get the inventory levels of several products at once, by product id.
+     */
+    ServiceCall<List<String>, Map<String, Integer>> getAll();
+
+    /**
+     * Add inventory to several products at once, the quantity to add by product id.
+     */
+    ServiceCall<Map<String, Integer>, Done> addAll();
+
+    /**
+     * Stream the stock levels of the given product ids as they change, over a WebSocket. Only the latest level of
+     * each product is kept for a subscriber that doesn't keep up. The current levels are not sent, get them with
+     * {@link #getAll} after subscribing.
+     */
+    ServiceCall<List<String>, Source<StockLevel, NotUsed>> changes();
+
+    /**
+     * The metrics of the catalog service on the node that serves the call, in the Prometheus text format: how far
+     * the checkout consumer is behind and how fast it goes, the duplicates it skipped, and the stock changes and
+     * reads of the inventory.
+     */
+    ServiceCall<NotUsed, String> metrics();
+
     @Override
     default Descriptor descriptor() {
         return named("catalog")
                 .withCalls(
                         restCall(Method.GET, "/catalog/:productId", this::get),
-                        restCall(Method.POST, "/catalog/:productId", this::add)
+                        restCall(Method.POST, "/catalog/:productId", this::add),
+                        restCall(Method.POST, "/catalog/bulk/get", this::getAll),
+                        restCall(Method.POST, "/catalog/bulk/add", this::addAll),
+                        pathCall("/catalog/bulk/changes", this::changes),
+                        restCall(Method.GET, "/metrics/catalog", this::metrics)
                 )
                 .withAutoAcl(true);
     }
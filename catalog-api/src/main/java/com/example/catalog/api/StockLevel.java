@@ -0,0 +1,28 @@
+package com.example.catalog.api;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.google.common.base.Preconditions;
+import lombok.Value;
+
+/**
+ * The stock level of a product after it changed.
+ */
+@Value
+@JsonDeserialize
+public final class StockLevel {
+    /**
+     * The ID of the product.
+     */
+    public final String productId;
+    /**
+     * The quantity of this product in stock.
+     */
+    public final int quantity;
+
+    @JsonCreator
+    public StockLevel(String productId, int quantity) {
+        this.productId = Preconditions.checkNotNull(productId, "productId");
+        this.quantity = quantity;
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.catalog.impl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Throughput of reading and changing the stock of one popular product, with {@link HotStock} disabled, which is how
+ * the inventory entities were used before, and enabled.
+ * <p>
+ * The inventory entity is simulated by a single thread that handles one command at a time, and takes
+ * <code>persistMicros</code> for each stock change it persists, like the actor persisting an event does. Run the
+ * main method from the benchmark jar for 1 to 64 threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HotStockBenchmark {
+
+    private static final String PRODUCT_ID = "hot";
+
+    @Param({"false", "true"})
+    public boolean combined;
+
+    @Param({"1000"})
+    public long persistMicros;
+
+    private ExecutorService entity;
+    private HotStock hotStock;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        entity = Executors.newSingleThreadExecutor();
+        hotStock = new HotStock(new SimulatedInventory(), new HotStockSettings(combined, Duration.ofMillis(100), 100,
+                Duration.ofMinutes(10)));
+        // Well above precise-below, so reads can be served from the cache
+        hotStock.adjust(PRODUCT_ID, Integer.MAX_VALUE / 2).toCompletableFuture().join();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        entity.shutdownNow();
+    }
+
+    @Benchmark
+    public int add() {
+        return hotStock.adjust(PRODUCT_ID, 1).toCompletableFuture().join();
+    }
+
+    @Benchmark
+    public int get() {
+        return hotStock.get(PRODUCT_ID).toCompletableFuture().join();
+    }
+
+    private class SimulatedInventory implements HotStock.Inventory {
+        private int quantity;
+
+        @Override
+        public CompletionStage<Integer> adjust(String productId, int delta) {
+            return CompletableFuture.supplyAsync(() -> {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(persistMicros));
+                quantity += delta;
+                return quantity;
+            }, entity);
+        }
+
+        @Override
+        public CompletionStage<Integer> get(String productId) {
+            return CompletableFuture.supplyAsync(() -> quantity, entity);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[]{1, 4, 16, 64}) {
+            new Runner(new OptionsBuilder()
+                    .include(HotStockBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build()).run();
+        }
+    }
+}
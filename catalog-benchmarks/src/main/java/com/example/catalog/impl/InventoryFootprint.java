@@ -0,0 +1,121 @@
+package com.example.catalog.impl;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the heap footprint and garbage collection pauses of stock levels held in a map of objects on the heap,
+ * and in {@link OffHeapInventory}. It stocks the products, measures the heap left in use and a full collection, and
+ * then changes and reads random products while allocating like request handling does, recording every pause.
+ * Run the main method from the benchmark jar with the same heap settings for both, such as
+ * <code>-Xmx2g -XX:+UseG1GC InventoryFootprint heap 5000000 30</code>, then with <code>off-heap</code>.
+ */
+public class InventoryFootprint {
+
+    private static final AtomicLong pauses = new AtomicLong();
+    private static final AtomicLong pauseMillis = new AtomicLong();
+    private static final AtomicLong maxPauseMillis = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        String store = args.length > 0 ? args[0] : "off-heap";
+        int products = args.length > 1 ? Integer.parseInt(args[1]) : 5000000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+
+        HotStock.Inventory inventory;
+        Path file = null;
+        if (store.equals("heap")) {
+            inventory = new HeapInventory();
+        } else {
+            file = Files.createTempFile("inventory-footprint", "");
+            Files.delete(file);
+            inventory = new OffHeapInventory(new OffHeapInventorySettings(file, products));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < products; i++) {
+            inventory.adjust("product-" + i, 100);
+        }
+        System.out.printf("%s: stocked %d products in %d ms%n", store, products, (System.nanoTime() - start) / 1000000);
+
+        start = System.nanoTime();
+        System.gc();
+        long fullGcMillis = (System.nanoTime() - start) / 1000000;
+        long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        long mapped = 0;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("mapped")) {
+                mapped = pool.getMemoryUsed();
+            }
+        }
+        System.out.printf("%s: heap used %d MB, mapped %d MB, full collection %d ms%n",
+                store, heapUsed >> 20, mapped >> 20, fullGcMillis);
+
+        listenToCollections();
+        long operations = 0;
+        long garbage = 0;
+        long end = System.nanoTime() + seconds * 1000000000L;
+        while (System.nanoTime() < end) {
+            for (int i = 0; i < 1000; i++) {
+                String productId = "product-" + ThreadLocalRandom.current().nextInt(products);
+                CompletionStage<Integer> stock = ThreadLocalRandom.current().nextBoolean()
+                        ? inventory.adjust(productId, -1) : inventory.get(productId);
+                // What a request allocates besides its product id, which dies young
+                byte[] request = new byte[512];
+                garbage += request.length + stock.toCompletableFuture().join();
+            }
+            operations += 1000;
+        }
+        System.out.printf("%s: %d operations/s, %d collections taking %d ms, longest %d ms (%d)%n",
+                store, operations / seconds, pauses.get(), pauseMillis.get(), maxPauseMillis.get(), garbage & 1);
+
+        if (file != null) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static void listenToCollections() {
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ((NotificationEmitter) collector).addNotificationListener((notification, handback) -> {
+                if (notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                    long duration = GarbageCollectionNotificationInfo
+                            .from((CompositeData) notification.getUserData()).getGcInfo().getDuration();
+                    pauses.incrementAndGet();
+                    pauseMillis.addAndGet(duration);
+                    maxPauseMillis.accumulateAndGet(duration, Math::max);
+                }
+            }, null, null);
+        }
+    }
+
+    /**
+     * Stock levels in objects on the heap, an entry, a product id and a counter per product.
+     */
+    private static final class HeapInventory implements HotStock.Inventory {
+        private final ConcurrentHashMap<String, AtomicInteger> stock = new ConcurrentHashMap<>();
+
+        @Override
+        public CompletionStage<Integer> adjust(String productId, int delta) {
+            return CompletableFuture.completedFuture(
+                    stock.computeIfAbsent(productId, id -> new AtomicInteger()).addAndGet(delta));
+        }
+
+        @Override
+        public CompletionStage<Integer> get(String productId) {
+            AtomicInteger quantity = stock.get(productId);
+            return CompletableFuture.completedFuture(quantity == null ? 0 : quantity.get());
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.catalog.impl;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.javadsl.Adapter;
+import akka.actor.typed.javadsl.AskPattern;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.cluster.MemberStatus;
+import akka.cluster.ddata.Key;
+import akka.cluster.ddata.PNCounterMap;
+import akka.cluster.ddata.PNCounterMapKey;
+import akka.cluster.ddata.SelfUniqueAddress;
+import akka.cluster.ddata.typed.javadsl.DistributedData;
+import akka.cluster.ddata.typed.javadsl.Replicator;
+import akka.cluster.typed.Cluster;
+import akka.cluster.typed.Join;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.math.BigInteger;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.StreamSupport;
+
+/**
+ * Measures how {@link ReplicatedInventory} spreads the stock of 100k products over a cluster of two nodes in this
+ * JVM: how long it takes for the other node to see all of them after they are stocked on one node, and again after
+ * a burst of changes to random products, and how large the state and the changes are when they are gossiped.
+ * Run the main method from the benchmark jar.
+ */
+public class ReplicatedInventoryConvergence {
+
+    // Can be changed with the first argument
+    private static int PRODUCTS = 100000;
+    private static final int SHARDS = ConfigFactory.load().getInt("catalog.inventory.replicated.shards");
+    private static final int CHANGES = 10000;
+    // Stock changes waiting for the replicator at once, which handles them one at a time
+    private static final int IN_FLIGHT = 100;
+
+    private static final Config CLUSTER_CONFIG = ConfigFactory.parseString(
+            "akka.actor.provider = cluster \n"
+                    + "akka.remote.artery.canonical.hostname = 127.0.0.1 \n"
+                    + "akka.remote.artery.canonical.port = 0 \n"
+                    + "akka.cluster.jmx.multi-mbeans-in-same-jvm = on \n")
+            .withFallback(ConfigFactory.defaultReference());
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            PRODUCTS = Integer.parseInt(args[0]);
+        }
+        // With the catalog's replication settings and the default gossip interval
+        Config config = ConfigFactory.parseString("akka.cluster.distributed-data.gossip-interval = 2s")
+                .withFallback(ConfigFactory.load().getConfig("akka.cluster.distributed-data")
+                        .atPath("akka.cluster.distributed-data"))
+                .withFallback(CLUSTER_CONFIG);
+        ActorSystem<Void> node1 = ActorSystem.create(Behaviors.empty(), "ReplicatedInventoryConvergence", config);
+        ActorSystem<Void> node2 = ActorSystem.create(Behaviors.empty(), "ReplicatedInventoryConvergence", config);
+        try {
+            formCluster(node1, node2);
+            ReplicatedInventorySettings settings = new ReplicatedInventorySettings(SHARDS, false, Duration.ofSeconds(10));
+            ReplicatedInventory inventory = new ReplicatedInventory(node1, settings);
+
+            long start = System.nanoTime();
+            stock(inventory, 1000);
+            long written = System.nanoTime();
+            long expectedTotal = 1000L * PRODUCTS;
+            awaitTotal(node2, expectedTotal);
+            long converged = System.nanoTime();
+            System.out.println("Stocked " + PRODUCTS + " products on node 1 in " + millis(written - start)
+                    + " ms, all seen on node 2 " + millis(converged - written) + " ms later");
+
+            Random random = new Random(42);
+            int[] products = new int[CHANGES];
+            for (int i = 0; i < CHANGES; i++) {
+                products[i] = random.nextInt(PRODUCTS);
+            }
+            start = System.nanoTime();
+            for (int from = 0; from < CHANGES; from += IN_FLIGHT) {
+                List<CompletableFuture<Integer>> changes = new ArrayList<>(IN_FLIGHT);
+                for (int i = from; i < from + IN_FLIGHT; i++) {
+                    changes.add(inventory.adjust("product-" + products[i], -1).toCompletableFuture());
+                }
+                CompletableFuture.allOf(changes.toArray(new CompletableFuture[0])).join();
+            }
+            written = System.nanoTime();
+            awaitTotal(node2, expectedTotal - CHANGES);
+            converged = System.nanoTime();
+            System.out.println("Changed " + CHANGES + " random products on node 1 in " + millis(written - start)
+                    + " ms, all seen on node 2 " + millis(converged - written) + " ms later");
+
+            Serialization serialization = SerializationExtension.get(Adapter.toClassic(node1));
+            long stateBytes = 0;
+            for (int shard = 0; shard < SHARDS; shard++) {
+                stateBytes += serialization.serialize(read(node1, key(shard))).get().length;
+            }
+            System.out.println("Full state of all " + SHARDS + " counter maps: " + stateBytes / 1024 + " KB, "
+                    + stateBytes / PRODUCTS + " bytes per product");
+
+            SelfUniqueAddress self = DistributedData.get(node1).selfUniqueAddress();
+            PNCounterMap<String> shard = read(node1, key(0));
+            String product = shard.getEntries().keySet().iterator().next();
+            Object delta = shard.resetDelta().increment(self, product, -1).delta().get();
+            System.out.println("Delta gossiped for one stock change: " + serialization.serialize(delta).get().length
+                    + " bytes, against " + serialization.serialize(shard).get().length + " bytes for its whole counter map");
+        } finally {
+            node2.terminate();
+            node1.terminate();
+        }
+    }
+
+    private static void formCluster(ActorSystem<Void> node1, ActorSystem<Void> node2) throws InterruptedException {
+        Cluster.get(node1).manager().tell(Join.create(Cluster.get(node1).selfMember().address()));
+        Cluster.get(node2).manager().tell(Join.create(Cluster.get(node1).selfMember().address()));
+        for (int attempt = 0; attempt < 100; attempt++) {
+            long up = StreamSupport.stream(Cluster.get(node1).state().getMembers().spliterator(), false)
+                    .filter(member -> member.status() == MemberStatus.up()).count();
+            if (up == 2) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        throw new IllegalStateException("The cluster didn't form");
+    }
+
+    private static void stock(ReplicatedInventory inventory, int quantity) {
+        for (int from = 0; from < PRODUCTS; from += IN_FLIGHT) {
+            List<CompletableFuture<Integer>> stocked = new ArrayList<>(IN_FLIGHT);
+            for (int i = from; i < from + IN_FLIGHT; i++) {
+                stocked.add(inventory.adjust("product-" + i, quantity).toCompletableFuture());
+            }
+            CompletableFuture.allOf(stocked.toArray(new CompletableFuture[0])).join();
+        }
+    }
+
+    private static void awaitTotal(ActorSystem<Void> node, long expected) throws InterruptedException {
+        while (true) {
+            long total = 0;
+            for (int shard = 0; shard < SHARDS; shard++) {
+                PNCounterMap<String> stock = read(node, key(shard));
+                for (BigInteger quantity : stock.getEntries().values()) {
+                    total += quantity.longValue();
+                }
+            }
+            if (total == expected) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static Key<PNCounterMap<String>> key(int shard) {
+        return PNCounterMapKey.create("inventory-" + shard);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static PNCounterMap<String> read(ActorSystem<Void> node, Key<PNCounterMap<String>> key) {
+        Replicator.GetResponse<PNCounterMap<String>> response =
+                AskPattern.<Replicator.Command, Replicator.GetResponse<PNCounterMap<String>>>ask(
+                        DistributedData.get(node).replicator(),
+                        replyTo -> new Replicator.Get<>(key, Replicator.readLocal(), replyTo),
+                        Duration.ofSeconds(10), node.scheduler()).toCompletableFuture().join();
+        if (response instanceof Replicator.GetSuccess) {
+            return ((Replicator.GetSuccess<PNCounterMap<String>>) response).get(key);
+        }
+        return PNCounterMap.create();
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1000000;
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.catalog.impl;
+
+import com.example.cart.api.CartView;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.jvm.JvmGcMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmMemoryMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmThreadMetrics;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * The metrics of the catalog service on this node, served in the Prometheus text format by
+ * {@link CatalogServiceImpl#metrics()}.
+ * <p>
+ * The checkout consumer records every cart it takes from the topic, and how long after its checkout the cart's
+ * items were removed from stock, which is how far the consumer is behind the cart service. The counters of
+ * {@link CheckoutDeduplicator} and {@link HotStock} are read when the metrics are scraped.
+ */
+final class CatalogMetrics {
+
+    // Where the histogram buckets of the consumer lag start and end
+    private static final Duration MIN_EXPECTED_LAG = Duration.ofMillis(10);
+    private static final Duration MAX_EXPECTED_LAG = Duration.ofMinutes(10);
+
+    private final PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+
+    private final Counter appliedCheckouts;
+    private final Counter duplicateCheckouts;
+    private final Timer consumerLag;
+
+    CatalogMetrics(CheckoutDeduplicator deduplicator, HotStock hotStock) {
+        appliedCheckouts = Counter.builder("catalog.consumer.checkouts")
+                .description("Checkouts taken from the cart topic")
+                .tag("outcome", "applied")
+                .register(registry);
+        duplicateCheckouts = Counter.builder("catalog.consumer.checkouts")
+                .description("Checkouts taken from the cart topic")
+                .tag("outcome", "duplicate")
+                .register(registry);
+        consumerLag = Timer.builder("catalog.consumer.lag")
+                .description("From the checkout of a cart to its items being removed from stock")
+                .publishPercentileHistogram()
+                .minimumExpectedValue(MIN_EXPECTED_LAG)
+                .maximumExpectedValue(MAX_EXPECTED_LAG)
+                .register(registry);
+
+        FunctionCounter.builder("catalog.dedup.checked", deduplicator, CheckoutDeduplicator::getChecked)
+                .description("Checkouts checked for having been delivered before")
+                .register(registry);
+        FunctionCounter.builder("catalog.dedup.hits", deduplicator, CheckoutDeduplicator::getExactHits)
+                .description("Duplicates found among the recent carts, or by the Bloom filter only")
+                .tag("by", "recent")
+                .register(registry);
+        FunctionCounter.builder("catalog.dedup.hits", deduplicator, CheckoutDeduplicator::getBloomHits)
+                .description("Duplicates found among the recent carts, or by the Bloom filter only")
+                .tag("by", "bloom")
+                .register(registry);
+        Gauge.builder("catalog.dedup.false.positive.rate", deduplicator, CheckoutDeduplicator::getEstimatedFalsePositiveRate)
+                .description("The estimated fraction of the Bloom filter hits that weren't duplicates")
+                .register(registry);
+
+        FunctionCounter.builder("catalog.stock.adjustments", hotStock, HotStock::getAdjustments)
+                .description("Stock changes requested on this node, including those combined with others")
+                .register(registry);
+        FunctionCounter.builder("catalog.stock.writes", hotStock, HotStock::getWrites)
+                .description("Stock changes sent to the inventory")
+                .register(registry);
+        FunctionCounter.builder("catalog.stock.reads", hotStock, HotStock::getCachedReads)
+                .description("Stock reads served from the cache, or from the inventory")
+                .tag("from", "cache")
+                .register(registry);
+        FunctionCounter.builder("catalog.stock.reads", hotStock, HotStock::getPreciseReads)
+                .description("Stock reads served from the cache, or from the inventory")
+                .tag("from", "inventory")
+                .register(registry);
+
+        new JvmMemoryMetrics().bindTo(registry);
+        new JvmGcMetrics().bindTo(registry);
+        new JvmThreadMetrics().bindTo(registry);
+    }
+
+    /**
+     * Records a checkout taken from the topic, once its items have been removed from stock or it was skipped.
+     */
+    void recordCheckout(CartView cart, boolean duplicate) {
+        if (duplicate) {
+            duplicateCheckouts.increment();
+            return;
+        }
+        appliedCheckouts.increment();
+        // Measured between the clocks of the cart and catalog nodes
+        cart.getCheckoutDate().ifPresent(checkoutDate -> consumerLag.record(Duration.between(checkoutDate, Instant.now())));
+    }
+
+    String scrape() {
+        return registry.scrape();
+    }
+}
@@ -2,64 +2,304 @@ package com.example.catalog.impl;
 
 import akka.Done;
 import akka.NotUsed;
+import akka.actor.ActorSystem;
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.javadsl.Adapter;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.cluster.ClusterEvent;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
+import akka.cluster.sharding.typed.javadsl.Entity;
+import akka.cluster.sharding.typed.javadsl.EntityRef;
+import akka.cluster.typed.Cluster;
+import akka.cluster.typed.Subscribe;
 import akka.stream.javadsl.Flow;
+import akka.stream.javadsl.Source;
+import com.example.cart.api.CartItem;
 import com.example.cart.api.CartView;
 import com.lightbend.lagom.javadsl.api.ServiceCall;
+import com.lightbend.lagom.javadsl.api.transport.BadRequest;
+import com.lightbend.lagom.javadsl.persistence.PersistentEntityRegistry;
 
 import com.example.cart.api.CartService;
 import com.example.catalog.api.CatalogService;
+import com.example.catalog.api.StockLevel;
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CompletionStage;
 
 /**
  * Implementation of the ProductCatalogService.
  */
 @Singleton
 public class CatalogServiceImpl implements CatalogService {
-    private final ConcurrentMap<String, AtomicInteger> catalog = new ConcurrentHashMap<>();
+
+    private final ClusterSharding clusterSharding;
+
+    private final CheckoutDeduplicator deduplicator;
+
+    private final HotStock hotStock;
+
+    private final StockFeed stockFeed;
+
+    private final CatalogMetrics metrics;
+
+    private final Duration askTimeout = Duration.ofSeconds(5);
+
+    private static final int MAX_BULK_PRODUCTS = 1000;
+
+    final private Logger logger = LoggerFactory.getLogger(this.getClass());
 
     @Inject
-    public CatalogServiceImpl(CartService shoppingCartService) {
+    public CatalogServiceImpl(ActorSystem system,
+                              CartService shoppingCartService,
+                              ClusterSharding clusterSharding,
+                              // Not used directly, but it makes Lagom set up the database for the journal before
+                              // any inventory entity is started
+                              PersistentEntityRegistry persistentEntityRegistry,
+                              CheckoutDeduplicator deduplicator,
+                              Config config) {
+        this.clusterSharding = clusterSharding;
+        this.deduplicator = deduplicator;
+        this.stockFeed = new StockFeed(system);
+        HotStock.Inventory inventory;
+        HotStockSettings hotStockSettings = HotStockSettings.fromConfig(config);
+        String store = config.getString("catalog.inventory.store");
+        if (store.equals("replicated")) {
+            inventory = stockFeed.following(
+                    new ReplicatedInventory(Adapter.toTyped(system), ReplicatedInventorySettings.fromConfig(config)));
+        } else if (store.equals("off-heap")) {
+            requireSingleNode(system, config);
+            inventory = stockFeed.publishing(new OffHeapInventory(OffHeapInventorySettings.fromConfig(config)));
+            // Its stock changes don't queue up and its reads are local, so caching them on the heap would only
+            // bring back the objects per product it does without
+            hotStockSettings = new HotStockSettings(false, hotStockSettings.readStaleness, hotStockSettings.preciseBelow,
+                    hotStockSettings.idleTimeout);
+        } else if (store.equals("entity")) {
+            inventory = stockFeed.publishing(new EntityInventory());
+        } else {
+            throw new IllegalArgumentException("catalog.inventory.store must be entity, replicated or off-heap, not " + store);
+        }
+        this.hotStock = new HotStock(inventory, hotStockSettings);
+        if (hotStockSettings.enabled) {
+            system.scheduler().scheduleWithFixedDelay(hotStockSettings.idleTimeout, hotStockSettings.idleTimeout,
+                    hotStock::removeIdle, system.dispatcher());
+        }
+        this.metrics = new CatalogMetrics(deduplicator, hotStock);
+
+        // register entity on shard
+        this.clusterSharding.init(
+                Entity.of(
+                        InventoryEntity.ENTITY_TYPE_KEY,
+                        entityContext -> InventoryEntity.create(entityContext, config)
+                )
+        );
+        // Only the inventory entities are recovered lazily. The replicated store already holds every product on every
+        // node, and the off-heap one doesn't cache stock levels in HotStock, so nothing would be recorded.
+        if (store.equals("entity")) {
+            new InventoryWarmUp(hotStock, WarmUpSettings.fromConfig(config)).start(system);
+        }
 
         // Subscribe to the shopping cart topic
+        ConsumerSettings consumerSettings = ConsumerSettings.fromConfig(config);
         shoppingCartService.shoppingCartTopic().subscribe()
-            // Since this is at least once event handling, we really should track by shopping cart, and
-            // not update inventory if we've already seen this shopping cart. But this is an in memory
-            // inventory tracker anyway, so no need to be that careful.
-            .atLeastOnce(
-                // Create a flow that emits a Done for each message it processes
-                Flow.<CartView>create().map(cart -> {
-                    cart.getItems().forEach(item ->
-                        getCatalog(item.getItemId()).addAndGet(-item.getQuantity())
-                    );
-                    return Done.getInstance();
-                })
-            );
+            // Since this is at least once event handling, carts can be delivered again, for instance after a
+            // rebalance. Those are skipped, so their items are only removed from stock once.
+            .atLeastOnce(consumerSettings.batching ? batchedCheckouts(consumerSettings) : checkouts(consumerSettings));
 
     }
 
-    private AtomicInteger getCatalog(String productId) {
-        return catalog.computeIfAbsent(productId, k -> new AtomicInteger());
+    /**
+     * Stops the off-heap store from starting where it is meant to join other nodes, and reports any node that joins
+     * anyway, since each node would keep stock levels of its own that the others never see.
+     */
+    private void requireSingleNode(ActorSystem system, Config config) {
+        List<String> seedNodes = config.getStringList("akka.cluster.seed-nodes");
+        if (seedNodes.size() > 1) {
+            throw new IllegalArgumentException("catalog.inventory.store = off-heap only works on a single node, "
+                    + "but akka.cluster.seed-nodes lists " + seedNodes);
+        }
+        String contactPoints = "akka.management.cluster.bootstrap.contact-point-discovery.required-contact-point-nr";
+        if (config.hasPath(contactPoints) && config.getInt(contactPoints) > 1) {
+            throw new IllegalArgumentException("catalog.inventory.store = off-heap only works on a single node, "
+                    + "but the cluster bootstrap waits for " + config.getInt(contactPoints) + " nodes");
+        }
+        Adapter.spawn(system, Behaviors.<ClusterEvent.MemberUp>setup(context -> {
+            Cluster cluster = Cluster.get(context.getSystem());
+            cluster.subscriptions().tell(Subscribe.create(context.getSelf(), ClusterEvent.MemberUp.class));
+            return Behaviors.receiveMessage(up -> {
+                if (!up.member().equals(cluster.selfMember())) {
+                    logger.error("Node " + up.member().address() + " joined the cluster, but catalog.inventory.store = "
+                            + "off-heap only works on a single node: stock changes made through it are not seen here");
+                }
+                return Behaviors.same();
+            });
+        }), "off-heap-inventory-nodes");
+    }
+
+    /**
+     * A flow that emits a Done for each message it processes, once the stock of all its items has been persisted.
+     * <p>
+     * Up to <code>parallelism</code> checkouts are applied at once, but those of the same cart one after the other,
+     * so a cart delivered again is only seen once its first delivery is applied. The Dones are emitted in the order of
+     * the messages, since each is committed as the offset of the message at its position.
+     */
+    private Flow<CartView, Done, NotUsed> checkouts(ConsumerSettings settings) {
+        PerKeyOrder cartOrder = new PerKeyOrder();
+        // The order is taken as the messages arrive, rather than when the deduplicator is ready
+        return Flow.<CartView>create().mapAsync(settings.parallelism, cart -> cartOrder.run(Collections.singleton(cart.getId()),
+                () -> deduplicator.ready().thenCompose(ready -> {
+                    if (deduplicator.isDuplicate(cart.getId())) {
+                        logger.debug("Skipping checkout delivered again. CartID: " + cart.getId());
+                        metrics.recordCheckout(cart, true);
+                        return CompletableFuture.completedFuture(Done.getInstance());
+                    }
+                    return removeFromStock(cart).thenApply(done -> {
+                        deduplicator.processed(cart.getId());
+                        metrics.recordCheckout(cart, false);
+                        return done;
+                    });
+                })));
+    }
+
+    /**
+     * Like {@link #checkouts}, but the carts are grouped into batches, and the stock of each product is adjusted
+     * once per batch with the sum of its items in all the carts. During a sale most carts contain the same few
+     * products, which then take one persisted event per batch instead of one per cart.
+     * <p>
+     * The Done of every message is emitted once its whole batch has been applied, so the offsets are committed
+     * at most once per batch. If a batch fails part way, all its carts are delivered again, and the stock changes
+     * that had already been persisted are applied twice, like the items of a single cart in {@link #checkouts}.
+     * <p>
+     * Up to <code>parallelism</code> batches are applied at once. A batch waits only for the earlier ones that
+     * contain one of its carts, which is rare, since a cart is delivered again only after a failure.
+     */
+    private Flow<CartView, Done, NotUsed> batchedCheckouts(ConsumerSettings settings) {
+        PerKeyOrder cartOrder = new PerKeyOrder();
+        return Flow.<CartView>create()
+                .groupedWithin(settings.batchSize, settings.batchWindow)
+                .mapAsync(settings.parallelism, carts -> cartOrder.run(cartIds(carts),
+                        () -> deduplicator.ready().thenCompose(ready -> removeFromStock(carts)))
+                        .thenApply(done -> Collections.nCopies(carts.size(), done)))
+                .mapConcat(dones -> dones);
+    }
+
+    private static List<String> cartIds(List<CartView> carts) {
+        List<String> cartIds = new ArrayList<>(carts.size());
+        for (CartView cart : carts) {
+            cartIds.add(cart.getId());
+        }
+        return cartIds;
+    }
+
+    /**
+     * The stock levels kept in the inventory entities, for <code>catalog.inventory.store = entity</code>.
+     */
+    private class EntityInventory implements StockFeed.VersionedInventory {
+        @Override
+        public CompletionStage<StockFeed.VersionedStock> adjustVersioned(String productId, int delta) {
+            return entityRef(productId).ask((ActorRef<InventoryEntity.Stock> replyTo) ->
+                    new InventoryEntity.AdjustStock(delta, replyTo), askTimeout)
+                    .thenApply(stock -> new StockFeed.VersionedStock(stock.getQuantity(), stock.getVersion()));
+        }
+
+        @Override
+        public CompletionStage<Integer> get(String productId) {
+            return entityRef(productId).ask(InventoryEntity.Get::new, askTimeout)
+                    .thenApply(InventoryEntity.Stock::getQuantity);
+        }
+
+        private EntityRef<InventoryEntity.Command> entityRef(String productId) {
+            return clusterSharding.entityRefFor(InventoryEntity.ENTITY_TYPE_KEY, productId);
+        }
+    }
+
+    private CompletionStage<Done> removeFromStock(CartView cart) {
+        Map<String, Integer> deltas = new HashMap<>();
+        for (CartItem item : cart.getItems()) {
+            deltas.merge(item.getItemId(), -item.getQuantity(), Integer::sum);
+        }
+        return hotStock.adjustAll(deltas).thenApply(stock -> Done.getInstance());
+    }
+
+    private CompletionStage<Done> removeFromStock(List<CartView> carts) {
+        StockDeltas deltas = new StockDeltas();
+        for (CartView cart : carts) {
+            // Also skips a cart delivered again within the same batch
+            if (deduplicator.isDuplicate(cart.getId()) || !deltas.removeCart(cart)) {
+                logger.debug("Skipping checkout delivered again. CartID: " + cart.getId());
+            }
+        }
+        Map<String, Integer> productDeltas = deltas.getDeltas();
+        return hotStock.adjustAll(productDeltas).thenApply(stock -> {
+            deltas.getCartIds().forEach(deduplicator::processed);
+            Set<String> applied = new HashSet<>(deltas.getCartIds());
+            for (CartView cart : carts) {
+                // A cart delivered twice within the batch is applied once, and counted once as a duplicate
+                metrics.recordCheckout(cart, !applied.remove(cart.getId()));
+            }
+            logger.debug("Removed " + deltas.getCartIds().size() + " of " + carts.size() + " checkouts from the stock of "
+                    + productDeltas.size() + " products");
+            return Done.getInstance();
+        });
     }
 
     @Override
     public ServiceCall<NotUsed, Integer> get(String productId) {
-        return notUsed -> CompletableFuture.completedFuture(
-            getCatalog(productId).get()
-        );
+        return notUsed -> hotStock.get(productId);
     }
 
     @Override
     public ServiceCall<Integer, Done> add(String productId) {
-        return quantity -> {
-            getCatalog(productId).addAndGet(quantity);
-            return CompletableFuture.completedFuture(Done.getInstance());
+        return quantity -> hotStock.adjust(productId, quantity).thenApply(stock -> Done.getInstance());
+    }
+
+    @Override
+    public ServiceCall<List<String>, Map<String, Integer>> getAll() {
+        return productIds -> {
+            checkBulkSize(productIds.size());
+            return hotStock.getAll(new LinkedHashSet<>(productIds));
+        };
+    }
+
+    @Override
+    public ServiceCall<Map<String, Integer>, Done> addAll() {
+        return quantities -> {
+            checkBulkSize(quantities.size());
+            return hotStock.adjustAll(quantities).thenApply(stock -> Done.getInstance());
+        };
+    }
+
+    @Override
+    public ServiceCall<List<String>, Source<StockLevel, NotUsed>> changes() {
+        return productIds -> {
+            checkBulkSize(productIds.size());
+            return CompletableFuture.completedFuture(stockFeed.subscribe(new HashSet<>(productIds)));
         };
     }
+
+    @Override
+    public ServiceCall<NotUsed, String> metrics() {
+        return request -> CompletableFuture.completedFuture(metrics.scrape());
+    }
+
+    private static void checkBulkSize(int products) {
+        if (products > MAX_BULK_PRODUCTS) {
+            throw new BadRequest("At most " + MAX_BULK_PRODUCTS + " products can be read, changed or followed at once");
+        }
+    }
 }
@@ -0,0 +1,247 @@
+package com.example.catalog.impl;
+
+import akka.Done;
+import akka.actor.ActorSystem;
+import akka.actor.CoordinatedShutdown;
+import akka.cluster.Cluster;
+import akka.cluster.Member;
+import com.lightbend.lagom.javadsl.persistence.jdbc.JdbcSession;
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Skips checkouts that the at-least-once cart topic subscription delivers again, using a {@link CheckoutFilter}.
+ * <p>
+ * The filter is written to the database every <code>checkpoint-interval</code> and when the node shuts down, one
+ * row per node. Since a node may be handed the partitions of any other node when the consumers rebalance, it also
+ * reads the rows of the other nodes at every checkpoint:
+ * <ul>
+ * <li>The latest row of each node that is still in the cluster is kept as a filter of its own, which checkouts are
+ * looked up in too. Those are replaced, rather than merged into this node's filter, so that this node's generations
+ * only fill up with its own carts.</li>
+ * <li>The row of a node that left the cluster, and this node's own row when it starts, are merged into this node's
+ * filter. The row of the other node is then removed once all its carts were kept, since they now live on in this
+ * node's row.</li>
+ * </ul>
+ * A partition handed over is deduplicated against its previous owner's carts up to that node's last checkpoint,
+ * as read at the last checkpoint here, so up to about two checkpoint intervals of them are not remembered.
+ */
+@Singleton
+public class CheckoutDeduplicator {
+
+    private static final String CREATE_TABLE =
+            "CREATE TABLE IF NOT EXISTS catalog_dedup_checkpoint (" +
+            "consumer_id VARCHAR(255) PRIMARY KEY, checkpoint BYTEA NOT NULL, updated_at TIMESTAMP NOT NULL)";
+    // Locked, so that a row removed after it was merged can't have been written to in between
+    private static final String SELECT_CHECKPOINTS = "SELECT consumer_id, checkpoint FROM catalog_dedup_checkpoint FOR UPDATE";
+    private static final String DELETE_CHECKPOINT = "DELETE FROM catalog_dedup_checkpoint WHERE consumer_id = ?";
+    private static final String UPSERT_CHECKPOINT =
+            "INSERT INTO catalog_dedup_checkpoint (consumer_id, checkpoint, updated_at) VALUES (?, ?, ?) " +
+            "ON CONFLICT (consumer_id) DO UPDATE " +
+            "SET checkpoint = EXCLUDED.checkpoint, updated_at = EXCLUDED.updated_at";
+
+    private final DedupSettings settings;
+    private final JdbcSession jdbcSession;
+    private final Cluster cluster;
+    private final String consumerId;
+    private final CheckoutFilter filter;
+    // The last checkpoints of the other nodes in the cluster, by consumer ID
+    private final Map<String, CheckoutFilter> peers = new HashMap<>();
+    private final CompletionStage<Done> ready;
+
+    final private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Inject
+    public CheckoutDeduplicator(ActorSystem system, JdbcSession jdbcSession, Config config) {
+        this.settings = DedupSettings.fromConfig(config);
+        this.jdbcSession = jdbcSession;
+        this.cluster = Cluster.get(system);
+        this.consumerId = cluster.selfAddress().toString();
+        this.filter = new CheckoutFilter(settings);
+
+        if (settings.enabled) {
+            this.ready = jdbcSession.withTransaction(connection -> {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute(CREATE_TABLE);
+                }
+                return Done.getInstance();
+            }).thenCompose(done -> mergeCheckpoints(true));
+
+            system.scheduler().scheduleWithFixedDelay(settings.checkpointInterval, settings.checkpointInterval,
+                    () -> mergeCheckpoints(false).whenComplete((done, error) -> {
+                        if (error != null) {
+                            logger.warn("Failed to write the checkout deduplication checkpoint", error);
+                        }
+                    }), system.dispatcher());
+            CoordinatedShutdown.get(system).addTask(CoordinatedShutdown.PhaseServiceRequestsDone(),
+                    "catalog-dedup-checkpoint", this::checkpoint);
+        } else {
+            this.ready = CompletableFuture.completedFuture(Done.getInstance());
+        }
+    }
+
+    /**
+     * Completes once the checkpoints have been read, after which {@link #isDuplicate} can be trusted.
+     */
+    CompletionStage<Done> ready() {
+        return ready;
+    }
+
+    synchronized boolean isDuplicate(String cartId) {
+        return settings.enabled && filter.isDuplicate(cartId, System.currentTimeMillis(), peers.values());
+    }
+
+    /**
+     * Remembers a cart whose checkout was applied.
+     */
+    synchronized void processed(String cartId) {
+        if (settings.enabled) {
+            filter.add(cartId, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Reads the checkpoints of the other nodes, and of this node when it starts, and writes this node's checkpoint.
+     */
+    private CompletionStage<Done> mergeCheckpoints(boolean starting) {
+        return jdbcSession.withTransaction(connection -> {
+            Set<String> members = new HashSet<>();
+            for (Member member : cluster.state().getMembers()) {
+                members.add(member.address().toString());
+            }
+            Map<String, CheckoutFilter> livePeers = new HashMap<>();
+            List<String> mergedConsumers = new ArrayList<>();
+            try (Statement statement = connection.createStatement();
+                 ResultSet rs = statement.executeQuery(SELECT_CHECKPOINTS)) {
+                while (rs.next()) {
+                    String checkpointConsumerId = rs.getString(1);
+                    DataInputStream checkpoint = new DataInputStream(new ByteArrayInputStream(rs.getBytes(2)));
+                    if (checkpointConsumerId.equals(consumerId)) {
+                        if (starting) {
+                            if (!merge(checkpoint)) {
+                                logNotKept(checkpointConsumerId);
+                            }
+                        }
+                    } else if (members.contains(checkpointConsumerId)) {
+                        // Not shared until it is read, so read outside of the lock
+                        CheckoutFilter peer = new CheckoutFilter(settings);
+                        peer.readCheckpoint(checkpoint, System.currentTimeMillis());
+                        livePeers.put(checkpointConsumerId, peer);
+                    } else if (merge(checkpoint)) {
+                        mergedConsumers.add(checkpointConsumerId);
+                    } else {
+                        // The row is then kept, rather than losing the carts that didn't fit
+                        logNotKept(checkpointConsumerId);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            synchronized (this) {
+                peers.clear();
+                peers.putAll(livePeers);
+            }
+            // Written into this node's checkpoint before this transaction commits
+            writeCheckpoint(connection);
+            try (PreparedStatement statement = connection.prepareStatement(DELETE_CHECKPOINT)) {
+                for (String mergedConsumer : mergedConsumers) {
+                    statement.setString(1, mergedConsumer);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            if (starting || !mergedConsumers.isEmpty()) {
+                logger.info("Merged the checkout deduplication checkpoints of " + mergedConsumers + " into this node's, "
+                        + "looking into those of " + livePeers.keySet() + ": " + filter.getWindowSize()
+                        + " recent carts, " + filter.getGenerations() + " filter generations");
+            }
+            return Done.getInstance();
+        });
+    }
+
+    private synchronized boolean merge(DataInputStream checkpoint) throws IOException {
+        return filter.readCheckpoint(checkpoint, System.currentTimeMillis());
+    }
+
+    private void logNotKept(String checkpointConsumerId) {
+        logger.warn("Couldn't keep all carts of the deduplication checkpoint of " + checkpointConsumerId
+                + ", its filter generations don't match " + settings);
+    }
+
+    private CompletionStage<Done> checkpoint() {
+        return jdbcSession.withTransaction(connection -> {
+            writeCheckpoint(connection);
+            return Done.getInstance();
+        });
+    }
+
+    private void writeCheckpoint(Connection connection) throws SQLException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            synchronized (this) {
+                filter.writeCheckpoint(out);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try (PreparedStatement statement = connection.prepareStatement(UPSERT_CHECKPOINT)) {
+            statement.setString(1, consumerId);
+            statement.setBytes(2, bytes.toByteArray());
+            statement.setTimestamp(3, Timestamp.from(Instant.now()));
+            statement.executeUpdate();
+        }
+    }
+
+    public synchronized long getChecked() {
+        return filter.getChecked();
+    }
+
+    /**
+     * Duplicates found among the recent carts, which are certain.
+     */
+    public synchronized long getExactHits() {
+        return filter.getWindowHits();
+    }
+
+    /**
+     * Duplicates found by the Bloom filter only, a fraction of about {@link #getEstimatedFalsePositiveRate} of
+     * which weren't duplicates.
+     */
+    public synchronized long getBloomHits() {
+        return filter.getBloomHits();
+    }
+
+    public synchronized double getHitRate() {
+        long checked = filter.getChecked();
+        return checked == 0 ? 0 : (double) (filter.getWindowHits() + filter.getBloomHits()) / checked;
+    }
+
+    public synchronized double getEstimatedFalsePositiveRate() {
+        return filter.estimatedFalsePositiveRate();
+    }
+}
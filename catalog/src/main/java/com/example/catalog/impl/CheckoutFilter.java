@@ -0,0 +1,253 @@
+package com.example.catalog.impl;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.Funnels;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the IDs of the carts whose checkout was applied, in bounded memory.
+ * <p>
+ * The most recent IDs are kept exactly, up to a maximum number and age; that is where redeliveries after a consumer
+ * restart or rebalance are found. Every ID also goes into a Bloom filter, so older redeliveries are caught too, at
+ * a small false positive rate. The Bloom filter is split in generations of a fixed capacity and the oldest is
+ * dropped when a new one starts, so the filter doesn't fill up, and memory stays bounded, however many carts are
+ * seen.
+ * <p>
+ * Not thread-safe.
+ */
+class CheckoutFilter {
+
+    private static final Funnel<CharSequence> FUNNEL = Funnels.stringFunnel(StandardCharsets.UTF_8);
+    private static final int CHECKPOINT_VERSION = 1;
+
+    private final DedupSettings settings;
+
+    // cart ID to when it was seen, oldest first
+    private final LinkedHashMap<String, Long> window = new LinkedHashMap<>();
+    // newest first
+    private final Deque<Generation> generations = new ArrayDeque<>();
+
+    private long checked = 0;
+    private long windowHits = 0;
+    private long bloomHits = 0;
+
+    CheckoutFilter(DedupSettings settings) {
+        this.settings = settings;
+        generations.addFirst(new Generation(newBloomFilter(), 0));
+    }
+
+    /**
+     * Whether the checkout of this cart was already applied, exactly if it was recent and probably otherwise.
+     */
+    boolean isDuplicate(String cartId, long nowMillis) {
+        return isDuplicate(cartId, nowMillis, Collections.emptyList());
+    }
+
+    /**
+     * Whether the checkout of this cart was already applied here, or by one of the other filters, which are only
+     * looked into and don't count the carts checked.
+     */
+    boolean isDuplicate(String cartId, long nowMillis, Collection<CheckoutFilter> others) {
+        checked++;
+        Hit hit = find(cartId, nowMillis);
+        Iterator<CheckoutFilter> other = others.iterator();
+        while (hit == Hit.NONE && other.hasNext()) {
+            hit = other.next().find(cartId, nowMillis);
+        }
+        if (hit == Hit.WINDOW) {
+            windowHits++;
+        } else if (hit == Hit.BLOOM) {
+            bloomHits++;
+        }
+        return hit != Hit.NONE;
+    }
+
+    private Hit find(String cartId, long nowMillis) {
+        expireWindow(nowMillis);
+        if (window.containsKey(cartId)) {
+            return Hit.WINDOW;
+        }
+        for (Generation generation : generations) {
+            if (generation.bloomFilter.mightContain(cartId)) {
+                return Hit.BLOOM;
+            }
+        }
+        return Hit.NONE;
+    }
+
+    void add(String cartId, long nowMillis) {
+        window.remove(cartId);
+        window.put(cartId, nowMillis);
+        expireWindow(nowMillis);
+
+        Generation current = generations.peekFirst();
+        if (current.insertions >= settings.bloomExpectedInsertions) {
+            current = new Generation(newBloomFilter(), 0);
+            generations.addFirst(current);
+            while (generations.size() > settings.bloomGenerations) {
+                generations.removeLast();
+            }
+        }
+        current.bloomFilter.put(cartId);
+        current.insertions++;
+    }
+
+    private void expireWindow(long nowMillis) {
+        long oldest = nowMillis - settings.windowTime.toMillis();
+        Iterator<Map.Entry<String, Long>> entries = window.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, Long> entry = entries.next();
+            if (window.size() > settings.windowSize || entry.getValue() < oldest) {
+                entries.remove();
+            } else {
+                break;
+            }
+        }
+    }
+
+    private BloomFilter<CharSequence> newBloomFilter() {
+        return BloomFilter.create(FUNNEL, settings.bloomExpectedInsertions, settings.bloomFalsePositiveRate);
+    }
+
+    long getChecked() {
+        return checked;
+    }
+
+    long getWindowHits() {
+        return windowHits;
+    }
+
+    /**
+     * Duplicates found only by the Bloom filter, some of which are false positives.
+     */
+    long getBloomHits() {
+        return bloomHits;
+    }
+
+    int getWindowSize() {
+        return window.size();
+    }
+
+    int getGenerations() {
+        return generations.size();
+    }
+
+    /**
+     * The probability that a cart that was never seen is taken for a duplicate, given how full the filters are.
+     */
+    double estimatedFalsePositiveRate() {
+        double none = 1;
+        for (Generation generation : generations) {
+            none *= 1 - generation.bloomFilter.expectedFpp();
+        }
+        return 1 - none;
+    }
+
+    /**
+     * Writes the remembered cart IDs, but not the counters.
+     */
+    void writeCheckpoint(DataOutputStream out) throws IOException {
+        out.writeByte(CHECKPOINT_VERSION);
+        out.writeInt(window.size());
+        for (Map.Entry<String, Long> entry : window.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue());
+        }
+        out.writeInt(generations.size());
+        // oldest first, so they can be read back in order
+        Iterator<Generation> oldestFirst = generations.descendingIterator();
+        while (oldestFirst.hasNext()) {
+            Generation generation = oldestFirst.next();
+            out.writeInt(generation.insertions);
+            generation.bloomFilter.writeTo(out);
+        }
+    }
+
+    /**
+     * Adds the cart IDs of a checkpoint to the ones remembered. Each restored generation is merged into the one of
+     * the same age, the newest into the current one, so checkpoints of several consumers can be read into one
+     * filter, and reading the same checkpoint again adds nothing.
+     *
+     * @return whether all cart IDs of the checkpoint are remembered, which they aren't if it has generations that
+     *         can't be merged, because they were created with other settings, and there is no room left for them
+     */
+    boolean readCheckpoint(DataInputStream in, long nowMillis) throws IOException {
+        int version = in.readByte();
+        if (version != CHECKPOINT_VERSION) {
+            throw new IOException("Unknown checkpoint version " + version);
+        }
+        LinkedHashMap<String, Long> restored = new LinkedHashMap<>();
+        int windowSize = in.readInt();
+        for (int i = 0; i < windowSize; i++) {
+            restored.put(in.readUTF(), in.readLong());
+        }
+        restored.putAll(window);
+        window.clear();
+        window.putAll(restored);
+        // The carts that don't fit in the window anymore are still in the Bloom filter
+        expireWindow(nowMillis);
+
+        int generationCount = in.readInt();
+        List<Generation> restoredGenerations = new ArrayList<>(generationCount);
+        for (int i = 0; i < generationCount; i++) {
+            int insertions = in.readInt();
+            // written oldest first
+            restoredGenerations.add(0, new Generation(BloomFilter.readFrom(in, FUNNEL), insertions));
+        }
+        List<Generation> newestFirst = new ArrayList<>(generations);
+        List<Generation> unmerged = new ArrayList<>();
+        for (int i = 0; i < restoredGenerations.size(); i++) {
+            Generation generation = restoredGenerations.get(i);
+            if (i < newestFirst.size() && newestFirst.get(i).bloomFilter.isCompatible(generation.bloomFilter)) {
+                newestFirst.get(i).merge(generation);
+            } else {
+                unmerged.add(generation);
+            }
+        }
+        for (Generation generation : unmerged) {
+            if (generations.size() >= settings.bloomGenerations) {
+                return false;
+            }
+            generations.addLast(generation);
+        }
+        return true;
+    }
+
+    private enum Hit {
+        NONE, WINDOW, BLOOM
+    }
+
+    private static final class Generation {
+        private final BloomFilter<CharSequence> bloomFilter;
+        private int insertions;
+
+        Generation(BloomFilter<CharSequence> bloomFilter, int insertions) {
+            this.bloomFilter = bloomFilter;
+            this.insertions = insertions;
+        }
+
+        /**
+         * Adds the cart IDs of another generation. The carts they have in common are counted once, as far as the
+         * filter can tell, so the generation isn't taken for full before it is.
+         */
+        void merge(Generation other) {
+            bloomFilter.putAll(other.bloomFilter);
+            long merged = Math.max(bloomFilter.approximateElementCount(), Math.max(insertions, other.insertions));
+            insertions = (int) Math.min(merged, Integer.MAX_VALUE);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.catalog.impl;
+
+import com.typesafe.config.Config;
+import lombok.Value;
+
+import java.time.Duration;
+
+/**
+ * How the catalog consumes the cart topic, read from the <code>catalog.consumer</code> config section.
+ */
+@Value
+public class ConsumerSettings {
+
+    /**
+     * How many checkouts, or batches of them, are applied at once. Those of the same cart are still applied in order.
+     */
+    public final int parallelism;
+
+    /**
+     * Whether checkouts are applied in batches, with one stock change per product per batch, rather than one by one.
+     */
+    public final boolean batching;
+
+    /**
+     * The most checkouts in one batch.
+     */
+    public final int batchSize;
+
+    /**
+     * The longest time a checkout waits for its batch to fill up.
+     */
+    public final Duration batchWindow;
+
+    public ConsumerSettings(int parallelism, boolean batching, int batchSize, Duration batchWindow) {
+        this.parallelism = parallelism;
+        this.batching = batching;
+        this.batchSize = batchSize;
+        this.batchWindow = batchWindow;
+    }
+
+    public static ConsumerSettings fromConfig(Config config) {
+        Config consumer = config.getConfig("catalog.consumer");
+        return new ConsumerSettings(
+                consumer.getInt("parallelism"),
+                consumer.getBoolean("batching.enabled"),
+                consumer.getInt("batching.max-size"),
+                consumer.getDuration("batching.max-interval"));
+    }
+}
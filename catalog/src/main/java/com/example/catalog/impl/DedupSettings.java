@@ -0,0 +1,72 @@
+package com.example.catalog.impl;
+
+import com.typesafe.config.Config;
+import lombok.Value;
+
+import java.time.Duration;
+
+/**
+ * How {@link CheckoutDeduplicator} remembers the carts it has seen, read from the <code>catalog.dedup</code> config
+ * section.
+ */
+@Value
+public class DedupSettings {
+
+    /**
+     * Whether redelivered checkouts are skipped at all.
+     */
+    public final boolean enabled;
+
+    /**
+     * How many of the most recent cart IDs are remembered exactly.
+     */
+    public final int windowSize;
+
+    /**
+     * How long cart IDs are remembered exactly, at most.
+     */
+    public final Duration windowTime;
+
+    /**
+     * How many cart IDs each Bloom filter generation is sized for; a new generation starts when it is full.
+     */
+    public final int bloomExpectedInsertions;
+
+    /**
+     * The false positive probability of each Bloom filter generation when it is full.
+     */
+    public final double bloomFalsePositiveRate;
+
+    /**
+     * How many Bloom filter generations are kept; the oldest is dropped when a new one starts.
+     */
+    public final int bloomGenerations;
+
+    /**
+     * How often the remembered cart IDs are written to the database.
+     */
+    public final Duration checkpointInterval;
+
+    public DedupSettings(boolean enabled, int windowSize, Duration windowTime, int bloomExpectedInsertions,
+                         double bloomFalsePositiveRate, int bloomGenerations, Duration checkpointInterval) {
+        this.enabled = enabled;
+        this.windowSize = windowSize;
+        this.windowTime = windowTime;
+        this.bloomExpectedInsertions = bloomExpectedInsertions;
+        this.bloomFalsePositiveRate = bloomFalsePositiveRate;
+        this.bloomGenerations = bloomGenerations;
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    public static DedupSettings fromConfig(Config config) {
+        Config dedup = config.getConfig("catalog.dedup");
+        return new DedupSettings(
+                dedup.getBoolean("enabled"),
+                dedup.getInt("window-size"),
+                dedup.getDuration("window-time"),
+                dedup.getInt("bloom-expected-insertions"),
+                dedup.getDouble("bloom-false-positive-rate"),
+                dedup.getInt("bloom-generations"),
+                dedup.getDuration("checkpoint-interval"));
+    }
+}
@@ -0,0 +1,383 @@
+package com.example.catalog.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Takes the load of popular products off their inventory entities, on this node.
+ * <p>
+ * An inventory entity persists one stock change at a time, so concurrent changes of the same product queue up
+ * behind each other's database writes. Here the changes that arrive while one is being persisted are summed and
+ * sent as a single change once it is done, and all of them complete with the stock it results in.
+ * <p>
+ * Stock levels are cached from the entity's replies, and reads are answered from the cache while it is at most
+ * <code>read-staleness</code> old. Changes made through other nodes don't show in the cache until then. Stock levels
+ * below <code>precise-below</code> are always read from the entity.
+ * <p>
+ * Products that weren't used for <code>idle-timeout</code> are dropped by {@link #removeIdle()}, so a product is only
+ * held while it is in use.
+ */
+final class HotStock {
+
+    /**
+     * The inventory entities, each operation completing with the resulting stock level.
+     */
+    interface Inventory {
+        CompletionStage<Integer> adjust(String productId, int delta);
+
+        CompletionStage<Integer> get(String productId);
+    }
+
+    private final Inventory inventory;
+    private final HotStockSettings settings;
+    private final LongSupplier nanoTime;
+
+    private final ConcurrentHashMap<String, Product> products = new ConcurrentHashMap<>();
+
+    // Counted in cells rather than in one atomic, so counting doesn't make threads contend again
+    private final LongAdder adjustments = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder cachedReads = new LongAdder();
+    private final LongAdder preciseReads = new LongAdder();
+
+    HotStock(Inventory inventory, HotStockSettings settings) {
+        this(inventory, settings, System::nanoTime);
+    }
+
+    HotStock(Inventory inventory, HotStockSettings settings, LongSupplier nanoTime) {
+        this.inventory = inventory;
+        this.settings = settings;
+        this.nanoTime = nanoTime;
+    }
+
+    CompletionStage<Integer> adjust(String productId, int delta) {
+        CompletableFuture<Integer> stock = new CompletableFuture<>();
+        adjust(productId, delta, (quantity, error) -> {
+            if (error != null) {
+                stock.completeExceptionally(error);
+            } else {
+                stock.complete(quantity);
+            }
+        });
+        return stock;
+    }
+
+    /**
+     * Changes the stock of several products, completing with their resulting stock levels once all are persisted.
+     */
+    CompletionStage<Map<String, Integer>> adjustAll(Map<String, Integer> deltas) {
+        Results results = new Results(deltas.size());
+        deltas.forEach((productId, delta) -> adjust(productId, delta, (quantity, error) -> results.add(productId, quantity, error)));
+        return results.all;
+    }
+
+    private void adjust(String productId, int delta, BiConsumer<Integer, Throwable> done) {
+        adjustments.increment();
+        if (!settings.enabled) {
+            writes.increment();
+            inventory.adjust(productId, delta).whenComplete(done);
+            return;
+        }
+        Product product = product(productId);
+        product.touch(nanoTime.getAsLong());
+        product.queue.offer(new Adjustment(delta, done));
+        write(productId, product);
+    }
+
+    CompletionStage<Integer> get(String productId) {
+        Integer cached = cached(productId);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return read(productId);
+    }
+
+    /**
+     * Gets the stock levels of several products. Those that are cached are added to the result right away, and
+     * only the others are read from the inventory entities.
+     */
+    CompletionStage<Map<String, Integer>> getAll(Collection<String> productIds) {
+        Map<String, Integer> levels = new HashMap<>(productIds.size() * 2);
+        List<String> uncached = new ArrayList<>();
+        for (String productId : productIds) {
+            Integer cached = cached(productId);
+            if (cached != null) {
+                levels.put(productId, cached);
+            } else {
+                uncached.add(productId);
+            }
+        }
+        if (uncached.isEmpty()) {
+            return CompletableFuture.completedFuture(levels);
+        }
+        Results results = new Results(uncached.size(), levels);
+        for (String productId : uncached) {
+            read(productId).whenComplete((quantity, error) -> results.add(productId, quantity, error));
+        }
+        return results.all;
+    }
+
+    /**
+     * The cached stock level of a product, or <code>null</code> if it has to be read from the inventory entity.
+     */
+    private Integer cached(String productId) {
+        if (settings.enabled) {
+            Product product = products.get(productId);
+            if (product == null) {
+                return null;
+            }
+            long now = nanoTime.getAsLong();
+            product.touch(now);
+            StockLevel cached = product.stockLevel.get();
+            if (cached != null && cached.quantity >= settings.preciseBelow
+                    && now - cached.requestedNanos <= settings.readStaleness.toNanos()) {
+                cachedReads.increment();
+                return cached.quantity;
+            }
+        }
+        return null;
+    }
+
+    private CompletionStage<Integer> read(String productId) {
+        preciseReads.increment();
+        if (!settings.enabled) {
+            return inventory.get(productId);
+        }
+        long requestedNanos = nanoTime.getAsLong();
+        return inventory.get(productId).thenApply(quantity -> {
+            Product product = product(productId);
+            product.touch(requestedNanos);
+            product.update(new StockLevel(quantity, requestedNanos));
+            return quantity;
+        });
+    }
+
+    private Product product(String productId) {
+        // Looking up first avoids the locking of computeIfAbsent for products that are already there
+        Product product = products.get(productId);
+        return product != null ? product : products.computeIfAbsent(productId, id -> new Product());
+    }
+
+    /**
+     * Sends the queued changes of a product as one, unless a change of it is being persisted already, in which case
+     * they are sent once that's done.
+     */
+    private void write(String productId, Product product) {
+        if (!product.writing.compareAndSet(false, true)) {
+            return;
+        }
+        List<Adjustment> batch = new ArrayList<>();
+        int delta = 0;
+        for (Adjustment adjustment = product.queue.poll(); adjustment != null; adjustment = product.queue.poll()) {
+            batch.add(adjustment);
+            delta += adjustment.delta;
+        }
+        if (batch.isEmpty()) {
+            product.writing.set(false);
+            // A change queued after the queue was found empty but before writing was reset would wait forever
+            if (!product.queue.isEmpty()) {
+                write(productId, product);
+            }
+            return;
+        }
+        writes.increment();
+        long requestedNanos = nanoTime.getAsLong();
+        inventory.adjust(productId, delta).whenComplete((quantity, error) -> {
+            if (error != null) {
+                batch.forEach(adjustment -> adjustment.done.accept(null, error));
+            } else {
+                product.update(new StockLevel(quantity, requestedNanos));
+                batch.forEach(adjustment -> adjustment.done.accept(quantity, null));
+            }
+            product.writing.set(false);
+            write(productId, product);
+        });
+    }
+
+    /**
+     * Drops the products that weren't read or changed for <code>idle-timeout</code>, have no change queued or being
+     * persisted, and no cached stock level that could still be returned. Returns how many were dropped.
+     * <p>
+     * A request may still hold a product as it is dropped. Its changes are persisted all the same, as a product
+     * writes its own queue, only the stock level they result in isn't cached.
+     */
+    int removeIdle() {
+        long now = nanoTime.getAsLong();
+        long idleNanos = settings.idleTimeout.toNanos();
+        long stalenessNanos = settings.readStaleness.toNanos();
+        int removed = 0;
+        for (Map.Entry<String, Product> entry : products.entrySet()) {
+            Product product = entry.getValue();
+            StockLevel cached = product.stockLevel.get();
+            if (now - product.lastUsedNanos > idleNanos
+                    && (cached == null || now - cached.requestedNanos > stalenessNanos)
+                    && product.queue.isEmpty() && !product.writing.get()
+                    && products.remove(entry.getKey(), product)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * The products read or changed on this node, most recently used first.
+     */
+    List<String> recentProducts(int max) {
+        if (max <= 0) {
+            return Collections.emptyList();
+        }
+        // Each product's use is read once, as requests keep changing it, and only the most recent are kept, least
+        // recent at the head
+        PriorityQueue<RecentProduct> recent = new PriorityQueue<>(max, RecentProduct.LEAST_RECENT_FIRST);
+        products.forEach((productId, product) -> {
+            RecentProduct used = new RecentProduct(productId, product.lastUsedNanos);
+            if (recent.size() < max) {
+                recent.offer(used);
+            } else if (RecentProduct.LEAST_RECENT_FIRST.compare(used, recent.peek()) > 0) {
+                recent.poll();
+                recent.offer(used);
+            }
+        });
+        String[] productIds = new String[recent.size()];
+        for (int i = productIds.length - 1; i >= 0; i--) {
+            productIds[i] = recent.poll().productId;
+        }
+        return Arrays.asList(productIds);
+    }
+
+    /**
+     * Stock changes requested on this node, including those that were combined with others.
+     */
+    long getAdjustments() {
+        return adjustments.sum();
+    }
+
+    /**
+     * Stock changes sent to the inventory entities.
+     */
+    long getWrites() {
+        return writes.sum();
+    }
+
+    long getCachedReads() {
+        return cachedReads.sum();
+    }
+
+    long getPreciseReads() {
+        return preciseReads.sum();
+    }
+
+    private static final class Product {
+        // Recency only needs to be roughly right, so it is written rarely, rather than by every thread using the product
+        private static final long TOUCH_GRANULARITY_NANOS = 1000000000L;
+
+        private final ConcurrentLinkedQueue<Adjustment> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean writing = new AtomicBoolean();
+        private final AtomicReference<StockLevel> stockLevel = new AtomicReference<>();
+        private volatile long lastUsedNanos;
+        private volatile boolean used;
+
+        void touch(long nanos) {
+            if (!used || nanos - lastUsedNanos > TOUCH_GRANULARITY_NANOS) {
+                lastUsedNanos = nanos;
+                used = true;
+            }
+        }
+
+        /**
+         * Caches a stock level, unless one that was requested later is already cached.
+         */
+        void update(StockLevel level) {
+            stockLevel.accumulateAndGet(level,
+                    (cached, updated) -> cached == null || updated.requestedNanos - cached.requestedNanos >= 0 ? updated : cached);
+        }
+    }
+
+    private static final class RecentProduct {
+        // Compares the difference, as nano times may wrap around
+        private static final Comparator<RecentProduct> LEAST_RECENT_FIRST =
+                (a, b) -> Long.compare(a.lastUsedNanos - b.lastUsedNanos, 0);
+
+        private final String productId;
+        private final long lastUsedNanos;
+
+        RecentProduct(String productId, long lastUsedNanos) {
+            this.productId = productId;
+            this.lastUsedNanos = lastUsedNanos;
+        }
+    }
+
+    private static final class Adjustment {
+        private final int delta;
+        // Called with the resulting stock level, or the error
+        private final BiConsumer<Integer, Throwable> done;
+
+        Adjustment(int delta, BiConsumer<Integer, Throwable> done) {
+            this.delta = delta;
+            this.done = done;
+        }
+    }
+
+    /**
+     * Collects the stock levels of several products into one map, completing once all of them are there, or with
+     * the first error.
+     */
+    private static final class Results {
+        private final Map<String, Integer> levels;
+        private final AtomicInteger remaining;
+        private final CompletableFuture<Map<String, Integer>> all = new CompletableFuture<>();
+
+        Results(int count) {
+            this(count, new HashMap<>(count * 2));
+        }
+
+        Results(int count, Map<String, Integer> levels) {
+            this.levels = levels;
+            this.remaining = new AtomicInteger(count);
+            if (count == 0) {
+                all.complete(levels);
+            }
+        }
+
+        void add(String productId, Integer quantity, Throwable error) {
+            if (error != null) {
+                all.completeExceptionally(error);
+                return;
+            }
+            synchronized (levels) {
+                levels.put(productId, quantity);
+            }
+            if (remaining.decrementAndGet() == 0) {
+                all.complete(levels);
+            }
+        }
+    }
+
+    private static final class StockLevel {
+        private final int quantity;
+        // When the stock level was asked for, which it was at least as recent as
+        private final long requestedNanos;
+
+        StockLevel(int quantity, long requestedNanos) {
+            this.quantity = quantity;
+            this.requestedNanos = requestedNanos;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.catalog.impl;
+
+import com.typesafe.config.Config;
+import lombok.Value;
+
+import java.time.Duration;
+
+/**
+ * How {@link HotStock} combines stock changes and caches stock levels, read from the
+ * <code>catalog.inventory.hot-products</code> config section.
+ */
+@Value
+public class HotStockSettings {
+
+    /**
+     * Whether concurrent stock changes are combined and stock levels cached at all.
+     */
+    public final boolean enabled;
+
+    /**
+     * How old a cached stock level may be, at most, to be returned without asking the inventory entity.
+     */
+    public final Duration readStaleness;
+
+    /**
+     * Stock levels below this are always read from the inventory entity, since they may be about to run out.
+     */
+    public final int preciseBelow;
+
+    /**
+     * How long a product has to go unused before it is dropped, which is also how often that is checked.
+     */
+    public final Duration idleTimeout;
+
+    public HotStockSettings(boolean enabled, Duration readStaleness, int preciseBelow, Duration idleTimeout) {
+        this.enabled = enabled;
+        this.readStaleness = readStaleness;
+        this.preciseBelow = preciseBelow;
+        this.idleTimeout = idleTimeout;
+    }
+
+    public static HotStockSettings fromConfig(Config config) {
+        Config hotProducts = config.getConfig("catalog.inventory.hot-products");
+        return new HotStockSettings(
+                hotProducts.getBoolean("enabled"),
+                hotProducts.getDuration("read-staleness"),
+                hotProducts.getInt("precise-below"),
+                hotProducts.getDuration("idle-timeout"));
+    }
+}
@@ -0,0 +1,199 @@
+package com.example.catalog.impl;
+
+import akka.actor.typed.ActorRef;
+import akka.cluster.sharding.typed.javadsl.EntityContext;
+import akka.cluster.sharding.typed.javadsl.EntityTypeKey;
+import akka.persistence.typed.PersistenceId;
+import akka.persistence.typed.javadsl.*;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.google.common.base.Preconditions;
+import com.lightbend.lagom.javadsl.persistence.AggregateEvent;
+import com.lightbend.lagom.javadsl.persistence.AggregateEventShards;
+import com.lightbend.lagom.javadsl.persistence.AggregateEventTag;
+import com.lightbend.lagom.javadsl.persistence.AggregateEventTagger;
+import com.lightbend.lagom.javadsl.persistence.AkkaTaggerAdapter;
+import com.lightbend.lagom.serialization.Jsonable;
+import com.typesafe.config.Config;
+import lombok.Value;
+
+import java.time.Instant;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * The stock level of one product. Products are sharded over the catalog nodes, so every node sees the same stock.
+ */
+public class InventoryEntity extends EventSourcedBehaviorWithEnforcedReplies<InventoryEntity.Command, InventoryEntity.Event, InventoryEntity.Inventory> {
+
+    private final String productId;
+
+    private final Function<Event, Set<String>> tagger;
+
+    private final RetentionCriteria retentionCriteria;
+
+    static EntityTypeKey<Command> ENTITY_TYPE_KEY = EntityTypeKey.create(Command.class, "Inventory");
+
+    private InventoryEntity(EntityContext<Command> entityContext, RetentionCriteria retentionCriteria) {
+        // PersistenceId needs a typeHint (or namespace) and entityId, we take then from the EntityContext
+        super(PersistenceId.of(entityContext.getEntityTypeKey().name(), entityContext.getEntityId()));
+        this.productId = entityContext.getEntityId();
+        this.tagger = AkkaTaggerAdapter.fromLagom(entityContext, Event.TAG);
+        this.retentionCriteria = retentionCriteria;
+    }
+
+    static InventoryEntity create(EntityContext<Command> entityContext) {
+        return new InventoryEntity(entityContext, RetentionCriteria.snapshotEvery(100, 2));
+    }
+
+    static InventoryEntity create(EntityContext<Command> entityContext, Config config) {
+        Config snapshotConfig = config.getConfig("catalog.inventory.snapshot");
+        return new InventoryEntity(entityContext, RetentionCriteria.snapshotEvery(
+                snapshotConfig.getInt("every-n-events"), snapshotConfig.getInt("keep-n-snapshots")));
+    }
+
+    //
+    // INVENTORY COMMANDS
+    //
+    interface Command<R> extends Jsonable {}
+
+    /**
+     * Changes the stock by <code>delta</code>, which is the sum of any number of additions and removals.
+     */
+    @Value
+    @JsonDeserialize
+    static final class AdjustStock implements Command<Stock> {
+        public final int delta;
+        public final ActorRef<Stock> replyTo;
+
+        @JsonCreator
+        AdjustStock(int delta, ActorRef<Stock> replyTo) {
+            this.delta = delta;
+            this.replyTo = replyTo;
+        }
+    }
+
+    static final class Get implements Command<Stock> {
+        private final ActorRef<Stock> replyTo;
+
+        @JsonCreator
+        Get(ActorRef<Stock> replyTo) {
+            this.replyTo = replyTo;
+        }
+    }
+
+    //
+    // INVENTORY REPLIES
+    //
+    @Value
+    @JsonDeserialize
+    static final class Stock implements Jsonable {
+        public final int quantity;
+        public final long version;
+
+        @JsonCreator
+        Stock(int quantity, long version) {
+            this.quantity = quantity;
+            this.version = version;
+        }
+    }
+
+    //
+    // INVENTORY EVENTS
+    //
+    public interface Event extends Jsonable, AggregateEvent<Event> {
+        /**
+         * The tag for inventory events, used for consuming the Journal event stream later.
+         */
+        AggregateEventShards<Event> TAG = AggregateEventTag.sharded(Event.class, 10);
+
+        @Override
+        default AggregateEventTagger<Event> aggregateTag() {
+            return TAG;
+        }
+    }
+
+    @Value
+    @JsonDeserialize
+    static final class StockAdjusted implements Event {
+        public final String productId;
+        public final int delta;
+        public final Instant eventTime;
+
+        @JsonCreator
+        StockAdjusted(String productId, int delta, Instant eventTime) {
+            this.productId = Preconditions.checkNotNull(productId, "productId");
+            this.delta = delta;
+            this.eventTime = eventTime;
+        }
+    }
+
+    //
+    // INVENTORY STATE
+    //
+    @Value
+    @JsonDeserialize
+    static final class Inventory implements Jsonable {
+        public final int quantity;
+        // The number of stock changes applied, so a later quantity has a higher version. Snapshots written before
+        // it was kept read as version 0, and count on from there.
+        public final long version;
+
+        @JsonCreator
+        Inventory(int quantity, long version) {
+            this.quantity = quantity;
+            this.version = version;
+        }
+
+        Inventory adjust(int delta) {
+            return new Inventory(quantity + delta, version + 1);
+        }
+
+        public static final Inventory EMPTY = new Inventory(0, 0);
+    }
+
+    @Override
+    public Inventory emptyState() {
+        return Inventory.EMPTY;
+    }
+
+    @Override
+    public RetentionCriteria retentionCriteria() {
+        return retentionCriteria;
+    }
+
+    @Override
+    public Set<String> tagsFor(Event event) {
+        return tagger.apply(event);
+    }
+
+    @Override
+    public CommandHandlerWithReply<Command, Event, Inventory> commandHandler() {
+        return newCommandHandlerWithReplyBuilder()
+                .forAnyState()
+                .onCommand(AdjustStock.class, this::onAdjustStock)
+                .onCommand(Get.class, (inventory, cmd) -> Effect().reply(cmd.replyTo, toStock(inventory)))
+                .build();
+    }
+
+    private ReplyEffect<Event, Inventory> onAdjustStock(Inventory inventory, AdjustStock cmd) {
+        if (cmd.getDelta() == 0) {
+            return Effect().reply(cmd.replyTo, toStock(inventory));
+        }
+        return Effect()
+                .persist(new StockAdjusted(productId, cmd.getDelta(), Instant.now()))
+                .thenReply(cmd.replyTo, this::toStock);
+    }
+
+    @Override
+    public EventHandler<Inventory, Event> eventHandler() {
+        return newEventHandlerBuilder()
+                .forAnyState()
+                .onEvent(StockAdjusted.class, (inventory, evt) -> inventory.adjust(evt.getDelta()))
+                .build();
+    }
+
+    private Stock toStock(Inventory inventory) {
+        return new Stock(inventory.getQuantity(), inventory.getVersion());
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.catalog.impl;
+
+import akka.Done;
+import akka.actor.ActorSystem;
+import akka.actor.CoordinatedShutdown;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Recovers the inventory entities of the products that were used recently, when the catalog starts.
+ * <p>
+ * The stock levels themselves survive restarts in the journal, and the cart topic subscription carries on from its
+ * committed offset, but an inventory entity is only recovered from its snapshot when its product is first used. After
+ * a restart the first requests for all popular products would wait for that. So the products this node used most
+ * recently are recorded in a memory-mapped file every <code>interval</code> and when the node shuts down, and when it
+ * starts they are read from the file and recovered in chunks, before most of them are asked for.
+ * <p>
+ * The file only names products, so an old or lost file makes recovery lazy again but never makes stock levels wrong.
+ */
+final class InventoryWarmUp {
+
+    private static final int MAGIC = 0x43574d55;
+    private static final int CHUNK_SIZE = 100;
+
+    private final HotStock hotStock;
+    private final WarmUpSettings settings;
+
+    final private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    InventoryWarmUp(HotStock hotStock, WarmUpSettings settings) {
+        this.hotStock = hotStock;
+        this.settings = settings;
+    }
+
+    /**
+     * Recovers the recorded products, and records the recently used ones from now on.
+     */
+    void start(ActorSystem system) {
+        if (!settings.enabled) {
+            return;
+        }
+        long start = System.nanoTime();
+        List<String> productIds = read(settings.file);
+        recover(productIds, 0).whenComplete((done, error) -> {
+            if (error != null) {
+                logger.warn("Failed to recover the recently used inventory entities", error);
+            } else if (!productIds.isEmpty()) {
+                logger.info("Recovered the inventory of " + productIds.size() + " recently used products in "
+                        + (System.nanoTime() - start) / 1000000 + " ms");
+            }
+        });
+
+        system.scheduler().scheduleWithFixedDelay(settings.interval, settings.interval, this::record, system.dispatcher());
+        CoordinatedShutdown.get(system).addTask(CoordinatedShutdown.PhaseServiceRequestsDone(),
+                "catalog-warm-up-record", () -> {
+                    record();
+                    return CompletableFuture.completedFuture(Done.getInstance());
+                });
+    }
+
+    private CompletionStage<Done> recover(List<String> productIds, int from) {
+        if (from >= productIds.size()) {
+            return CompletableFuture.completedFuture(Done.getInstance());
+        }
+        List<String> chunk = productIds.subList(from, Math.min(from + CHUNK_SIZE, productIds.size()));
+        return hotStock.getAll(chunk).thenCompose(levels -> recover(productIds, from + CHUNK_SIZE));
+    }
+
+    private void record() {
+        // Nothing may escape, as the scheduler wouldn't run a task that threw again
+        try {
+            List<String> productIds = hotStock.recentProducts(settings.maxProducts);
+            if (productIds.isEmpty()) {
+                // Nothing used since the start, the products recorded before are still the best guess
+                return;
+            }
+            write(settings.file, productIds);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to record the recently used products in " + settings.file, e);
+        }
+    }
+
+    /**
+     * Writes the product IDs to a new file that then replaces the old one, so a node that stops while writing
+     * leaves the old file behind rather than half a file.
+     */
+    static void write(Path file, List<String> productIds) throws IOException {
+        List<byte[]> ids = new ArrayList<>(productIds.size());
+        int size = 8;
+        for (String productId : productIds) {
+            byte[] id = productId.getBytes(StandardCharsets.UTF_8);
+            ids.add(id);
+            size += 4 + id.length;
+        }
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                buffer.putInt(MAGIC).putInt(ids.size());
+                for (byte[] id : ids) {
+                    buffer.putInt(id.length).put(id);
+                }
+                buffer.force();
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Reads the product IDs from the file, none if there is no file or it isn't one this class wrote.
+     */
+    List<String> read(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 8 || buffer.getInt() != MAGIC) {
+                logger.warn("Ignoring " + file + ", which doesn't record recently used products");
+                return Collections.emptyList();
+            }
+            int count = buffer.getInt();
+            List<String> productIds = new ArrayList<>(Math.min(count, settings.maxProducts));
+            for (int i = 0; i < count && productIds.size() < settings.maxProducts; i++) {
+                byte[] id = new byte[buffer.getInt()];
+                buffer.get(id);
+                productIds.add(new String(id, StandardCharsets.UTF_8));
+            }
+            return productIds;
+        } catch (NoSuchFileException e) {
+            return Collections.emptyList();
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Ignoring " + file + ", which can't be read", e);
+            return Collections.emptyList();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.example.catalog.impl;
+
+import org.agrona.concurrent.UnsafeBuffer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Stock levels kept in a memory-mapped file on this node rather than in inventory entities, for
+ * <code>catalog.inventory.store = off-heap</code>.
+ * <p>
+ * A catalog of millions of products held in objects on the heap makes every full garbage collection trace all of
+ * them. Here each product is a fixed-size slot outside the heap instead, so the heap doesn't grow with the catalog.
+ * Product ids are hashed to a 64-bit key and a 32-bit check, which together pick the product's slot in an open
+ * addressing table, and its stock is changed with an atomic add on the slot, so nothing is allocated per product.
+ * <p>
+ * The versions of the stock levels are counted per stripe of slots, under the stripe's lock together with the add,
+ * so that the later change of a product has the higher version. They aren't kept in the file, as they only have to
+ * order the changes published while this node runs.
+ * <p>
+ * The file is written by the operating system as pages change, so the stock levels survive restarts of the catalog,
+ * but not a crash of the host. They are not shared with other nodes either, so this store suits a catalog running
+ * on a single node.
+ */
+final class OffHeapInventory implements StockFeed.VersionedInventory {
+
+    private static final int MAGIC = 0x43494e56;
+    // magic, slots, products, padded so the slots are aligned to cache lines
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOTS_OFFSET = 4;
+    private static final int PRODUCTS_OFFSET = 8;
+    // key, check, quantity
+    private static final int SLOT_SIZE = 16;
+    private static final int CHECK_OFFSET = 8;
+    private static final int QUANTITY_OFFSET = 12;
+    // A single mapping is at most 2 GiB
+    static final int MAX_CAPACITY = 1 << 25;
+    private static final int STRIPES = 64;
+
+    private static final long EMPTY = 0;
+    private static final long KEY_SEED = 0xcbf29ce484222325L;
+    private static final long CHECK_SEED = 0x84222325cbf29ce4L;
+
+    private final UnsafeBuffer buffer;
+    private final int capacity;
+    private final int mask;
+    // The last version of the products in each stripe, guarded by the stripe
+    private final long[] versions = new long[STRIPES];
+    private final Object[] stripes = new Object[STRIPES];
+
+    OffHeapInventory(OffHeapInventorySettings settings) {
+        if (settings.capacity < 1 || settings.capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("catalog.inventory.off-heap.capacity must be between 1 and " + MAX_CAPACITY
+                    + ", not " + settings.capacity);
+        }
+        this.capacity = settings.capacity;
+        // At least twice as many slots as products keeps the runs of taken slots that lookups probe short
+        int slots = Integer.highestOneBit(settings.capacity * 2 - 1) << 1;
+        this.mask = slots - 1;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+        long size = HEADER_SIZE + (long) slots * SLOT_SIZE;
+        try (FileChannel channel = FileChannel.open(settings.file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long existing = channel.size();
+            if (existing != 0 && existing != size) {
+                throw new IllegalStateException(settings.file + " holds an inventory of another capacity, "
+                        + "move it away or set catalog.inventory.off-heap.capacity to the one it was created with");
+            }
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            this.buffer = new UnsafeBuffer(mapped);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to map the off-heap inventory from " + settings.file, e);
+        }
+        buffer.verifyAlignment();
+        if (buffer.getInt(0) == 0) {
+            buffer.putInt(SLOTS_OFFSET, slots);
+            buffer.putIntOrdered(0, MAGIC);
+        } else if (buffer.getInt(0) != MAGIC || buffer.getInt(SLOTS_OFFSET) != slots) {
+            throw new IllegalStateException(settings.file + " is not an inventory file of this capacity");
+        }
+    }
+
+    @Override
+    public CompletionStage<StockFeed.VersionedStock> adjustVersioned(String productId, int delta) {
+        try {
+            int slot = slot(productId, true);
+            int stripe = (slot / SLOT_SIZE) & (STRIPES - 1);
+            synchronized (stripes[stripe]) {
+                int quantity = buffer.getAndAddInt(slot + QUANTITY_OFFSET, delta) + delta;
+                return CompletableFuture.completedFuture(new StockFeed.VersionedStock(quantity, ++versions[stripe]));
+            }
+        } catch (IllegalStateException e) {
+            CompletableFuture<StockFeed.VersionedStock> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    @Override
+    public CompletionStage<Integer> get(String productId) {
+        int slot = slot(productId, false);
+        return CompletableFuture.completedFuture(slot < 0 ? 0 : buffer.getIntVolatile(slot + QUANTITY_OFFSET));
+    }
+
+    /**
+     * The number of products that have a slot.
+     */
+    int products() {
+        return buffer.getIntVolatile(PRODUCTS_OFFSET);
+    }
+
+    /**
+     * The offset of a product's slot, or -1 if it has none and isn't to be given one.
+     */
+    private int slot(String productId, boolean create) {
+        long key = hash(productId, KEY_SEED);
+        if (key == EMPTY) {
+            key = 1;
+        }
+        int check = (int) hash(productId, CHECK_SEED);
+        if (check == 0) {
+            check = 1;
+        }
+        int index = (int) key & mask;
+        for (int probes = 0; probes <= mask; probes++, index = (index + 1) & mask) {
+            int slot = HEADER_SIZE + index * SLOT_SIZE;
+            long slotKey = buffer.getLongVolatile(slot);
+            if (slotKey == EMPTY) {
+                if (!create) {
+                    return -1;
+                }
+                if (products() >= capacity) {
+                    throw new IllegalStateException("The off-heap inventory holds " + capacity
+                            + " products already, raise catalog.inventory.off-heap.capacity");
+                }
+                if (!buffer.compareAndSetLong(slot, EMPTY, key)) {
+                    // Taken by another product in the meantime, which may be this one
+                    slotKey = buffer.getLongVolatile(slot);
+                } else {
+                    buffer.getAndAddInt(PRODUCTS_OFFSET, 1);
+                    slotKey = key;
+                }
+            }
+            if (slotKey == key) {
+                // The check is set after the key, by whichever thread gets to it first, so a slot is never left
+                // without one, even if the thread that took it stopped in between
+                int slotCheck = buffer.getIntVolatile(slot + CHECK_OFFSET);
+                if (slotCheck == 0 && buffer.compareAndSetInt(slot + CHECK_OFFSET, 0, check)) {
+                    slotCheck = check;
+                } else if (slotCheck == 0) {
+                    slotCheck = buffer.getIntVolatile(slot + CHECK_OFFSET);
+                }
+                if (slotCheck == check) {
+                    return slot;
+                }
+            }
+        }
+        throw new IllegalStateException("The off-heap inventory has no free slot left");
+    }
+
+    /**
+     * FNV-1a over the characters of a product id, mixed like the finalizer of MurmurHash3 so that ids differing in
+     * their last characters only still spread over the whole table.
+     */
+    private static long hash(String productId, long seed) {
+        long hash = seed;
+        for (int i = 0; i < productId.length(); i++) {
+            hash = (hash ^ productId.charAt(i)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.catalog.impl;
+
+import com.typesafe.config.Config;
+import lombok.Value;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Where {@link OffHeapInventory} keeps the stock levels, read from the <code>catalog.inventory.off-heap</code> config
+ * section.
+ */
+@Value
+public class OffHeapInventorySettings {
+
+    /**
+     * The file the stock levels are mapped from, which is the only copy of them.
+     */
+    public final Path file;
+
+    /**
+     * The most products the file can hold. It is sized for this when it is created, and can't be resized later.
+     */
+    public final int capacity;
+
+    public OffHeapInventorySettings(Path file, int capacity) {
+        this.file = file;
+        this.capacity = capacity;
+    }
+
+    public static OffHeapInventorySettings fromConfig(Config config) {
+        Config offHeap = config.getConfig("catalog.inventory.off-heap");
+        if (!offHeap.hasPath("file")) {
+            throw new IllegalArgumentException("catalog.inventory.off-heap.file must be set, to a path on storage "
+                    + "that is kept, as it holds the only copy of the stock levels");
+        }
+        return new OffHeapInventorySettings(
+                Paths.get(offHeap.getString("file")),
+                offHeap.getInt("capacity"));
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.catalog.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Runs asynchronous work concurrently, except that work on a key starts only once the work on it started earlier
+ * is done, so the work on each key happens in the order it was started.
+ * <p>
+ * The cart topic is partitioned by cart id, and Kafka only keeps the order within a partition. So the catalog
+ * consumer can apply checkouts concurrently as long as those of the same cart are applied in order, which is what
+ * lets a cart delivered again be recognised as a duplicate. Stock changes of the same product may happen in any
+ * order, since they add up the same.
+ */
+final class PerKeyOrder {
+
+    // The work last started on each key, completing once it is done, for as long as it runs
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> running = new ConcurrentHashMap<>();
+
+    /**
+     * Starts work on some keys once all earlier work on any of them is done, whether it failed or not.
+     */
+    <T> CompletionStage<T> run(Collection<String> keys, Supplier<CompletionStage<T>> work) {
+        CompletableFuture<Void> finished = new CompletableFuture<>();
+        List<CompletableFuture<Void>> earlier = new ArrayList<>();
+        for (String key : keys) {
+            CompletableFuture<Void> previous = running.put(key, finished);
+            // A key given twice would otherwise wait for itself
+            if (previous != null && previous != finished) {
+                earlier.add(previous);
+            }
+        }
+        // Runs the work right away if there is no earlier work, and fails the result if it throws
+        CompletionStage<T> result = CompletableFuture.allOf(earlier.toArray(new CompletableFuture[0]))
+                .thenCompose(ready -> work.get());
+        result.whenComplete((value, error) -> {
+            for (String key : keys) {
+                running.remove(key, finished);
+            }
+            finished.complete(null);
+        });
+        return result;
+    }
+
+    /**
+     * The number of keys with work running or waiting.
+     */
+    int size() {
+        return running.size();
+    }
+}
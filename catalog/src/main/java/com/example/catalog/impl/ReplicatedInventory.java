@@ -0,0 +1,152 @@
+package com.example.catalog.impl;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.Props;
+import akka.actor.typed.javadsl.AskPattern;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.cluster.ddata.Key;
+import akka.cluster.ddata.PNCounter;
+import akka.cluster.ddata.PNCounterMap;
+import akka.cluster.ddata.PNCounterMapKey;
+import akka.cluster.ddata.SelfUniqueAddress;
+import akka.cluster.ddata.typed.javadsl.DistributedData;
+import akka.cluster.ddata.typed.javadsl.Replicator;
+
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Stock levels kept in Akka Distributed Data rather than in inventory entities, for
+ * <code>catalog.inventory.store = replicated</code>.
+ * <p>
+ * Every node holds the stock of all products in replicated counter maps, so stock levels are read from local
+ * memory. A stock change is applied on the node that makes it, and spreads to the other nodes by gossiping only the
+ * change. The nodes agree on the stock levels once the changes have spread, in the meantime each node may lag behind
+ * the changes made through the others. Unlike the journal, the counters are lost when all nodes stop, unless they
+ * are configured as durable keys.
+ * <p>
+ * Products are spread over <code>shards</code> counter maps by hash, since each map is gossiped as a whole when a
+ * node needs all of it, such as one that just joined.
+ * <p>
+ * The stock levels are followed on each node as its replicator merges the changes, see {@link #watch}, rather than
+ * published by the node that made a change, since that node's level may not include the changes made through other
+ * nodes at the same time.
+ */
+final class ReplicatedInventory implements HotStock.Inventory {
+
+    private final ActorSystem<?> system;
+    private final ActorRef<Replicator.Command> replicator;
+    private final SelfUniqueAddress node;
+    private final ReplicatedInventorySettings settings;
+    private final Replicator.WriteConsistency writeConsistency;
+    private final Key<PNCounterMap<String>>[] keys;
+
+    @SuppressWarnings("unchecked")
+    ReplicatedInventory(ActorSystem<?> system, ReplicatedInventorySettings settings) {
+        this.system = system;
+        this.replicator = DistributedData.get(system).replicator();
+        this.node = DistributedData.get(system).selfUniqueAddress();
+        this.settings = settings;
+        this.writeConsistency = settings.writeMajority
+                ? new Replicator.WriteMajority(settings.timeout) : Replicator.writeLocal();
+        this.keys = new Key[settings.shards];
+        for (int i = 0; i < settings.shards; i++) {
+            keys[i] = PNCounterMapKey.create("inventory-" + i);
+        }
+    }
+
+    private Key<PNCounterMap<String>> key(String productId) {
+        return keys[Math.floorMod(productId.hashCode(), keys.length)];
+    }
+
+    @Override
+    public CompletionStage<Integer> adjust(String productId, int delta) {
+        Key<PNCounterMap<String>> key = key(productId);
+        // Taken from the updated map by the replicator, which saves asking it again
+        AtomicReference<BigInteger> quantity = new AtomicReference<>();
+        return AskPattern.<Replicator.Command, Replicator.UpdateResponse<PNCounterMap<String>>>ask(replicator,
+                replyTo -> new Replicator.Update<>(key, PNCounterMap.create(), writeConsistency, replyTo, stock -> {
+                    PNCounterMap<String> updated = stock.increment(node, productId, delta);
+                    quantity.set(updated.getValue(productId));
+                    return updated;
+                }),
+                settings.timeout, system.scheduler())
+                .thenCompose(response -> {
+                    if (!(response instanceof Replicator.UpdateSuccess)) {
+                        // A write to a majority that timed out is still applied here, and spreads later
+                        return failed(new IllegalStateException("Stock change of " + productId + " not replicated: " + response));
+                    }
+                    return CompletableFuture.completedFuture(quantity.get().intValue());
+                });
+    }
+
+    /**
+     * Passes on the stock level of every product whose counter changed on this node, as the replicator merges the
+     * changes made through this node and the others. The replicator notifies of the shards that changed at most once
+     * per <code>notify-subscribers-interval</code>, so a product changed several times in between is passed on once,
+     * at the level it converged on so far. The first notification of each shard passes on all its products.
+     * <p>
+     * The version of a level is the sum of all additions and removals of the product this node has seen. The state
+     * of this node only grows as changes are merged into it, so its versions only grow too.
+     */
+    void watch(Consumer<StockFeed.StockChanged> changes) {
+        system.systemActorOf(watcher(changes), "inventory-watcher", Props.empty());
+    }
+
+    private Behavior<Replicator.SubscribeResponse<PNCounterMap<String>>> watcher(Consumer<StockFeed.StockChanged> changes) {
+        return Behaviors.setup(context -> {
+            for (Key<PNCounterMap<String>> key : keys) {
+                replicator.tell(new Replicator.Subscribe<>(key, context.getSelf()));
+            }
+            // The counters of each shard as last notified, by key
+            Map<Key<PNCounterMap<String>>, Map<String, PNCounter>> notified = new HashMap<>();
+            return Behaviors.receiveMessage(response -> {
+                if (response instanceof Replicator.Changed) {
+                    Replicator.Changed<PNCounterMap<String>> changed = (Replicator.Changed<PNCounterMap<String>>) response;
+                    // The map doesn't tell the counts of a counter in its Java API, but its underlying map does
+                    Map<String, PNCounter> counters = changed.dataValue().underlying().getEntries();
+                    Map<String, PNCounter> previous = notified.getOrDefault(changed.key(), Collections.emptyMap());
+                    counters.forEach((productId, counter) -> {
+                        if (!counter.equals(previous.get(productId))) {
+                            changes.accept(new StockFeed.StockChanged(productId, counter.getValue().intValue(),
+                                    counter.increments().getValue().add(counter.decrements().getValue()).longValue()));
+                        }
+                    });
+                    notified.put(changed.key(), counters);
+                }
+                return Behaviors.same();
+            });
+        });
+    }
+
+    @Override
+    public CompletionStage<Integer> get(String productId) {
+        Key<PNCounterMap<String>> key = key(productId);
+        return AskPattern.<Replicator.Command, Replicator.GetResponse<PNCounterMap<String>>>ask(replicator,
+                replyTo -> new Replicator.Get<>(key, Replicator.readLocal(), replyTo),
+                settings.timeout, system.scheduler())
+                .thenCompose(response -> {
+                    if (response instanceof Replicator.GetSuccess) {
+                        BigInteger quantity = ((Replicator.GetSuccess<PNCounterMap<String>>) response).get(key).getValue(productId);
+                        return CompletableFuture.completedFuture(quantity == null ? 0 : quantity.intValue());
+                    } else if (response instanceof Replicator.NotFound) {
+                        return CompletableFuture.completedFuture(0);
+                    }
+                    return failed(new IllegalStateException("Stock of " + productId + " not read: " + response));
+                });
+    }
+
+    private static <T> CompletionStage<T> failed(Throwable error) {
+        CompletableFuture<T> failed = new CompletableFuture<>();
+        failed.completeExceptionally(error);
+        return failed;
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.catalog.impl;
+
+import com.typesafe.config.Config;
+import lombok.Value;
+
+import java.time.Duration;
+
+/**
+ * How {@link ReplicatedInventory} keeps the stock levels, read from the <code>catalog.inventory.replicated</code>
+ * config section.
+ */
+@Value
+public class ReplicatedInventorySettings {
+
+    /**
+     * How many replicated counter maps the products are spread over, so a change gossips the map of its product
+     * only.
+     */
+    public final int shards;
+
+    /**
+     * Whether a stock change completes once a majority of the nodes has it, rather than this node only.
+     */
+    public final boolean writeMajority;
+
+    /**
+     * How long a stock change may take to reach a majority of the nodes.
+     */
+    public final Duration timeout;
+
+    public ReplicatedInventorySettings(int shards, boolean writeMajority, Duration timeout) {
+        this.shards = shards;
+        this.writeMajority = writeMajority;
+        this.timeout = timeout;
+    }
+
+    public static ReplicatedInventorySettings fromConfig(Config config) {
+        Config replicated = config.getConfig("catalog.inventory.replicated");
+        String writeConsistency = replicated.getString("write-consistency");
+        if (!writeConsistency.equals("local") && !writeConsistency.equals("majority")) {
+            throw new IllegalArgumentException("catalog.inventory.replicated.write-consistency must be local or majority, not "
+                    + writeConsistency);
+        }
+        return new ReplicatedInventorySettings(
+                replicated.getInt("shards"),
+                writeConsistency.equals("majority"),
+                replicated.getDuration("timeout"));
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.catalog.impl;
+
+import com.example.cart.api.CartItem;
+import com.example.cart.api.CartView;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The stock changes of a batch of checked out carts, summed per product, so each product's stock is adjusted once
+ * per batch however many of the carts contain it. Not thread safe.
+ */
+final class StockDeltas {
+
+    // Mutable sums, so adding an item doesn't box a new Integer
+    private final Map<String, int[]> deltas = new HashMap<>();
+    private final Set<String> cartIds = new HashSet<>();
+    private final List<String> orderedCartIds = new ArrayList<>();
+
+    /**
+     * Removes the items of a cart from stock.
+     *
+     * @return <code>false</code>, without changing anything, if the cart is already in this batch
+     */
+    boolean removeCart(CartView cart) {
+        if (!cartIds.add(cart.getId())) {
+            return false;
+        }
+        orderedCartIds.add(cart.getId());
+        for (CartItem item : cart.getItems()) {
+            deltas.computeIfAbsent(item.getItemId(), productId -> new int[1])[0] -= item.getQuantity();
+        }
+        return true;
+    }
+
+    /**
+     * The summed change of each product's stock, leaving out products whose changes cancel out.
+     */
+    Map<String, Integer> getDeltas() {
+        Map<String, Integer> result = new HashMap<>(deltas.size() * 2);
+        for (Map.Entry<String, int[]> delta : deltas.entrySet()) {
+            if (delta.getValue()[0] != 0) {
+                result.put(delta.getKey(), delta.getValue()[0]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The IDs of the carts in this batch, in the order they were added.
+     */
+    List<String> getCartIds() {
+        return orderedCartIds;
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.catalog.impl;
+
+import akka.NotUsed;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.cluster.pubsub.DistributedPubSub;
+import akka.cluster.pubsub.DistributedPubSubMediator;
+import akka.japi.Pair;
+import akka.stream.Materializer;
+import akka.stream.OverflowStrategy;
+import akka.stream.javadsl.BroadcastHub;
+import akka.stream.javadsl.Flow;
+import akka.stream.javadsl.Keep;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import com.example.catalog.api.StockLevel;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.google.common.base.Preconditions;
+import com.lightbend.lagom.serialization.Jsonable;
+import lombok.Value;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * The stock changes made through any catalog node, streamed to the subscribers on this node.
+ * <p>
+ * Each node runs the stock changes into one broadcast hub that all its subscribers share, rather than a subscription
+ * each. A subscriber filters the products it asked for, and conflates the changes of each product while it is behind,
+ * so a slow one gets the latest stock level of each product when it catches up rather than a backlog, and doesn't
+ * hold up the hub. Where the changes come from depends on the store:
+ * <ul>
+ * <li>The inventory entities, and the off-heap store on its single node, apply each change of a product in one
+ * place, which tells the level it left. Those are published to all nodes through distributed pub-sub, see
+ * {@link #publishing}.</li>
+ * <li>The replicated store applies a change on the node that makes it, whose level doesn't include the changes made
+ * through other nodes at the same time. Each node follows the levels its replicator converges on instead, see
+ * {@link #following}.</li>
+ * </ul>
+ * Changes published by different nodes can arrive in any order, so each stock level carries the version of the
+ * product's stock it was read at, and a subscriber skips the levels not newer than one it has had.
+ */
+final class StockFeed {
+
+    private static final String TOPIC = "inventory-changes";
+    // The changes held for the hub while it is busy, the oldest dropped first
+    private static final int BUFFER_SIZE = 1000;
+    // The changes held for each subscriber, which conflates them once they are taken from here, a power of two
+    private static final int SUBSCRIBER_BUFFER_SIZE = 256;
+
+    private final ActorRef mediator;
+    // Takes the changes into the hub
+    private final ActorRef hub;
+    private final Source<StockChanged, NotUsed> changes;
+
+    StockFeed(ActorSystem system) {
+        this.mediator = DistributedPubSub.get(system).mediator();
+        Materializer materializer = Materializer.matFromSystem(system);
+        Pair<ActorRef, Source<StockChanged, NotUsed>> hub = Source.<StockChanged>actorRef(
+                message -> Optional.empty(), message -> Optional.empty(), BUFFER_SIZE, OverflowStrategy.dropHead())
+                .toMat(BroadcastHub.of(StockChanged.class, SUBSCRIBER_BUFFER_SIZE), Keep.both())
+                .run(materializer);
+        this.hub = hub.first();
+        this.changes = hub.second();
+        // Keeps the hub consuming while there are no subscribers, so those that come later don't get stale changes
+        changes.runWith(Sink.ignore(), materializer);
+    }
+
+    /**
+     * An inventory that tells the version of a product's stock along with the quantity a change left.
+     */
+    interface VersionedInventory extends HotStock.Inventory {
+        /**
+         * Changes the stock of a product, completing with the quantity and version it was changed to. Of two changes
+         * of a product, the one that was applied later has the higher version.
+         */
+        CompletionStage<VersionedStock> adjustVersioned(String productId, int delta);
+
+        @Override
+        default CompletionStage<Integer> adjust(String productId, int delta) {
+            return adjustVersioned(productId, delta).thenApply(VersionedStock::getQuantity);
+        }
+    }
+
+    @Value
+    static final class VersionedStock {
+        public final int quantity;
+        public final long version;
+    }
+
+    /**
+     * Publishes every stock change made through an inventory, and feeds the changes published by all nodes into the
+     * hub.
+     */
+    HotStock.Inventory publishing(VersionedInventory inventory) {
+        mediator.tell(new DistributedPubSubMediator.Subscribe(TOPIC, hub), ActorRef.noSender());
+        return new HotStock.Inventory() {
+            @Override
+            public CompletionStage<Integer> adjust(String productId, int delta) {
+                return inventory.adjustVersioned(productId, delta).thenApply(stock -> {
+                    mediator.tell(new DistributedPubSubMediator.Publish(TOPIC,
+                            new StockChanged(productId, stock.quantity, stock.version)), ActorRef.noSender());
+                    return stock.quantity;
+                });
+            }
+
+            @Override
+            public CompletionStage<Integer> get(String productId) {
+                return inventory.get(productId);
+            }
+        };
+    }
+
+    /**
+     * Feeds the stock levels the replicated inventory converges on, on this node, into the hub.
+     */
+    HotStock.Inventory following(ReplicatedInventory inventory) {
+        inventory.watch(change -> hub.tell(change, ActorRef.noSender()));
+        return inventory;
+    }
+
+    /**
+     * The stock levels of some products from now on, as they change.
+     */
+    Source<StockLevel, NotUsed> subscribe(Set<String> productIds) {
+        return changes.via(latest(productIds));
+    }
+
+    /**
+     * The latest stock levels of some products among the changes, conflated while downstream is behind.
+     */
+    static Flow<StockChanged, StockLevel, NotUsed> latest(Set<String> productIds) {
+        return Flow.<StockChanged>create()
+                .filter(change -> productIds.contains(change.productId))
+                .statefulMapConcat(() -> {
+                    // The highest version of each product so far, only of the products subscribed to
+                    Map<String, Long> versions = new HashMap<>();
+                    return change -> {
+                        Long version = versions.get(change.productId);
+                        if (version != null && version >= change.version) {
+                            return Collections.emptyList();
+                        }
+                        versions.put(change.productId, change.version);
+                        return Collections.singletonList(change);
+                    };
+                })
+                .conflateWithSeed(StockFeed::latest, (latest, change) -> {
+                    // Moved to the end, so products are emitted in the order they last changed
+                    latest.remove(change.productId);
+                    latest.put(change.productId, change.quantity);
+                    return latest;
+                })
+                .mapConcat(latest -> {
+                    ArrayList<StockLevel> levels = new ArrayList<>(latest.size());
+                    latest.forEach((productId, quantity) -> levels.add(new StockLevel(productId, quantity)));
+                    return levels;
+                });
+    }
+
+    private static Map<String, Integer> latest(StockChanged change) {
+        Map<String, Integer> latest = new LinkedHashMap<>();
+        latest.put(change.productId, change.quantity);
+        return latest;
+    }
+
+    /**
+     * A stock change, as published to the other nodes.
+     */
+    @Value
+    @JsonDeserialize
+    static final class StockChanged implements Jsonable {
+        public final String productId;
+        public final int quantity;
+        public final long version;
+
+        @JsonCreator
+        StockChanged(String productId, int quantity, long version) {
+            this.productId = Preconditions.checkNotNull(productId, "productId");
+            this.quantity = quantity;
+            this.version = version;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.catalog.impl;
+
+import com.typesafe.config.Config;
+import lombok.Value;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+
+/**
+ * Which inventory entities {@link InventoryWarmUp} recovers when the catalog starts, read from the
+ * <code>catalog.inventory.warm-up</code> config section.
+ */
+@Value
+public class WarmUpSettings {
+
+    /**
+     * Whether the recently used products are recorded and recovered on start at all.
+     */
+    public final boolean enabled;
+
+    /**
+     * The file the recently used products are recorded in.
+     */
+    public final Path file;
+
+    /**
+     * The most products recorded, the most recently used ones.
+     */
+    public final int maxProducts;
+
+    /**
+     * How often the recently used products are recorded.
+     */
+    public final Duration interval;
+
+    public WarmUpSettings(boolean enabled, Path file, int maxProducts, Duration interval) {
+        this.enabled = enabled;
+        this.file = file;
+        this.maxProducts = maxProducts;
+        this.interval = interval;
+    }
+
+    public static WarmUpSettings fromConfig(Config config) {
+        Config warmUp = config.getConfig("catalog.inventory.warm-up");
+        return new WarmUpSettings(
+                warmUp.getBoolean("enabled"),
+                Paths.get(warmUp.getString("file")),
+                warmUp.getInt("max-products"),
+                warmUp.getDuration("interval"));
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.catalog.impl;
+
+import akka.Done;
+import akka.NotUsed;
+import akka.stream.javadsl.Source;
+import com.example.cart.api.*;
+import com.lightbend.lagom.javadsl.api.ServiceCall;
+import com.lightbend.lagom.javadsl.api.broker.Topic;
+import com.lightbend.lagom.javadsl.testkit.ProducerStub;
+import com.lightbend.lagom.javadsl.testkit.ProducerStubFactory;
+
+import javax.inject.Inject;
+import java.util.Optional;
+
+/**
+ * Stands in for the shopping cart service, so tests can publish checked out carts to its topic.
+ */
+public class CartServiceStub implements CartService {
+
+    static ProducerStub<CartView> cartProducer;
+
+    @Inject
+    public CartServiceStub(ProducerStubFactory producerFactory) {
+        cartProducer = producerFactory.producer(TOPIC_NAME);
+    }
+
+    @Override
+    public Topic<CartView> shoppingCartTopic() {
+        return cartProducer.topic();
+    }
+
+    @Override
+    public ServiceCall<NotUsed, CartView> get(String id) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ServiceCall<NotUsed, CartReportView> getReport(String id) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ServiceCall<NotUsed, CartReportPage> getReportsCreated(Optional<String> from, Optional<String> to,
+                                                                 Optional<String> after, Optional<Integer> limit) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ServiceCall<NotUsed, CartReportPage> getReportsCheckedOut(Optional<String> from, Optional<String> to,
+                                                                    Optional<String> after, Optional<Integer> limit) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ServiceCall<NotUsed, Source<CartReportView, ?>> exportReports() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ServiceCall<CartItem, Done> addItem(String id) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ServiceCall<NotUsed, CartView> removeItem(String cartId, String itemId) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ServiceCall<Quantity, CartView> adjustItemQuantity(String cartId, String itemId) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ServiceCall<CartUpdate, CartView> updateItems(String id) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ServiceCall<NotUsed, Done> checkout(String id) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ServiceCall<NotUsed, Done> rebuildReports() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ServiceCall<NotUsed, String> metrics() {
+        throw new UnsupportedOperationException();
+    }
+}
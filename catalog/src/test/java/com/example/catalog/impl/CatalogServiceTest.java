@@ -0,0 +1,160 @@
+package com.example.catalog.impl;
+
+import akka.stream.javadsl.Sink;
+import com.example.cart.api.CartItem;
+import com.example.cart.api.CartService;
+import com.example.cart.api.CartView;
+import com.example.catalog.api.CatalogService;
+import com.example.catalog.api.StockLevel;
+import com.lightbend.lagom.javadsl.testkit.ServiceTest;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+import static com.lightbend.lagom.javadsl.testkit.ServiceTest.bind;
+import static com.lightbend.lagom.javadsl.testkit.ServiceTest.defaultSetup;
+
+public class CatalogServiceTest {
+
+    private String randomId() {
+        return UUID.randomUUID().toString();
+    }
+
+    private static ServiceTest.TestServer testServer;
+    private static CatalogService catalogService;
+
+    @BeforeClass
+    public static void startServer() {
+        testServer = ServiceTest.startServer(defaultSetup().withJdbc()
+                .configureBuilder(b -> b.overrides(bind(CartService.class).to(CartServiceStub.class))));
+        catalogService = testServer.client(CatalogService.class);
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        testServer.stop();
+    }
+
+    @Test
+    public void shouldAddStock() {
+        String productId = randomId();
+
+        Await.result(catalogService.add(productId).invoke(4));
+        Await.result(catalogService.add(productId).invoke(6));
+
+        Integer stock = Await.result(catalogService.get(productId).invoke());
+        Assert.assertEquals(10, stock.intValue());
+    }
+
+    @Test
+    public void shouldReadAndAddStockInBulk() {
+        String productId = randomId();
+        String otherProductId = randomId();
+        String unknownProductId = randomId();
+        Map<String, Integer> quantities = new HashMap<>();
+        quantities.put(productId, 3);
+        quantities.put(otherProductId, 7);
+
+        Await.result(catalogService.addAll().invoke(quantities));
+        Await.result(catalogService.addAll().invoke(Collections.singletonMap(productId, 2)));
+
+        Map<String, Integer> stock = Await.result(catalogService.getAll()
+                .invoke(Arrays.asList(productId, otherProductId, unknownProductId)));
+        Assert.assertEquals(3, stock.size());
+        Assert.assertEquals(5, stock.get(productId).intValue());
+        Assert.assertEquals(7, stock.get(otherProductId).intValue());
+        Assert.assertEquals(0, stock.get(unknownProductId).intValue());
+    }
+
+    @Test
+    public void shouldRemoveCheckedOutItemsFromStock() throws InterruptedException {
+        String productId = randomId();
+        String otherProductId = randomId();
+        Await.result(catalogService.add(productId).invoke(10));
+        Await.result(catalogService.add(otherProductId).invoke(10));
+
+        CartServiceStub.cartProducer.send(checkedOutCart(new CartItem(productId, 2), new CartItem(otherProductId, 5)));
+        CartServiceStub.cartProducer.send(checkedOutCart(new CartItem(productId, 3)));
+
+        eventuallyStockIs(productId, 5);
+        eventuallyStockIs(otherProductId, 5);
+    }
+
+    @Test
+    public void shouldRemoveCartsDeliveredAgainFromStockOnce() throws InterruptedException {
+        String productId = randomId();
+        Await.result(catalogService.add(productId).invoke(10));
+
+        CartView cart = checkedOutCart(new CartItem(productId, 2));
+        CartServiceStub.cartProducer.send(cart);
+        CartServiceStub.cartProducer.send(cart);
+        // Sent after the duplicate, so once it's applied the duplicate has been handled
+        CartServiceStub.cartProducer.send(checkedOutCart(new CartItem(productId, 1)));
+
+        eventuallyStockIs(productId, 7);
+    }
+
+    @Test
+    public void shouldStreamStockChanges() throws Exception {
+        String productId = randomId();
+        String otherProductId = randomId();
+        CompletionStage<StockLevel> firstChange = Await.result(catalogService.changes()
+                .invoke(Collections.singletonList(productId)))
+                .runWith(Sink.head(), testServer.materializer());
+
+        // The subscription is only in place once the WebSocket is connected
+        int added = 0;
+        while (!firstChange.toCompletableFuture().isDone() && added < 50) {
+            Await.result(catalogService.add(otherProductId).invoke(1));
+            Await.result(catalogService.add(productId).invoke(1));
+            added++;
+            Thread.sleep(100);
+        }
+
+        StockLevel level = firstChange.toCompletableFuture().get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(productId, level.productId);
+        Assert.assertTrue(level.quantity >= 1 && level.quantity <= added);
+    }
+
+    @Test
+    public void shouldServeConsumerMetrics() throws InterruptedException {
+        String productId = randomId();
+        Await.result(catalogService.add(productId).invoke(10));
+
+        CartServiceStub.cartProducer.send(checkedOutCart(new CartItem(productId, 4)));
+        eventuallyStockIs(productId, 6);
+
+        String metrics = Await.result(catalogService.metrics().invoke());
+        Assert.assertTrue(metrics, metrics.contains("catalog_consumer_checkouts_total{outcome=\"applied\",}"));
+        Assert.assertTrue(metrics, metrics.contains("catalog_consumer_lag_seconds_count"));
+        Assert.assertTrue(metrics, metrics.contains("catalog_stock_writes_total"));
+        Assert.assertTrue(metrics, metrics.contains("catalog_dedup_checked_total"));
+    }
+
+    private CartView checkedOutCart(CartItem... items) {
+        return new CartView(randomId(), Arrays.asList(items), Optional.of(Instant.now()));
+    }
+
+    private void eventuallyStockIs(String productId, int expected) throws InterruptedException {
+        int stock = 0;
+        for (int attempt = 0; attempt < 50; attempt++) {
+            stock = Await.result(catalogService.get(productId).invoke());
+            if (stock == expected) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(expected, stock);
+    }
+}
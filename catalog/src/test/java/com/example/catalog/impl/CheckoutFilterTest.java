@@ -0,0 +1,176 @@
+package com.example.catalog.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+public class CheckoutFilterTest {
+
+    private final DedupSettings settings = new DedupSettings(true, 100, Duration.ofMinutes(10), 1000, 0.0001, 3, Duration.ofSeconds(10));
+
+    private String randomId() {
+        return UUID.randomUUID().toString();
+    }
+
+    @Test
+    public void shouldFindRecentCartsExactly() {
+        CheckoutFilter filter = new CheckoutFilter(settings);
+        String cartId = randomId();
+
+        Assert.assertFalse(filter.isDuplicate(cartId, 0));
+        filter.add(cartId, 0);
+        Assert.assertTrue(filter.isDuplicate(cartId, 1000));
+        Assert.assertEquals(1, filter.getWindowHits());
+        Assert.assertEquals(0, filter.getBloomHits());
+    }
+
+    @Test
+    public void shouldFindOlderCartsInTheBloomFilter() {
+        CheckoutFilter filter = new CheckoutFilter(settings);
+        String cartId = randomId();
+        filter.add(cartId, 0);
+
+        // Push the cart out of the exact window, by age and by size
+        long later = Duration.ofMinutes(20).toMillis();
+        for (int i = 0; i < 200; i++) {
+            filter.add(randomId(), later);
+        }
+        Assert.assertEquals(100, filter.getWindowSize());
+
+        Assert.assertTrue(filter.isDuplicate(cartId, later));
+        Assert.assertEquals(1, filter.getBloomHits());
+    }
+
+    @Test
+    public void shouldKeepABoundedNumberOfGenerations() {
+        CheckoutFilter filter = new CheckoutFilter(settings);
+        String first = randomId();
+        filter.add(first, 0);
+        for (int i = 0; i < 5000; i++) {
+            filter.add(randomId(), 0);
+        }
+
+        Assert.assertEquals(3, filter.getGenerations());
+        // The generation with the first cart was dropped
+        Assert.assertFalse(filter.isDuplicate(first, 0));
+    }
+
+    @Test
+    public void shouldRarelyTakeNewCartsForDuplicates() {
+        CheckoutFilter filter = new CheckoutFilter(settings);
+        for (int i = 0; i < 3000; i++) {
+            filter.add(randomId(), 0);
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (filter.isDuplicate(randomId(), 0)) {
+                falsePositives++;
+            }
+        }
+        // Three full generations at 0.0001 each, with some slack
+        Assert.assertTrue("false positives: " + falsePositives, falsePositives < 100);
+        Assert.assertTrue(filter.estimatedFalsePositiveRate() < 0.001);
+    }
+
+    @Test
+    public void shouldRestoreFromACheckpoint() throws Exception {
+        CheckoutFilter filter = new CheckoutFilter(settings);
+        String recent = randomId();
+        String old = randomId();
+        filter.add(old, 0);
+        for (int i = 0; i < 200; i++) {
+            filter.add(randomId(), 0);
+        }
+        filter.add(recent, 0);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            filter.writeCheckpoint(out);
+        }
+
+        CheckoutFilter restored = new CheckoutFilter(settings);
+        restored.readCheckpoint(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), 0);
+        Assert.assertTrue(restored.isDuplicate(recent, 0));
+        Assert.assertEquals(1, restored.getWindowHits());
+        Assert.assertTrue(restored.isDuplicate(old, 0));
+        Assert.assertEquals(1, restored.getBloomHits());
+        Assert.assertFalse(restored.isDuplicate(randomId(), 0));
+    }
+
+    @Test
+    public void shouldKeepEveryGenerationOfSeveralCheckpoints() throws Exception {
+        // Two consumers, each with three generations, two of them full
+        List<String> cartIds = new ArrayList<>();
+        List<byte[]> checkpoints = new ArrayList<>();
+        for (int consumer = 0; consumer < 2; consumer++) {
+            CheckoutFilter filter = new CheckoutFilter(settings);
+            for (int i = 0; i < 2500; i++) {
+                String cartId = randomId();
+                filter.add(cartId, 0);
+                cartIds.add(cartId);
+            }
+            Assert.assertEquals(3, filter.getGenerations());
+            checkpoints.add(checkpoint(filter));
+        }
+
+        CheckoutFilter restored = new CheckoutFilter(settings);
+        for (byte[] checkpoint : checkpoints) {
+            Assert.assertTrue(restored.readCheckpoint(new DataInputStream(new ByteArrayInputStream(checkpoint)), 0));
+        }
+
+        Assert.assertEquals(3, restored.getGenerations());
+        for (String cartId : cartIds) {
+            Assert.assertTrue(cartId, restored.isDuplicate(cartId, 0));
+        }
+    }
+
+    @Test
+    public void shouldFindTheCartsOfAnotherConsumer() throws Exception {
+        CheckoutFilter previousOwner = new CheckoutFilter(settings);
+        String handedOver = randomId();
+        previousOwner.add(handedOver, 0);
+        CheckoutFilter peer = new CheckoutFilter(settings);
+        peer.readCheckpoint(new DataInputStream(new ByteArrayInputStream(checkpoint(previousOwner))), 0);
+
+        CheckoutFilter filter = new CheckoutFilter(settings);
+        Assert.assertTrue(filter.isDuplicate(handedOver, 0, Collections.singletonList(peer)));
+        Assert.assertFalse(filter.isDuplicate(randomId(), 0, Collections.singletonList(peer)));
+        Assert.assertEquals(2, filter.getChecked());
+        Assert.assertEquals(1, filter.getWindowHits());
+        // The peer is only looked into, and its carts aren't added to this filter
+        Assert.assertEquals(0, peer.getChecked());
+        Assert.assertFalse(filter.isDuplicate(handedOver, 0));
+    }
+
+    @Test
+    public void shouldTellWhenACheckpointDoesNotFit() throws Exception {
+        CheckoutFilter filter = new CheckoutFilter(settings);
+        for (int i = 0; i < 2500; i++) {
+            filter.add(randomId(), 0);
+        }
+
+        // Generations of another size can't be merged, and only two of them fit behind the current one
+        DedupSettings otherSettings = new DedupSettings(true, 100, Duration.ofMinutes(10), 2000, 0.0001, 3, Duration.ofSeconds(10));
+        CheckoutFilter restored = new CheckoutFilter(otherSettings);
+        Assert.assertFalse(restored.readCheckpoint(new DataInputStream(new ByteArrayInputStream(checkpoint(filter))), 0));
+    }
+
+    private static byte[] checkpoint(CheckoutFilter filter) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            filter.writeCheckpoint(out);
+        }
+        return bytes.toByteArray();
+    }
+}
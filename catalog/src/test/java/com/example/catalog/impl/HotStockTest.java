@@ -0,0 +1,170 @@
+package com.example.catalog.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class HotStockTest {
+
+    /**
+     * An inventory with one stock level for all products, whose stock changes complete when the test says so.
+     */
+    private static class ManualInventory implements HotStock.Inventory {
+        private int quantity;
+        private final List<Integer> deltas = new ArrayList<>();
+        private final List<CompletableFuture<Integer>> pending = new ArrayList<>();
+        private int completed;
+        private int gets;
+
+        @Override
+        public synchronized CompletionStage<Integer> adjust(String productId, int delta) {
+            deltas.add(delta);
+            CompletableFuture<Integer> stock = new CompletableFuture<>();
+            pending.add(stock);
+            return stock;
+        }
+
+        @Override
+        public synchronized CompletionStage<Integer> get(String productId) {
+            gets++;
+            return CompletableFuture.completedFuture(quantity);
+        }
+
+        void completeNext() {
+            CompletableFuture<Integer> stock;
+            synchronized (this) {
+                quantity += deltas.get(completed++);
+                stock = pending.remove(0);
+            }
+            stock.complete(quantity);
+        }
+
+        void failNext() {
+            CompletableFuture<Integer> stock;
+            synchronized (this) {
+                completed++;
+                stock = pending.remove(0);
+            }
+            stock.completeExceptionally(new RuntimeException("write failed"));
+        }
+    }
+
+    private final AtomicLong nanoTime = new AtomicLong();
+    private final ManualInventory inventory = new ManualInventory();
+    private final HotStock hotStock = new HotStock(inventory,
+            new HotStockSettings(true, Duration.ofMillis(100), 10, Duration.ofSeconds(60)), nanoTime::get);
+
+    @Test
+    public void shouldCombineChangesMadeWhileOneIsWritten() {
+        CompletableFuture<Integer> first = hotStock.adjust("p1", 100).toCompletableFuture();
+        CompletableFuture<Integer> second = hotStock.adjust("p1", -1).toCompletableFuture();
+        CompletableFuture<Integer> third = hotStock.adjust("p1", -2).toCompletableFuture();
+        Assert.assertEquals(1, inventory.deltas.size());
+
+        inventory.completeNext();
+        Assert.assertEquals(100, first.join().intValue());
+        Assert.assertFalse(second.isDone());
+        Assert.assertEquals(-3, inventory.deltas.get(1).intValue());
+
+        inventory.completeNext();
+        Assert.assertEquals(97, second.join().intValue());
+        Assert.assertEquals(97, third.join().intValue());
+        Assert.assertEquals(3, hotStock.getAdjustments());
+        Assert.assertEquals(2, hotStock.getWrites());
+    }
+
+    @Test
+    public void shouldReadRecentStockLevelsFromTheCache() {
+        hotStock.adjust("p1", 50);
+        inventory.completeNext();
+
+        nanoTime.addAndGet(Duration.ofMillis(100).toNanos());
+        Assert.assertEquals(50, hotStock.get("p1").toCompletableFuture().join().intValue());
+        Assert.assertEquals(0, inventory.gets);
+
+        nanoTime.addAndGet(1);
+        Assert.assertEquals(50, hotStock.get("p1").toCompletableFuture().join().intValue());
+        Assert.assertEquals(1, inventory.gets);
+        Assert.assertEquals(1, hotStock.getCachedReads());
+        Assert.assertEquals(1, hotStock.getPreciseReads());
+    }
+
+    @Test
+    public void shouldReadLowStockLevelsFromTheInventory() {
+        hotStock.adjust("p1", 9);
+        inventory.completeNext();
+
+        Assert.assertEquals(9, hotStock.get("p1").toCompletableFuture().join().intValue());
+        Assert.assertEquals(1, inventory.gets);
+    }
+
+    @Test
+    public void shouldFailAllCombinedChangesIfTheWriteFails() {
+        hotStock.adjust("p1", 1);
+        CompletableFuture<Integer> second = hotStock.adjust("p1", 2).toCompletableFuture();
+        CompletableFuture<Integer> third = hotStock.adjust("p1", 3).toCompletableFuture();
+        inventory.completeNext();
+
+        inventory.failNext();
+        Assert.assertTrue(second.isCompletedExceptionally());
+        Assert.assertTrue(third.isCompletedExceptionally());
+
+        // The product can still be changed afterwards
+        CompletableFuture<Integer> fourth = hotStock.adjust("p1", 4).toCompletableFuture();
+        inventory.completeNext();
+        Assert.assertEquals(5, fourth.join().intValue());
+    }
+
+    @Test
+    public void shouldOnlyRemoveIdleProducts() {
+        hotStock.adjust("p1", 50);
+        inventory.completeNext();
+        hotStock.adjust("p2", 50);
+        Assert.assertEquals(0, hotStock.removeIdle());
+
+        nanoTime.addAndGet(Duration.ofSeconds(61).toNanos());
+        // p2's change is still being written
+        Assert.assertEquals(1, hotStock.removeIdle());
+        Assert.assertEquals(Arrays.asList("p2"), hotStock.recentProducts(10));
+
+        inventory.completeNext();
+        nanoTime.addAndGet(Duration.ofSeconds(61).toNanos());
+        Assert.assertEquals(1, hotStock.removeIdle());
+        Assert.assertEquals(0, hotStock.recentProducts(10).size());
+    }
+
+    @Test
+    public void shouldOnlyReadUncachedStockLevelsInBulk() {
+        hotStock.adjust("p1", 50);
+        inventory.completeNext();
+
+        Map<String, Integer> stock = hotStock.getAll(Arrays.asList("p1", "p2")).toCompletableFuture().join();
+        Assert.assertEquals(50, stock.get("p1").intValue());
+        // Read from the inventory, which has one stock level for all products
+        Assert.assertEquals(50, stock.get("p2").intValue());
+        Assert.assertEquals(1, inventory.gets);
+    }
+
+    @Test
+    public void shouldCompleteABulkChangeOnceAllProductsAreWritten() {
+        Map<String, Integer> deltas = new HashMap<>();
+        deltas.put("p1", 1);
+        deltas.put("p2", 2);
+        CompletableFuture<Map<String, Integer>> stock = hotStock.adjustAll(deltas).toCompletableFuture();
+
+        inventory.completeNext();
+        Assert.assertFalse(stock.isDone());
+        inventory.completeNext();
+        Assert.assertEquals(2, stock.join().size());
+        Assert.assertEquals(2, hotStock.getWrites());
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.catalog.impl;
+
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.testkit.typed.javadsl.TestProbe;
+import akka.actor.typed.ActorRef;
+import akka.cluster.sharding.typed.javadsl.EntityContext;
+import org.junit.Assert;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.util.UUID;
+
+public class InventoryTest {
+
+    private static final String inmemConfig =
+            "akka.persistence.journal.plugin = \"akka.persistence.journal.inmem\" \n";
+
+    private static final String snapshotConfig =
+            "akka.persistence.snapshot-store.plugin = \"akka.persistence.snapshot-store.local\" \n"
+                    + "akka.persistence.snapshot-store.local.dir = \"target/snapshot-"
+                    + UUID.randomUUID().toString()
+                    + "\" \n";
+
+    private static final String config = inmemConfig + snapshotConfig;
+
+    @ClassRule
+    public static final TestKitJunitResource testKit = new TestKitJunitResource(config);
+
+    private String randomId() {
+        return UUID.randomUUID().toString();
+    }
+
+    private ActorRef<InventoryEntity.Command> createTestInventory(String productId) {
+        // The actorRef to the shard can be null as it won't be used.
+        return testKit.spawn(InventoryEntity.create(new EntityContext<>(InventoryEntity.ENTITY_TYPE_KEY, productId, null)));
+    }
+
+    @Test
+    public void shouldStartWithNoStock() {
+        ActorRef<InventoryEntity.Command> inventory = createTestInventory(randomId());
+        TestProbe<InventoryEntity.Stock> probe = testKit.createTestProbe(InventoryEntity.Stock.class);
+
+        inventory.tell(new InventoryEntity.Get(probe.ref()));
+        Assert.assertEquals(0, probe.receiveMessage().getQuantity());
+    }
+
+    @Test
+    public void shouldAddAndRemoveStock() {
+        ActorRef<InventoryEntity.Command> inventory = createTestInventory(randomId());
+        TestProbe<InventoryEntity.Stock> probe = testKit.createTestProbe(InventoryEntity.Stock.class);
+
+        inventory.tell(new InventoryEntity.AdjustStock(10, probe.ref()));
+        Assert.assertEquals(new InventoryEntity.Stock(10, 1), probe.receiveMessage());
+
+        inventory.tell(new InventoryEntity.AdjustStock(-3, probe.ref()));
+        Assert.assertEquals(new InventoryEntity.Stock(7, 2), probe.receiveMessage());
+    }
+
+    @Test
+    public void shouldRecoverStockAfterRestart() {
+        String productId = randomId();
+        ActorRef<InventoryEntity.Command> inventory = createTestInventory(productId);
+        TestProbe<InventoryEntity.Stock> probe = testKit.createTestProbe(InventoryEntity.Stock.class);
+
+        // More changes than the snapshot interval, so recovery uses a snapshot and the events after it
+        for (int i = 0; i < 150; i++) {
+            inventory.tell(new InventoryEntity.AdjustStock(2, probe.ref()));
+            probe.receiveMessage();
+        }
+        testKit.stop(inventory);
+
+        ActorRef<InventoryEntity.Command> recovered = createTestInventory(productId);
+        recovered.tell(new InventoryEntity.Get(probe.ref()));
+        Assert.assertEquals(new InventoryEntity.Stock(300, 150), probe.receiveMessage());
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.catalog.impl;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class InventoryWarmUpTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private InventoryWarmUp warmUp(Path file, int maxProducts) {
+        return new InventoryWarmUp(null, new WarmUpSettings(true, file, maxProducts, Duration.ofSeconds(30)));
+    }
+
+    @Test
+    public void shouldReadTheRecordedProducts() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("recent-products");
+        List<String> productIds = Arrays.asList("123", "456", "äöü");
+        InventoryWarmUp.write(file, productIds);
+
+        Assert.assertEquals(productIds, warmUp(file, 10).read(file));
+        Assert.assertEquals(Arrays.asList("123", "456"), warmUp(file, 2).read(file));
+    }
+
+    @Test
+    public void shouldIgnoreMissingAndForeignFiles() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("recent-products");
+        Assert.assertEquals(Collections.emptyList(), warmUp(file, 10).read(file));
+
+        Files.write(file, "not a product list".getBytes());
+        Assert.assertEquals(Collections.emptyList(), warmUp(file, 10).read(file));
+    }
+
+    @Test
+    public void shouldListTheMostRecentlyUsedProductsFirst() {
+        AtomicLong nanoTime = new AtomicLong();
+        HotStock hotStock = new HotStock(new HotStock.Inventory() {
+            @Override
+            public CompletionStage<Integer> adjust(String productId, int delta) {
+                return CompletableFuture.completedFuture(delta);
+            }
+
+            @Override
+            public CompletionStage<Integer> get(String productId) {
+                return CompletableFuture.completedFuture(0);
+            }
+        }, new HotStockSettings(true, Duration.ofMillis(100), 10, Duration.ofSeconds(60)), nanoTime::get);
+
+        hotStock.adjust("p1", 1);
+        nanoTime.addAndGet(Duration.ofSeconds(2).toNanos());
+        hotStock.get("p2");
+        nanoTime.addAndGet(Duration.ofSeconds(2).toNanos());
+        hotStock.get("p3");
+
+        Assert.assertEquals(Arrays.asList("p3", "p2"), hotStock.recentProducts(2));
+        Assert.assertEquals(Arrays.asList("p3", "p2", "p1"), hotStock.recentProducts(10));
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.catalog.impl;
+
+import com.typesafe.config.ConfigFactory;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class OffHeapInventoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static int await(CompletionStage<Integer> stock) throws Exception {
+        return stock.toCompletableFuture().get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void shouldAdjustAndGetStock() throws Exception {
+        OffHeapInventory inventory = new OffHeapInventory(new OffHeapInventorySettings(folder.getRoot().toPath().resolve("inventory"), 100));
+
+        Assert.assertEquals(0, await(inventory.get("123")));
+        Assert.assertEquals(0, inventory.products());
+        Assert.assertEquals(10, await(inventory.adjust("123", 10)));
+        Assert.assertEquals(7, await(inventory.adjust("123", -3)));
+        Assert.assertEquals(5, await(inventory.adjust("456", 5)));
+
+        Assert.assertEquals(7, await(inventory.get("123")));
+        Assert.assertEquals(5, await(inventory.get("456")));
+        Assert.assertEquals(2, inventory.products());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRequireAFileToBeConfigured() {
+        OffHeapInventorySettings.fromConfig(ConfigFactory.load());
+    }
+
+    @Test
+    public void shouldKeepTheStockAcrossRestarts() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("inventory");
+        OffHeapInventory inventory = new OffHeapInventory(new OffHeapInventorySettings(file, 100));
+        for (int i = 0; i < 100; i++) {
+            inventory.adjust("product-" + i, i);
+        }
+
+        OffHeapInventory restarted = new OffHeapInventory(new OffHeapInventorySettings(file, 100));
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(i, await(restarted.get("product-" + i)));
+        }
+        Assert.assertEquals(100, restarted.products());
+
+        try {
+            new OffHeapInventory(new OffHeapInventorySettings(file, 1000));
+            Assert.fail("Opened with another capacity");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void shouldRefuseProductsBeyondItsCapacity() throws Exception {
+        OffHeapInventory inventory = new OffHeapInventory(new OffHeapInventorySettings(folder.getRoot().toPath().resolve("inventory"), 2));
+        await(inventory.adjust("123", 1));
+        await(inventory.adjust("456", 1));
+
+        try {
+            await(inventory.adjust("789", 1));
+            Assert.fail("Added a product beyond the capacity");
+        } catch (ExecutionException expected) {
+            Assert.assertTrue(expected.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertEquals(2, await(inventory.adjust("123", 1)));
+        Assert.assertEquals(0, await(inventory.get("789")));
+    }
+
+    @Test
+    public void shouldNotLoseConcurrentChanges() throws Exception {
+        OffHeapInventory inventory = new OffHeapInventory(new OffHeapInventorySettings(folder.getRoot().toPath().resolve("inventory"), 1000));
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    inventory.adjust("product-" + i % 500, 1);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertEquals(500, inventory.products());
+        for (int i = 0; i < 500; i++) {
+            Assert.assertEquals(80, await(inventory.get("product-" + i)));
+        }
+    }
+}
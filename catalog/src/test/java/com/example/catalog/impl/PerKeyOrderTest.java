@@ -0,0 +1,60 @@
+package com.example.catalog.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+public class PerKeyOrderTest {
+
+    @Test
+    public void shouldRunWorkOnOtherKeysAtOnce() {
+        PerKeyOrder order = new PerKeyOrder();
+        CompletableFuture<String> first = new CompletableFuture<>();
+        CompletableFuture<String> second = new CompletableFuture<>();
+
+        CompletionStage<String> a = order.run(Collections.singleton("a"), () -> first);
+        CompletionStage<String> b = order.run(Collections.singleton("b"), () -> second);
+        second.complete("b");
+
+        Assert.assertEquals("b", b.toCompletableFuture().getNow(null));
+        Assert.assertFalse(a.toCompletableFuture().isDone());
+        Assert.assertEquals(1, order.size());
+    }
+
+    @Test
+    public void shouldRunWorkOnTheSameKeyInOrder() {
+        PerKeyOrder order = new PerKeyOrder();
+        CompletableFuture<String> first = new CompletableFuture<>();
+        StringBuilder started = new StringBuilder();
+
+        order.run(Collections.singleton("a"), () -> {
+            started.append("1");
+            return first;
+        });
+        CompletionStage<String> second = order.run(Arrays.asList("b", "a"), () -> {
+            started.append("2");
+            return CompletableFuture.completedFuture("2");
+        });
+        Assert.assertEquals("1", started.toString());
+
+        first.completeExceptionally(new IllegalStateException("failed"));
+        // Earlier work that failed doesn't hold up the work after it
+        Assert.assertEquals("2", second.toCompletableFuture().getNow(null));
+        Assert.assertEquals("12", started.toString());
+        Assert.assertEquals(0, order.size());
+    }
+
+    @Test
+    public void shouldNotWaitForItselfOnAKeyGivenTwice() {
+        PerKeyOrder order = new PerKeyOrder();
+
+        CompletionStage<String> work = order.run(Arrays.asList("a", "a"), () -> CompletableFuture.completedFuture("done"));
+
+        Assert.assertEquals("done", work.toCompletableFuture().getNow(null));
+        Assert.assertEquals(0, order.size());
+    }
+}
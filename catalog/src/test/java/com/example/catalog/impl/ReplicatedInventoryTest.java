@@ -0,0 +1,138 @@
+package com.example.catalog.impl;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.javadsl.Adapter;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.cluster.MemberStatus;
+import akka.cluster.typed.Cluster;
+import akka.cluster.typed.Join;
+import akka.stream.javadsl.Sink;
+import com.example.catalog.api.StockLevel;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.StreamSupport;
+
+public class ReplicatedInventoryTest {
+
+    static final Config CLUSTER_CONFIG = ConfigFactory.parseString(
+            "akka.actor.provider = cluster \n"
+                    + "akka.remote.artery.canonical.hostname = 127.0.0.1 \n"
+                    + "akka.remote.artery.canonical.port = 0 \n"
+                    + "akka.cluster.jmx.multi-mbeans-in-same-jvm = on \n"
+                    + "akka.cluster.distributed-data.gossip-interval = 200ms \n")
+            .withFallback(ConfigFactory.defaultReference());
+
+    private static ActorSystem<Void> node1;
+    private static ActorSystem<Void> node2;
+
+    /**
+     * Starts the nodes of a cluster in this JVM, waiting for all of them to be up.
+     */
+    @SafeVarargs
+    static void formCluster(ActorSystem<Void>... nodes) throws InterruptedException {
+        for (ActorSystem<Void> node : nodes) {
+            Cluster.get(node).manager().tell(Join.create(Cluster.get(nodes[0]).selfMember().address()));
+        }
+        for (int attempt = 0; attempt < 100; attempt++) {
+            long up = StreamSupport.stream(Cluster.get(nodes[0]).state().getMembers().spliterator(), false)
+                    .filter(member -> member.status() == MemberStatus.up()).count();
+            if (up == nodes.length) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        Assert.fail("The cluster didn't form");
+    }
+
+    @BeforeClass
+    public static void startCluster() throws InterruptedException {
+        node1 = ActorSystem.create(Behaviors.empty(), "ReplicatedInventoryTest", CLUSTER_CONFIG);
+        node2 = ActorSystem.create(Behaviors.empty(), "ReplicatedInventoryTest", CLUSTER_CONFIG);
+        formCluster(node1, node2);
+    }
+
+    @AfterClass
+    public static void stopCluster() {
+        node2.terminate();
+        node1.terminate();
+    }
+
+    private final ReplicatedInventorySettings settings = new ReplicatedInventorySettings(10, false, Duration.ofSeconds(3));
+
+    private String randomId() {
+        return UUID.randomUUID().toString();
+    }
+
+    @Test
+    public void shouldAddAndRemoveStock() {
+        ReplicatedInventory inventory = new ReplicatedInventory(node1, settings);
+        String productId = randomId();
+
+        Assert.assertEquals(0, inventory.get(productId).toCompletableFuture().join().intValue());
+        Assert.assertEquals(10, inventory.adjust(productId, 10).toCompletableFuture().join().intValue());
+        Assert.assertEquals(7, inventory.adjust(productId, -3).toCompletableFuture().join().intValue());
+        Assert.assertEquals(7, inventory.get(productId).toCompletableFuture().join().intValue());
+    }
+
+    @Test
+    public void shouldFeedTheLevelConvergedOnAfterChangesThroughBothNodes() throws InterruptedException {
+        ReplicatedInventory inventory1 = new ReplicatedInventory(node1, settings);
+        ReplicatedInventory inventory2 = new ReplicatedInventory(node2, settings);
+        StockFeed feed = new StockFeed(Adapter.toClassic(node1));
+        feed.following(inventory1);
+        String productId = randomId();
+        AtomicReference<StockLevel> latest = new AtomicReference<>();
+        feed.subscribe(Collections.singleton(productId)).runWith(Sink.foreach(latest::set), node1);
+
+        // Seen through the feed first, so the subscriber is known to be attached to it
+        inventory1.adjust(productId, 10).toCompletableFuture().join();
+        awaitLevel(latest, 10);
+
+        // Neither node has the other's change when it makes its own, so neither level it sees is 14
+        CompletableFuture<Integer> added = inventory1.adjust(productId, 5).toCompletableFuture();
+        CompletableFuture<Integer> removed = inventory2.adjust(productId, -1).toCompletableFuture();
+        added.join();
+        removed.join();
+        awaitLevel(latest, 14);
+    }
+
+    private static void awaitLevel(AtomicReference<StockLevel> latest, int quantity) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            StockLevel level = latest.get();
+            if (level != null && level.getQuantity() == quantity) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        Assert.fail("The feed didn't get to " + quantity + ", but " + latest.get());
+    }
+
+    @Test
+    public void shouldConvergeOnChangesMadeThroughAllNodes() throws InterruptedException {
+        ReplicatedInventory inventory1 = new ReplicatedInventory(node1, settings);
+        ReplicatedInventory inventory2 = new ReplicatedInventory(node2, settings);
+        String productId = randomId();
+
+        inventory1.adjust(productId, 10).toCompletableFuture().join();
+        inventory2.adjust(productId, -4).toCompletableFuture().join();
+
+        for (int attempt = 0; attempt < 100; attempt++) {
+            if (inventory1.get(productId).toCompletableFuture().join() == 6
+                    && inventory2.get(productId).toCompletableFuture().join() == 6) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        Assert.fail("Stock levels didn't converge");
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.catalog.impl;
+
+import com.example.cart.api.CartItem;
+import com.example.cart.api.CartView;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+
+public class StockDeltasTest {
+
+    private CartView checkedOutCart(String cartId, CartItem... items) {
+        return new CartView(cartId, Arrays.asList(items), Optional.of(Instant.now()));
+    }
+
+    @Test
+    public void shouldSumItemsPerProduct() {
+        StockDeltas deltas = new StockDeltas();
+        deltas.removeCart(checkedOutCart("cart1", new CartItem("p1", 2), new CartItem("p2", 1)));
+        deltas.removeCart(checkedOutCart("cart2", new CartItem("p1", 3)));
+
+        Map<String, Integer> productDeltas = deltas.getDeltas();
+        Assert.assertEquals(2, productDeltas.size());
+        Assert.assertEquals(-5, productDeltas.get("p1").intValue());
+        Assert.assertEquals(-1, productDeltas.get("p2").intValue());
+        Assert.assertEquals(Arrays.asList("cart1", "cart2"), deltas.getCartIds());
+    }
+
+    @Test
+    public void shouldSkipACartAlreadyInTheBatch() {
+        StockDeltas deltas = new StockDeltas();
+        CartView cart = checkedOutCart("cart1", new CartItem("p1", 2));
+
+        Assert.assertTrue(deltas.removeCart(cart));
+        Assert.assertFalse(deltas.removeCart(cart));
+
+        Assert.assertEquals(-2, deltas.getDeltas().get("p1").intValue());
+        Assert.assertEquals(Arrays.asList("cart1"), deltas.getCartIds());
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.catalog.impl;
+
+import akka.actor.ActorSystem;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import com.example.catalog.api.StockLevel;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class StockFeedTest {
+
+    private static ActorSystem system;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create("StockFeedTest");
+    }
+
+    @AfterClass
+    public static void teardown() {
+        system.terminate();
+    }
+
+    @Test
+    public void shouldEndOnTheLatestVersionOfEachProduct() throws Exception {
+        List<StockLevel> levels = Source.from(Arrays.asList(
+                new StockFeed.StockChanged("p1", 5, 2),
+                // Published by a node that hadn't seen the change above yet
+                new StockFeed.StockChanged("p1", 7, 1),
+                new StockFeed.StockChanged("p2", 3, 1),
+                new StockFeed.StockChanged("p3", 9, 1),
+                new StockFeed.StockChanged("p2", 3, 1),
+                new StockFeed.StockChanged("p1", 4, 3)))
+                .via(StockFeed.latest(new HashSet<>(Arrays.asList("p1", "p2"))))
+                .runWith(Sink.seq(), system)
+                .toCompletableFuture().get(5, TimeUnit.SECONDS);
+
+        for (StockLevel level : levels) {
+            Assert.assertNotEquals("p3", level.getProductId());
+            Assert.assertFalse("Stale level " + level, level.getProductId().equals("p1") && level.getQuantity() == 7);
+        }
+        Assert.assertEquals(1, levels.stream().filter(level -> level.getProductId().equals("p2")).count());
+        StockLevel last = levels.get(levels.size() - 1);
+        Assert.assertEquals("p1", last.getProductId());
+        Assert.assertEquals(4, last.getQuantity());
+    }
+}
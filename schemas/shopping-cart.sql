@@ -24,4 +24,10 @@ CREATE TABLE read_side_offsets (
   read_side_id VARCHAR(255), tag VARCHAR(255),
   sequence_offset bigint, time_uuid_offset char(36),
   PRIMARY KEY (read_side_id, tag)
-)
\ No newline at end of file
+);
+
+CREATE TABLE IF NOT EXISTS catalog_dedup_checkpoint (
+  consumer_id VARCHAR(255) PRIMARY KEY,
+  checkpoint BYTEA NOT NULL,
+  updated_at TIMESTAMP NOT NULL
+);